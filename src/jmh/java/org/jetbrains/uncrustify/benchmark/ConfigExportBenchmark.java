@@ -0,0 +1,58 @@
+package org.jetbrains.uncrustify.benchmark;
+
+import com.intellij.lang.Language;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.psi.codeStyle.CommonCodeStyleSettings;
+import org.jetbrains.uncrustify.util.UncrustifyConfig;
+import org.jetbrains.uncrustify.util.UncrustifyConfigFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigExportBenchmark {
+    private CommonCodeStyleSettings mySettings;
+    private ByteArrayOutputStream myOutput;
+    private BufferExposingByteArrayOutputStream myBuffer;
+    private UncrustifyConfig myConfig;
+
+    @Setup
+    public void setUp() {
+        mySettings = new CommonCodeStyleSettings(Language.ANY);
+        mySettings.initIndentOptions();
+        myOutput = new ByteArrayOutputStream(16 * 1024);
+        myBuffer = new BufferExposingByteArrayOutputStream(16 * 1024);
+        myConfig = UncrustifyConfigFile.createConfig(mySettings);
+    }
+
+    @Benchmark
+    public int exportCodeStyle() throws IOException {
+        myOutput.reset();
+        UncrustifyConfigFile.exportCodeStyle(myOutput, mySettings);
+        return myOutput.size();
+    }
+
+    @Benchmark
+    public UncrustifyConfig createConfig() {
+        return UncrustifyConfigFile.createConfig(mySettings);
+    }
+
+    @Benchmark
+    public int serializeConfig() throws IOException {
+        myBuffer.reset();
+        myConfig.writeTo(myBuffer);
+        return myBuffer.size();
+    }
+
+    @Benchmark
+    public String fingerprintConfig() {
+        return myConfig.fingerprint();
+    }
+}
@@ -0,0 +1,38 @@
+package org.jetbrains.uncrustify.benchmark;
+
+import org.jetbrains.uncrustify.UncrustifyConfigWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigWriterBenchmark {
+    private UncrustifyConfigWriter myWriter;
+
+    @Setup
+    public void setUp() {
+        myWriter = new UncrustifyConfigWriter(Writer.nullWriter());
+    }
+
+    @Benchmark
+    public void writeOption() throws IOException {
+        myWriter.write_option("sp_before_sparen", "force");
+    }
+
+    @Benchmark
+    public void writeComment() throws IOException {
+        myWriter.write_comment("Generated by org.jetbrains.uncrustify plugin from IntelliJ code style settings");
+    }
+
+    @Benchmark
+    public void writeMultilineComment() throws IOException {
+        myWriter.write_comment("Add or remove space between 'if' and '(' in 'if (' statements.\nDefault: ignore\nSee also sp_after_sparen.");
+    }
+}
@@ -0,0 +1,77 @@
+package org.jetbrains.uncrustify.benchmark;
+
+import com.intellij.lang.Language;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.psi.codeStyle.CommonCodeStyleSettings;
+import org.jetbrains.uncrustify.util.UncrustifyConfigFile;
+import org.jetbrains.uncrustify.util.UncrustifyStreams;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formats a Java file with the Uncrustify executable given by the {@code uncrustify.executablePath} system property,
+ * passing it through the same encoding and buffering as the plugin does. Platform services (process pool, watchdog)
+ * are not available outside the IDE, so the process is started directly.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatRoundTripBenchmark {
+    @Param({"10", "1000"})
+    public int methods;
+
+    private String myExecutablePath;
+    private Path myConfig;
+    private String myInput;
+
+    @Setup
+    public void setUp() throws IOException {
+        myExecutablePath = System.getProperty("uncrustify.executablePath");
+        if (myExecutablePath == null || myExecutablePath.isBlank()) {
+            throw new IllegalStateException("Set uncrustify.executablePath to run this benchmark");
+        }
+
+        CommonCodeStyleSettings settings = new CommonCodeStyleSettings(Language.ANY);
+        settings.initIndentOptions();
+        myConfig = Files.createTempFile("uncrustify-benchmark", ".cfg");
+        UncrustifyConfigFile.exportCodeStyle(myConfig, settings);
+
+        StringBuilder input = new StringBuilder("public class Benchmark {\n");
+        for (int i = 0; i < methods; i++) {
+            input.append("public int method").append(i).append("(int a,int b){if(a>b){return a-b;}else{return b-a;}}\n");
+        }
+        myInput = input.append("}\n").toString();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(myConfig);
+    }
+
+    @Benchmark
+    public int format() throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(myExecutablePath, "-c", myConfig.toString(), "--assume", "uncrustify.java", "-q")
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        ByteBuffer input = UncrustifyStreams.encode(myInput, StandardCharsets.UTF_8);
+        int inputSize = input.remaining();
+        try (OutputStream stdin = process.getOutputStream()) {
+            UncrustifyStreams.write(input, stdin);
+        } finally {
+            UncrustifyStreams.release(input);
+        }
+        BufferExposingByteArrayOutputStream output = UncrustifyStreams.readAll(process.getInputStream(), inputSize + inputSize / 8);
+        process.waitFor();
+        return UncrustifyStreams.decode(output, StandardCharsets.UTF_8).length();
+    }
+}
@@ -0,0 +1,34 @@
+package org.jetbrains.uncrustify.benchmark;
+
+import org.jetbrains.uncrustify.util.UncrustifyExecutable;
+import org.jetbrains.uncrustify.util.UncrustifyUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+    private static final String[] FILENAMES = {
+            "main.c", "Foo.java", "widget.hpp", "README.md", "build.gradle", "parser.cpp", "view.mm", "notes.txt"
+    };
+
+    private static final String VERSION_OUTPUT = "Uncrustify_d-0.73.0_f\n";
+
+    @Benchmark
+    public void isExtensionSupported(Blackhole blackhole) {
+        for (String filename : FILENAMES) {
+            blackhole.consume(UncrustifyUtil.isExtensionSupported(filename));
+        }
+    }
+
+    @Benchmark
+    public String verifyVersion() {
+        return UncrustifyExecutable.verifyVersion(VERSION_OUTPUT);
+    }
+}
@@ -2,29 +2,43 @@ package org.jetbrains.uncrustify;
 
 import com.intellij.application.options.CodeStyle;
 import com.intellij.execution.ExecutionException;
-import com.intellij.execution.process.CapturingProcessAdapter;
-import com.intellij.execution.process.OSProcessHandler;
-import com.intellij.execution.process.ProcessEvent;
 import com.intellij.formatting.service.AsyncDocumentFormattingService;
 import com.intellij.formatting.service.AsyncFormattingRequest;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.NlsSafe;
-import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.io.FileUtilRt;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.uncrustify.settings.UncrustifyFormatSettings;
 import org.jetbrains.uncrustify.settings.UncrustifySettingsState;
 import org.jetbrains.uncrustify.util.UncrustifyConfigFile;
+import org.jetbrains.uncrustify.util.UncrustifyConfigStore;
 import org.jetbrains.uncrustify.util.UncrustifyExecutable;
+import org.jetbrains.uncrustify.util.UncrustifyFragment;
+import org.jetbrains.uncrustify.util.UncrustifyMetrics;
+import org.jetbrains.uncrustify.util.UncrustifyProcessException;
+import org.jetbrains.uncrustify.util.UncrustifyProcessResult;
+import org.jetbrains.uncrustify.util.UncrustifyResultCache;
+import org.jetbrains.uncrustify.util.UncrustifyResultStore;
+import org.jetbrains.uncrustify.util.UncrustifyScheduler;
+import org.jetbrains.uncrustify.util.UncrustifyTracer;
 import org.jetbrains.uncrustify.util.UncrustifyUtil;
 
 import java.io.*;
-import java.nio.file.Path;
+import java.nio.charset.Charset;
 import java.util.EnumSet;
-import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @SuppressWarnings("UnstableApiUsage")
 public class UncrustifyAsyncFormattingService extends AsyncDocumentFormattingService {
@@ -47,106 +61,324 @@ public class UncrustifyAsyncFormattingService extends AsyncDocumentFormattingSer
 
     @Override
     public @NotNull Set<Feature> getFeatures() {
-        return Set.of();
+        return EnumSet.of(Feature.FORMAT_FRAGMENTS);
     }
 
     @Override
     public boolean canFormat(@NotNull PsiFile file) {
-        UncrustifyFormatSettings settings = CodeStyle.getCustomSettings(file, UncrustifyFormatSettings.class);
+        try (UncrustifyTracer.Span ignored = UncrustifyTracer.start("canFormat")) {
+            UncrustifyFormatSettings settings = CodeStyle.getCustomSettings(file, UncrustifyFormatSettings.class);
 
-        VirtualFile virtualFile = file.getVirtualFile();
-        if (virtualFile == null) {
-            return false;
-        }
+            VirtualFile virtualFile = file.getVirtualFile();
+            if (virtualFile == null) {
+                return false;
+            }
 
-        return settings.ENABLED && UncrustifyUtil.isExtensionSupported(file.getVirtualFile().getName());
+            return settings.ENABLED && UncrustifyUtil.isExtensionSupported(file.getVirtualFile().getName());
+        }
     }
 
-    protected static class UncrustifyFormattingTask implements FormattingTask {
+    protected static class UncrustifyFormattingTask implements FormattingTask, UncrustifyRequestCoordinator.Request {
         private final AsyncFormattingRequest formattingRequest;
-        private OSProcessHandler uncrustifyHandler;
+        private final @Nullable Document document;
+        private final long documentStamp;
+        private final long createdAt = System.nanoTime();
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private volatile CompletableFuture<String> uncrustifyFuture;
+        private volatile boolean superseded = false;
+        private volatile boolean cancelWhenSuperseded = false;
+        private volatile boolean cancelled = false;
+        private boolean retried = false;
 
         public UncrustifyFormattingTask(AsyncFormattingRequest formattingRequest) {
             this.formattingRequest = formattingRequest;
+            // the task is created together with the request, so the document is still in the state the request's text comes from
+            PsiFile file = formattingRequest.getContext().getContainingFile();
+            this.document = PsiDocumentManager.getInstance(file.getProject()).getDocument(file);
+            this.documentStamp = document != null ? document.getModificationStamp() : -1;
         }
 
         @Override
         public boolean cancel() {
-            if (uncrustifyHandler == null || !uncrustifyHandler.getProcess().isAlive()) {
-                return false;
+            cancelled = true;
+            CompletableFuture<String> future = uncrustifyFuture;
+            return future != null && future.cancel(true);
+        }
+
+        @Override
+        public void supersede(boolean cancelComputation) {
+            cancelWhenSuperseded = cancelComputation;
+            superseded = true;
+            CompletableFuture<String> future = uncrustifyFuture;
+            if (cancelComputation && future != null) {
+                future.cancel(true);
+            }
+            textReady(null);
+        }
+
+        private void textReady(@Nullable String formattedText) {
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            finish();
+            try (UncrustifyTracer.Span ignored = UncrustifyTracer.start("onTextReady")) {
+                formattingRequest.onTextReady(formattedText);
+            }
+        }
+
+        private void error(@NotNull String title, @NotNull String message) {
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            finish();
+            formattingRequest.onError(title, message);
+        }
+
+        private void finish() {
+            if (document != null) {
+                UncrustifyRequestCoordinator.getInstance().end(document, this);
             }
-            uncrustifyHandler.destroyProcess();
-            return true;
         }
 
         private UncrustifySettingsState getSettings() {
             return UncrustifySettingsState.getInstance();
         }
 
-        protected void format(@NotNull String configPath, @NotNull String filename) {
+        protected void format(@NotNull String configPath, @NotNull String filename, @NotNull Charset charset) {
             String text = formattingRequest.getDocumentText();
+            UncrustifyFragment fragment = UncrustifyFragment.create(text, formattingRequest.getFormattingRanges());
+            if (fragment != null && fragment.getRange().isEmpty()) {
+                textReady(null);
+                return;
+            }
+            CharSequence input = fragment != null ? fragment.getText() : text;
+            String executablePath = getSettings().executablePath;
+
+            if (superseded) {
+                return;
+            }
+            CompletableFuture<String> future;
             try {
-                uncrustifyHandler = UncrustifyExecutable.executeWithProcessListener(
-                        getSettings().executablePath,
-                        List.of("-c", configPath, "--assume", filename),
-                        text,
-                        new CapturingProcessAdapter() {
-                            @Override
-                            public void processTerminated(@NotNull ProcessEvent event) {
-                                super.processTerminated(event);
-
-                                int exitCode = getOutput().getExitCode();
-                                if (exitCode != 0) {
-                                    log.warn(String.format("uncrustify exitCode: %d", exitCode));
-                                    log.warn(getOutput().getStdout());
-                                    log.warn(getOutput().getStderr());
-                                    formattingRequest.onError(UncrustifyBundle.message("uncrustify.process.error.title"),
-                                            String.format(UncrustifyBundle.message("uncrustify.process.error.exitCode"), exitCode));
-                                } else {
-                                    formattingRequest.onTextReady(getOutput().getStdout());
-                                }
-                            }
-                        },
-                        false);
-            } catch (ExecutionException e) {
-                log.warn("uncrustify service failed: " + e.getMessage());
-                log.debug(e);
-                formattingRequest.onError(UncrustifyBundle.message("uncrustify.process.error.title"),
-                        UncrustifyBundle.message("uncrustify.process.error.generalException"));
+                future = UncrustifyDaemon.getInstance().format(executablePath, configPath, filename, input, charset, fragment != null);
+            } catch (IOException e) {
+                reportException(e);
+                return;
+            }
+            uncrustifyFuture = future;
+            if (superseded && cancelWhenSuperseded) {
+                future.cancel(true);
             }
+            future.whenComplete((formattedText, throwable) -> {
+                Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                if (superseded) {
+                    return;
+                }
+                if (cause instanceof CancellationException) {
+                    if (cancelled) {
+                        finish();
+                    } else if (!retried) {
+                        // joined a shared computation that its last other waiter cancelled just before
+                        retried = true;
+                        format(configPath, filename, charset);
+                    } else {
+                        reportException(cause);
+                    }
+                    return;
+                }
+                if (cause instanceof UncrustifyProcessException) {
+                    UncrustifyProcessException e = (UncrustifyProcessException) cause;
+                    if (e.isTimedOut()) {
+                        error(UncrustifyBundle.message("uncrustify.process.error.title"),
+                                UncrustifyBundle.message("uncrustify.process.error.timeout"));
+                    } else {
+                        log.warn(String.format("uncrustify exitCode: %d", e.getExitCode()));
+                        log.warn(e.getStderr());
+                        error(UncrustifyBundle.message("uncrustify.process.error.title"),
+                                String.format(UncrustifyBundle.message("uncrustify.process.error.exitCode"), e.getExitCode()));
+                    }
+                } else if (cause != null) {
+                    reportException(cause);
+                } else if (fragment != null) {
+                    applyFormattedText(text, fragment.splice(formattedText));
+                } else {
+                    applyFormattedText(text, formattedText);
+                }
+            });
+        }
+
+        /**
+         * Formats {@code input} in this IDE instance, through {@link UncrustifyResultCache} and
+         * {@link UncrustifyResultStore}.
+         */
+        static @NotNull CompletableFuture<String> formatInProcess(
+                @NotNull String executablePath,
+                @NotNull String configPath,
+                @NotNull String filename,
+                @NotNull CharSequence input,
+                @NotNull Charset charset,
+                boolean fragment) throws IOException {
+            return formatInProcess(executablePath, configPath, filename, input, charset, fragment, UncrustifyScheduler.Lane.INTERACTIVE);
+        }
+
+        /**
+         * @param lane lane Uncrustify is started in if neither the cache nor the store has the result
+         */
+        static @NotNull CompletableFuture<String> formatInProcess(
+                @NotNull String executablePath,
+                @NotNull String configPath,
+                @NotNull String filename,
+                @NotNull CharSequence input,
+                @NotNull Charset charset,
+                boolean fragment,
+                @NotNull UncrustifyScheduler.Lane lane) throws IOException {
+            UncrustifyResultCache.Key key = new UncrustifyResultCache.Key(
+                    UncrustifyUtil.fingerprint(input),
+                    UncrustifyConfigFile.getFingerprint(configPath),
+                    UncrustifyExecutable.getIdentity(executablePath),
+                    FileUtilRt.getExtension(filename) + ":" + charset.name() + (fragment ? ":frag" : "")
+                            + (UncrustifyConfigFile.isFileNameDependent(configPath) ? ":" + filename : ""));
+            return UncrustifyResultCache.getInstance().get(
+                    key,
+                    () -> formatOrRestore(key, executablePath, configPath, filename, input, charset, fragment, lane));
+        }
+
+        /**
+         * Looks up {@link UncrustifyResultStore} before starting Uncrustify, and stores what Uncrustify produced.
+         */
+        private static @NotNull CompletableFuture<String> formatOrRestore(
+                @NotNull UncrustifyResultCache.Key key,
+                @NotNull String executablePath,
+                @NotNull String configPath,
+                @NotNull String filename,
+                @NotNull CharSequence input,
+                @NotNull Charset charset,
+                boolean fragment,
+                @NotNull UncrustifyScheduler.Lane lane) {
+            UncrustifyResultStore store = UncrustifyResultStore.getInstance();
+            String stored;
+            try (UncrustifyTracer.Span ignored = UncrustifyTracer.start("restoreResult", filename)) {
+                stored = store.get(key, input);
+            }
+            if (stored != null) {
+                return CompletableFuture.completedFuture(stored);
+            }
+            CompletableFuture<String> formattedText = startUncrustify(executablePath, configPath, filename, input, charset, fragment, lane);
+            formattedText.thenAcceptAsync(text -> store.put(key, input, text), AppExecutorUtil.getAppExecutorService());
+            return formattedText;
+        }
+
+        /**
+         * @return size in characters above which the input is passed to Uncrustify through files, see
+         * {@link UncrustifyExecutable#formatThroughFiles}
+         */
+        private static long getFileInputThreshold() {
+            return Registry.intValue("uncrustify.file.io.threshold.kb", 1024) * 1024L;
+        }
+
+        private static @NotNull CompletableFuture<String> startUncrustify(
+                @NotNull String executablePath,
+                @NotNull String configPath,
+                @NotNull String filename,
+                @NotNull CharSequence input,
+                @NotNull Charset charset,
+                boolean fragment,
+                @NotNull UncrustifyScheduler.Lane lane) {
+            if (input.length() > getFileInputThreshold()) {
+                // the scheduler cancels the process when the returned future is cancelled
+                return UncrustifyScheduler.getInstance().submit(lane, input.length(), () -> {
+                    try {
+                        return UncrustifyExecutable.formatThroughFiles(executablePath, configPath, filename, input, charset, fragment);
+                    } catch (ExecutionException | IOException e) {
+                        return CompletableFuture.failedFuture(e);
+                    }
+                });
+            }
+
+            // the scheduler cancels the process when the returned future is cancelled
+            CompletableFuture<UncrustifyProcessResult> process = UncrustifyScheduler.getInstance().submit(
+                    lane, input.length(), () -> {
+                        try {
+                            return UncrustifyExecutable.format(executablePath, configPath, filename, input, charset, fragment);
+                        } catch (ExecutionException e) {
+                            return CompletableFuture.failedFuture(e);
+                        }
+                    });
+            CompletableFuture<String> formattedText = process.thenApply(result -> {
+                if (!result.isSuccess()) {
+                    throw new UncrustifyProcessException(result);
+                }
+                return result.getStdout(charset);
+            });
+            formattedText.whenComplete((text, throwable) -> {
+                if (formattedText.isCancelled()) {
+                    process.cancel(true);
+                }
+            });
+            return formattedText;
+        }
+
+        private void reportException(@NotNull Throwable e) {
+            log.warn("uncrustify service failed: " + e.getMessage());
+            log.debug(e);
+            error(UncrustifyBundle.message("uncrustify.process.error.title"),
+                    UncrustifyBundle.message("uncrustify.process.error.generalException"));
+        }
+
+        /**
+         * Passes the formatted text to the platform, which applies it as part of the reformat command, so that it is
+         * undone together with it. Output equal to the input completes the request without a text, which leaves the
+         * document and its undo history untouched.
+         */
+        protected void applyFormattedText(@NotNull String originalText, @NotNull String formattedText) {
+            textReady(formattedText.equals(originalText) ? null : formattedText);
         }
 
         protected @NotNull String prepareConfig() throws IOException {
-            String path = UncrustifyConfigFile.getConfigPath(formattingRequest.getContext().getProject());
+            VirtualFile virtualFile = formattingRequest.getContext().getVirtualFile();
+            Project project = formattingRequest.getContext().getProject();
+            String path = virtualFile != null
+                    ? UncrustifyConfigFile.getConfigPath(project, virtualFile)
+                    : UncrustifyConfigFile.getConfigPath(project);
             if (path != null) {
                 return path;
             }
 
-            Path tempFilePath = FileUtil.createTempFile("ijuncrustify", ".cfg", true).toPath();
-            UncrustifyConfigFile.exportCodeStyle(tempFilePath, CodeStyle.getLanguageSettings(formattingRequest.getContext().getContainingFile()));
-            return tempFilePath.toString();
+            PsiFile file = formattingRequest.getContext().getContainingFile();
+            String slot = formattingRequest.getContext().getProject().getLocationHash() + ":" + file.getLanguage().getID();
+            return UncrustifyConfigStore.getInstance().getConfig(slot, CodeStyle.getLanguageSettings(file)).toString();
         }
 
         protected void format(@NotNull String configPath) {
             VirtualFile virtualFile = formattingRequest.getContext().getVirtualFile();
             if (virtualFile == null) {
                 log.warn("VirtualFile is null, cannot format. canFormat method should have prevented this.");
-                formattingRequest.onError(UncrustifyBundle.message("uncrustify.process.error.title"),
+                error(UncrustifyBundle.message("uncrustify.process.error.title"),
                         UncrustifyBundle.message("uncrustify.process.error.generalException"));
                 return;
             }
-            format(configPath, virtualFile.getName());
+            format(configPath, virtualFile.getName(), virtualFile.getCharset());
         }
 
         @Override
         public void run() {
+            UncrustifyMetrics.getInstance().recordQueueWait(System.nanoTime() - createdAt);
+            if (document != null && !UncrustifyRequestCoordinator.getInstance().begin(
+                    document, documentStamp, formattingRequest.getFormattingRanges(), this)) {
+                // a request for a newer state of the document is already running
+                textReady(null);
+                return;
+            }
             log.info("Running Uncrustify");
             try {
-                format(prepareConfig());
+                String configPath;
+                try (UncrustifyTracer.Span ignored = UncrustifyTracer.start("prepareConfig")) {
+                    configPath = prepareConfig();
+                }
+                format(configPath);
             } catch (IOException ex) {
                 log.warn("uncrustify service failed: " + ex.getMessage());
                 log.debug(ex);
-                formattingRequest.onError(UncrustifyBundle.message("uncrustify.process.error.title"),
+                error(UncrustifyBundle.message("uncrustify.process.error.title"),
                         UncrustifyBundle.message("uncrustify.process.error.generalException"));
             }
         }
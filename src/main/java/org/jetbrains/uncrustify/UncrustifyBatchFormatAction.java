@@ -0,0 +1,83 @@
+package org.jetbrains.uncrustify;
+
+import com.intellij.notification.NotificationGroupManager;
+import com.intellij.notification.NotificationType;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.CommonDataKeys;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.uncrustify.settings.UncrustifySettingsState;
+
+import java.util.List;
+
+/**
+ * Reformats all files Uncrustify supports in the selected files and directories, or in the whole project if nothing
+ * is selected, using {@link UncrustifyBatchFormatter}.
+ */
+public class UncrustifyBatchFormatAction extends AnAction {
+
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+        UncrustifySettingsState settings = UncrustifySettingsState.getInstance();
+        e.getPresentation().setEnabledAndVisible(e.getProject() != null
+                && settings.executablePath != null
+                && !settings.executablePath.isBlank());
+    }
+
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) {
+            return;
+        }
+
+        VirtualFile[] roots = e.getData(CommonDataKeys.VIRTUAL_FILE_ARRAY);
+        if (roots == null || roots.length == 0) {
+            VirtualFile projectDir = ProjectUtil.guessProjectDir(project);
+            if (projectDir == null) {
+                return;
+            }
+            roots = new VirtualFile[]{projectDir};
+        }
+
+        VirtualFile[] selected = roots;
+        ProgressManager.getInstance().run(new Task.Backgroundable(project, UncrustifyBundle.message("uncrustify.batch.progress.title"), true) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                UncrustifyBatchFormatter formatter = new UncrustifyBatchFormatter(
+                        project, UncrustifySettingsState.getInstance().batchWorkerCount);
+
+                indicator.setText(UncrustifyBundle.message("uncrustify.batch.progress.collecting"));
+                indicator.setIndeterminate(true);
+                List<VirtualFile> files = formatter.collectFiles(selected);
+                if (files.isEmpty()) {
+                    showSummary(project, UncrustifyBundle.message("uncrustify.batch.noFiles"), NotificationType.INFORMATION);
+                    return;
+                }
+
+                indicator.setText(UncrustifyBundle.message("uncrustify.batch.progress.formatting"));
+                indicator.setIndeterminate(false);
+                UncrustifyBatchFormatter.Statistics statistics = formatter.format(files, indicator);
+
+                showSummary(project,
+                        UncrustifyBundle.message("uncrustify.batch.summary",
+                                statistics.formatted, statistics.unchanged, statistics.failed,
+                                String.format("%.1f", statistics.millis / 1000.0)),
+                        statistics.failed > 0 ? NotificationType.WARNING : NotificationType.INFORMATION);
+            }
+        });
+    }
+
+    private static void showSummary(@NotNull Project project, @NotNull String content, @NotNull NotificationType type) {
+        NotificationGroupManager.getInstance()
+                .getNotificationGroup("Uncrustify Plugin")
+                .createNotification(UncrustifyBundle.message("uncrustify.batch.progress.title"), content, type)
+                .notify(project);
+    }
+}
@@ -0,0 +1,586 @@
+package org.jetbrains.uncrustify;
+
+import com.intellij.application.options.CodeStyle;
+import com.intellij.execution.ExecutionException;
+import com.intellij.lang.Language;
+import com.intellij.lang.LanguageUtil;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.uncrustify.settings.UncrustifySettingsState;
+import org.jetbrains.uncrustify.util.UncrustifyConfigFile;
+import org.jetbrains.uncrustify.util.UncrustifyConfigStore;
+import org.jetbrains.uncrustify.util.UncrustifyExecutable;
+import org.jetbrains.uncrustify.util.UncrustifyProcessResult;
+import org.jetbrains.uncrustify.util.UncrustifyScheduler;
+import org.jetbrains.uncrustify.util.UncrustifyTextDiff;
+import org.jetbrains.uncrustify.util.UncrustifyUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Formats many files with Uncrustify in parallel, e.g. a whole source tree.
+ * <p>
+ * Up to a fixed number of chunks are formatted at a time. Formatting is composed from the futures of the scheduled
+ * processes, so no thread waits for a process to finish. Formatted results are handed over to the calling thread and
+ * written in batches; no new chunks are started while too many results wait for being written, so that formatted files
+ * don't pile up in memory when writing can't keep up. Files with unsaved changes are formatted from and written to
+ * their documents, all other files are formatted straight from and to disk.
+ * <p>
+ * Files on disk that share a config are formatted in chunks, one Uncrustify process per chunk (see
+ * {@link UncrustifyExecutable#formatFiles}). If a chunk fails, its files are formatted one by one to find out which
+ * of them Uncrustify can't handle.
+ * <p>
+ * All processes go through the background lane of {@link UncrustifyScheduler} and run with a lowered priority, so that
+ * a large batch doesn't delay formatting in the editor.
+ */
+public class UncrustifyBatchFormatter {
+    private static final Logger log = Logger.getInstance(UncrustifyBatchFormatter.class);
+
+    private static final int WRITE_BATCH_SIZE = 32;
+    private static final int MAX_CHUNK_FILES = 64;
+    private static final long MAX_CHUNK_BYTES = 2 * 1024 * 1024;
+
+    private final Project myProject;
+    private final int myWorkerCount;
+    private final String myExecutablePath;
+    private final Map<String, String> myConfigPaths = new ConcurrentHashMap<>();
+
+    public static class Statistics {
+        public int formatted = 0;
+        public int unchanged = 0;
+        public int failed = 0;
+        public long bytes = 0;
+        public long millis = 0;
+    }
+
+    public UncrustifyBatchFormatter(@NotNull Project project, int workerCount) {
+        myProject = project;
+        myWorkerCount = Math.max(1, workerCount);
+        myExecutablePath = UncrustifySettingsState.getInstance().executablePath;
+    }
+
+    /**
+     * @return all project files under {@code roots} that Uncrustify can format
+     */
+    public @NotNull List<VirtualFile> collectFiles(VirtualFile @NotNull [] roots) {
+        ProjectFileIndex index = ProjectFileIndex.getInstance(myProject);
+        Set<VirtualFile> files = new LinkedHashSet<>();
+        for (VirtualFile root : roots) {
+            Deque<VirtualFile> pending = new ArrayDeque<>();
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                VirtualFile next = pending.pop();
+                // a short read action per directory rather than one for the whole tree, which would keep write
+                // actions waiting for as long as the walk takes
+                List<VirtualFile> directories = ReadAction.compute(() -> collectChildren(next, index, files));
+                for (int i = directories.size() - 1; i >= 0; i--) {
+                    pending.push(directories.get(i));
+                }
+            }
+        }
+        return new ArrayList<>(files);
+    }
+
+    /**
+     * Adds {@code file} or the files directly in it to {@code files}.
+     *
+     * @return subdirectories of {@code file} to be visited next
+     */
+    private static @NotNull List<VirtualFile> collectChildren(@NotNull VirtualFile file,
+                                                              @NotNull ProjectFileIndex index,
+                                                              @NotNull Set<VirtualFile> files) {
+        if (!file.isValid() || !isIncluded(file, index)) {
+            return Collections.emptyList();
+        }
+        if (!file.isDirectory()) {
+            if (UncrustifyUtil.isExtensionSupported(file.getName())) {
+                files.add(file);
+            }
+            return Collections.emptyList();
+        }
+
+        List<VirtualFile> directories = new ArrayList<>();
+        for (VirtualFile child : file.getChildren()) {
+            if (child.isDirectory()) {
+                directories.add(child);
+            } else if (isIncluded(child, index) && UncrustifyUtil.isExtensionSupported(child.getName())) {
+                files.add(child);
+            }
+        }
+        return directories;
+    }
+
+    private static boolean isIncluded(@NotNull VirtualFile file, @NotNull ProjectFileIndex index) {
+        return index.isInContent(file) && !index.isExcluded(file);
+    }
+
+    public @NotNull Statistics format(@NotNull List<VirtualFile> files, @NotNull ProgressIndicator indicator) {
+        Statistics statistics = new Statistics();
+        long startedAt = System.currentTimeMillis();
+        ExecutorService workers = AppExecutorUtil.createBoundedApplicationPoolExecutor("Uncrustify Batch", myWorkerCount);
+        Run run = new Run(createChunks(files), workers, indicator);
+        try {
+            run.startChunks();
+            List<Result> batch = new ArrayList<>(WRITE_BATCH_SIZE);
+            int done = 0;
+            while (done < files.size()) {
+                indicator.checkCanceled();
+                Result result = run.results.poll(100, TimeUnit.MILLISECONDS);
+                if (result == null) {
+                    continue;
+                }
+                batch.add(result);
+                run.results.drainTo(batch, WRITE_BATCH_SIZE - batch.size());
+                run.onTaken(batch.size());
+                done += batch.size();
+                write(batch, statistics);
+                batch.clear();
+
+                statistics.millis = System.currentTimeMillis() - startedAt;
+                reportProgress(indicator, done, files.size(), statistics);
+            }
+        } catch (InterruptedException e) {
+            throw new ProcessCanceledException(e);
+        } finally {
+            run.cancel();
+            workers.shutdownNow();
+            statistics.millis = System.currentTimeMillis() - startedAt;
+        }
+        return statistics;
+    }
+
+    private static void reportProgress(@NotNull ProgressIndicator indicator, int done, int total, @NotNull Statistics statistics) {
+        double seconds = Math.max(statistics.millis, 1) / 1000.0;
+        indicator.setFraction((double) done / total);
+        indicator.setText2(UncrustifyBundle.message("uncrustify.batch.progress.throughput",
+                done, total,
+                String.format("%.1f", done / seconds),
+                String.format("%.2f", statistics.bytes / seconds / (1024 * 1024))));
+    }
+
+    /**
+     * Groups files by their config into chunks that are small enough to be formatted by a single process each.
+     * Files whose config can't be determined get chunks of their own, so that they fail individually.
+     */
+    private @NotNull List<Chunk> createChunks(@NotNull List<VirtualFile> files) {
+        Map<String, Chunk> open = new LinkedHashMap<>();
+        List<Chunk> chunks = new ArrayList<>();
+        for (VirtualFile file : files) {
+            String configPath;
+            try {
+                configPath = getConfigPath(file);
+            } catch (IOException e) {
+                log.warn("Could not prepare Uncrustify config for " + file.getPath() + ": " + e.getMessage());
+                chunks.add(new Chunk(null, file));
+                continue;
+            }
+
+            Chunk chunk = open.get(configPath);
+            if (chunk == null || chunk.files.size() >= MAX_CHUNK_FILES || chunk.bytes + file.getLength() > MAX_CHUNK_BYTES) {
+                chunk = new Chunk(configPath, file);
+                open.put(configPath, chunk);
+                chunks.add(chunk);
+            } else {
+                chunk.add(file);
+            }
+        }
+        return chunks;
+    }
+
+    private @NotNull CompletableFuture<List<Result>> formatChunk(@NotNull Chunk chunk, @NotNull Run run) {
+        List<CompletableFuture<Result>> results = new ArrayList<>(chunk.files.size());
+        List<VirtualFile> onDisk = new ArrayList<>(chunk.files.size());
+        for (VirtualFile file : chunk.files) {
+            if (chunk.configPath == null || getUnsavedDocument(file) != null) {
+                results.add(formatFile(file, chunk.configPath, run));
+            } else {
+                onDisk.add(file);
+            }
+        }
+        if (onDisk.size() < 2) {
+            onDisk.forEach(file -> results.add(formatFile(file, chunk.configPath, run)));
+            return collect(results);
+        }
+
+        List<byte[]> contents = new ArrayList<>(onDisk.size());
+        CompletableFuture<List<byte[]>> outputs;
+        try {
+            List<String> names = new ArrayList<>(onDisk.size());
+            for (VirtualFile file : onDisk) {
+                names.add(file.getName());
+                contents.add(file.contentsToByteArray());
+            }
+            outputs = run.submit(chunk.bytes, () -> {
+                try {
+                    return UncrustifyExecutable.formatFiles(myExecutablePath, chunk.configPath, names, contents, true);
+                } catch (IOException | ExecutionException e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+            });
+        } catch (IOException e) {
+            outputs = CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<List<Result>> chunkResults = outputs.handleAsync((formatted, e) -> {
+            if (e != null) {
+                log.debug("Formatting " + onDisk.size() + " files in a single Uncrustify process failed, formatting them one by one: " + e.getMessage());
+                List<CompletableFuture<Result>> single = new ArrayList<>(onDisk.size());
+                onDisk.forEach(file -> single.add(formatFile(file, chunk.configPath, run)));
+                return collect(single);
+            }
+            List<Result> list = new ArrayList<>(onDisk.size());
+            for (int i = 0; i < onDisk.size(); i++) {
+                byte[] content = contents.get(i);
+                byte[] output = formatted.get(i);
+                list.add(Result.ofBytes(onDisk.get(i), content.length, Arrays.equals(content, output) ? null : output, output.length));
+            }
+            return CompletableFuture.completedFuture(list);
+        }, run.workers).thenCompose(Function.identity());
+        return collect(results).thenCombine(chunkResults, (documents, disk) -> {
+            List<Result> list = new ArrayList<>(documents);
+            list.addAll(disk);
+            return list;
+        });
+    }
+
+    private static @NotNull CompletableFuture<List<Result>> collect(@NotNull List<CompletableFuture<Result>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(v -> {
+            List<Result> results = new ArrayList<>(futures.size());
+            futures.forEach(f -> results.add(f.join()));
+            return results;
+        });
+    }
+
+    private static @Nullable Document getUnsavedDocument(@NotNull VirtualFile file) {
+        return ReadAction.compute(() -> {
+            FileDocumentManager manager = FileDocumentManager.getInstance();
+            Document cached = manager.getCachedDocument(file);
+            return cached != null && manager.isDocumentUnsaved(cached) ? cached : null;
+        });
+    }
+
+    /**
+     * @return never completes exceptionally: every file has to produce a result, otherwise the writer would wait for
+     * it forever
+     */
+    private @NotNull CompletableFuture<Result> formatFile(@NotNull VirtualFile file, @Nullable String configPath, @NotNull Run run) {
+        if (configPath == null) {
+            return CompletableFuture.completedFuture(Result.failed(file, null));
+        }
+        CompletableFuture<Result> result;
+        try {
+            Document document = getUnsavedDocument(file);
+            if (document != null) {
+                long stamp = ReadAction.compute(document::getModificationStamp);
+                CharSequence text = document.getImmutableCharSequence();
+                result = run.submit(text.length(), () -> {
+                    try {
+                        return UncrustifyExecutable.format(myExecutablePath, configPath, file.getName(), text, file.getCharset(), false, true);
+                    } catch (ExecutionException e) {
+                        return CompletableFuture.<UncrustifyProcessResult>failedFuture(e);
+                    }
+                }).thenApplyAsync(processResult -> {
+                    if (!processResult.isSuccess()) {
+                        return Result.failed(file, processResult);
+                    }
+                    String formatted = processResult.getStdout(file.getCharset());
+                    if (formatted.contentEquals(text)) {
+                        return Result.ofDocument(file, text.length(), document, stamp, null, null);
+                    }
+                    return Result.ofDocument(file, text.length(), document, stamp, formatted,
+                            UncrustifyTextDiff.compute(text.toString(), formatted));
+                }, run.workers);
+            } else {
+                byte[] content = file.contentsToByteArray();
+                result = run.submit(content.length, () -> {
+                    try {
+                        return UncrustifyExecutable.format(myExecutablePath, configPath, file.getName(), ByteBuffer.wrap(content), false, true);
+                    } catch (ExecutionException e) {
+                        return CompletableFuture.<UncrustifyProcessResult>failedFuture(e);
+                    }
+                }).thenApply(processResult -> {
+                    if (!processResult.isSuccess()) {
+                        return Result.failed(file, processResult);
+                    }
+                    BufferExposingByteArrayOutputStream formatted = processResult.getStdoutBytes();
+                    boolean unchanged = Arrays.equals(content, 0, content.length, formatted.getInternalBuffer(), 0, formatted.size());
+                    return Result.ofBytes(file, content.length, unchanged ? null : formatted.getInternalBuffer(), formatted.size());
+                });
+            }
+        } catch (IOException | RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        return result.exceptionally(e -> {
+            log.warn("Could not format " + file.getPath() + " with Uncrustify: " + e.getMessage());
+            return Result.failed(file, null);
+        });
+    }
+
+    /**
+     * @return path of the config {@code file} is formatted with, generated from the project's code style if the file
+     * has no config of its own
+     */
+    @NotNull String getConfigPath(@NotNull VirtualFile file) throws IOException {
+        String path = UncrustifyConfigFile.getConfigPath(myProject, file);
+        if (path != null) {
+            return path;
+        }
+
+        Language language = ReadAction.compute(() -> LanguageUtil.getFileLanguage(file));
+        String languageId = language != null ? language.getID() : Language.ANY.getID();
+        String generated = myConfigPaths.get(languageId);
+        if (generated == null) {
+            String slot = myProject.getLocationHash() + ":" + languageId;
+            generated = UncrustifyConfigStore.getInstance().getConfig(
+                    slot,
+                    CodeStyle.getSettings(myProject).getCommonSettings(language != null ? language : Language.ANY)).toString();
+            myConfigPaths.put(languageId, generated);
+        }
+        return generated;
+    }
+
+    private void write(@NotNull List<Result> batch, @NotNull Statistics statistics) {
+        List<Result> changed = new ArrayList<>();
+        for (Result result : batch) {
+            statistics.bytes += result.inputSize;
+            if (result.failed) {
+                statistics.failed++;
+            } else if (result.isUnchanged()) {
+                statistics.unchanged++;
+            } else {
+                changed.add(result);
+            }
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        ApplicationManager.getApplication().invokeAndWait(() -> WriteCommandAction.writeCommandAction(myProject)
+                .withName(UncrustifyBundle.message("uncrustify.command.reformat"))
+                .run(() -> {
+                    for (Result result : changed) {
+                        try {
+                            result.write(this);
+                            statistics.formatted++;
+                        } catch (IOException e) {
+                            log.warn("Could not write " + result.file.getPath() + ": " + e.getMessage());
+                            statistics.failed++;
+                        }
+                    }
+                }));
+    }
+
+    /**
+     * State of a single {@link #format} call: which chunks are being formatted and which results wait for being
+     * written.
+     */
+    private class Run {
+        private final List<Chunk> chunks;
+        private final ExecutorService workers;
+        private final ProgressIndicator indicator;
+        private final BlockingQueue<Result> results = new LinkedBlockingQueue<>();
+        private final Set<CompletableFuture<?>> submitted = ConcurrentHashMap.newKeySet();
+        private final int maxWaiting;
+
+        // guarded by this
+        private int next = 0;
+        private int running = 0;
+        private int waiting = 0;
+        private volatile boolean cancelled = false;
+
+        private Run(@NotNull List<Chunk> chunks, @NotNull ExecutorService workers, @NotNull ProgressIndicator indicator) {
+            this.chunks = chunks;
+            this.workers = workers;
+            this.indicator = indicator;
+            maxWaiting = Math.max(2 * myWorkerCount, MAX_CHUNK_FILES);
+        }
+
+        private synchronized void startChunks() {
+            while (!cancelled && !indicator.isCanceled() && next < chunks.size() && running < myWorkerCount && waiting < maxWaiting) {
+                Chunk chunk = chunks.get(next++);
+                running++;
+                // files and documents are read on a worker, only the processes are waited for asynchronously
+                CompletableFuture.supplyAsync(() -> formatChunk(chunk, this), workers)
+                        .thenCompose(Function.identity())
+                        .whenComplete((list, e) -> onChunkFormatted(chunk, list, e));
+            }
+        }
+
+        private void onChunkFormatted(@NotNull Chunk chunk, @Nullable List<Result> list, @Nullable Throwable e) {
+            if (list == null) {
+                if (!cancelled) {
+                    log.warn("Could not format " + chunk.files.size() + " files with Uncrustify", e);
+                }
+                list = new ArrayList<>(chunk.files.size());
+                for (VirtualFile file : chunk.files) {
+                    list.add(Result.failed(file, null));
+                }
+            }
+            synchronized (this) {
+                running--;
+                waiting += list.size();
+                results.addAll(list);
+            }
+            startChunks();
+        }
+
+        private void onTaken(int count) {
+            synchronized (this) {
+                waiting -= count;
+            }
+            startChunks();
+        }
+
+        private <T> @NotNull CompletableFuture<T> submit(long inputBytes, @NotNull Supplier<CompletableFuture<T>> work) {
+            CompletableFuture<T> future = UncrustifyScheduler.getInstance().submit(UncrustifyScheduler.Lane.BACKGROUND, inputBytes, work);
+            submitted.add(future);
+            future.whenComplete((r, e) -> submitted.remove(future));
+            if (cancelled) {
+                future.cancel(true);
+            }
+            return future;
+        }
+
+        private void cancel() {
+            cancelled = true;
+            // kills the processes that are still running
+            for (CompletableFuture<?> future : new ArrayList<>(submitted)) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static class Chunk {
+        private final @Nullable String configPath;
+        private final List<VirtualFile> files = new ArrayList<>();
+        private long bytes = 0;
+
+        private Chunk(@Nullable String configPath, @NotNull VirtualFile file) {
+            this.configPath = configPath;
+            add(file);
+        }
+
+        private void add(@NotNull VirtualFile file) {
+            files.add(file);
+            bytes += file.getLength();
+        }
+    }
+
+    private static class Result {
+        private final VirtualFile file;
+        private final long inputSize;
+        private final boolean failed;
+        private final @Nullable Document document;
+        private final long documentStamp;
+        private final @Nullable String formattedText;
+        private final @Nullable List<UncrustifyTextDiff.Hunk> hunks;
+        private final byte @Nullable [] formattedBytes;
+        private final int formattedLength;
+
+        private Result(@NotNull VirtualFile file,
+                       long inputSize,
+                       boolean failed,
+                       @Nullable Document document,
+                       long documentStamp,
+                       @Nullable String formattedText,
+                       @Nullable List<UncrustifyTextDiff.Hunk> hunks,
+                       byte @Nullable [] formattedBytes,
+                       int formattedLength) {
+            this.file = file;
+            this.inputSize = inputSize;
+            this.failed = failed;
+            this.document = document;
+            this.documentStamp = documentStamp;
+            this.formattedText = formattedText;
+            this.hunks = hunks;
+            this.formattedBytes = formattedBytes;
+            this.formattedLength = formattedLength;
+        }
+
+        /**
+         * @param hunks changes from the document's text to {@code formattedText}, {@code null} if they couldn't be
+         *              computed
+         */
+        private static @NotNull Result ofDocument(@NotNull VirtualFile file,
+                                                  long inputSize,
+                                                  @NotNull Document document,
+                                                  long documentStamp,
+                                                  @Nullable String formattedText,
+                                                  @Nullable List<UncrustifyTextDiff.Hunk> hunks) {
+            return new Result(file, inputSize, false, document, documentStamp, formattedText, hunks, null, 0);
+        }
+
+        private static @NotNull Result ofBytes(@NotNull VirtualFile file,
+                                               long inputSize,
+                                               byte @Nullable [] formattedBytes,
+                                               int formattedLength) {
+            return new Result(file, inputSize, false, null, 0, null, null, formattedBytes, formattedLength);
+        }
+
+        private static @NotNull Result failed(@NotNull VirtualFile file, @Nullable UncrustifyProcessResult result) {
+            if (result != null) {
+                log.warn(String.format("Uncrustify failed on %s (exit code %d, timed out: %b): %s",
+                        file.getPath(), result.getExitCode(), result.isTimedOut(), result.getStderr()));
+            }
+            return new Result(file, file.getLength(), true, null, 0, null, null, null, 0);
+        }
+
+        private boolean isUnchanged() {
+            return formattedText == null && formattedBytes == null;
+        }
+
+        private void write(@NotNull Object requestor) throws IOException {
+            if (document != null && formattedText != null) {
+                if (document.getModificationStamp() != documentStamp) {
+                    throw new IOException("the document was changed while it was being formatted");
+                }
+                if (hunks == null) {
+                    document.setText(formattedText);
+                    return;
+                }
+                // from the end, so that the offsets of the hunks before stay valid; keeps markers, folding and
+                // carets outside of the changed lines in place
+                for (int i = hunks.size() - 1; i >= 0; i--) {
+                    UncrustifyTextDiff.Hunk hunk = hunks.get(i);
+                    document.replaceString(hunk.getStartOffset(), hunk.getEndOffset(), hunk.getReplacement());
+                }
+            } else if (formattedBytes != null && file.isValid()) {
+                try (OutputStream out = file.getOutputStream(requestor)) {
+                    out.write(formattedBytes, 0, formattedLength);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package org.jetbrains.uncrustify;
+
+import com.google.gson.stream.JsonWriter;
+import com.intellij.ide.impl.ProjectUtil;
+import com.intellij.openapi.application.ApplicationStarter;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.uncrustify.settings.UncrustifySettingsState;
+import org.jetbrains.uncrustify.util.UncrustifyProcessException;
+import org.jetbrains.uncrustify.util.UncrustifyScheduler;
+import org.jetbrains.uncrustify.util.UncrustifyUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Formats or checks a source tree from the command line, with the same configs the plugin uses in the IDE, e.g. in
+ * CI:
+ * <pre>
+ * idea uncrustify [--check] [--shard i/n] [--jobs n] [--executable path] [--output report.json] project [paths...]
+ * </pre>
+ * The project is opened headless, so configs generated from its code style are the same as in the IDE, and files are
+ * formatted the same way the IDE formats them, sharing its result cache and store: like a document, the text is passed
+ * to Uncrustify with {@code \n} line separators, which are converted back to those of the file when it's written.
+ * Uncrustify runs in the {@link UncrustifyScheduler.Lane#BACKGROUND} lane, so {@code --jobs} is capped by its limit,
+ * the {@code uncrustify.scheduler.background.limit} registry key. Files are sorted by path and dealt
+ * to shards round-robin, so that {@code n} CI jobs with {@code --shard 0/n} to
+ * {@code --shard n-1/n} format every file exactly once. The results, including the time every file took, are written
+ * as JSON. The exit code is 0 on success, 1 if a file failed or, with {@code --check}, isn't formatted, and 2 for
+ * invalid arguments.
+ */
+public class UncrustifyCommandLineStarter implements ApplicationStarter {
+    private static final String COMMAND = "uncrustify";
+    private static final String USAGE = "Usage: " + COMMAND +
+            " [--check] [--shard i/n] [--jobs n] [--executable path] [--output report.json] project [paths...]";
+
+    private static final int EXIT_OK = 0;
+    private static final int EXIT_FAILED = 1;
+    private static final int EXIT_USAGE = 2;
+
+    static class Options {
+        boolean check = false;
+        int shard = 0;
+        int shards = 1;
+        int jobs = UncrustifyScheduler.Lane.BACKGROUND.getLimit();
+        @Nullable String executablePath;
+        @Nullable Path output;
+        Path project;
+        final List<Path> paths = new ArrayList<>();
+    }
+
+    private static class FileResult {
+        private final String path;
+        private String status;
+        private long nanos;
+        private long bytes;
+        private @Nullable String config;
+        private @Nullable String error;
+
+        private FileResult(@NotNull String path) {
+            this.path = path;
+        }
+    }
+
+    @Override
+    public @NotNull String getCommandName() {
+        return COMMAND;
+    }
+
+    @Override
+    public boolean isHeadless() {
+        return true;
+    }
+
+    @Override
+    public void main(@NotNull List<String> args) {
+        Options options;
+        try {
+            options = parse(args.subList(1, args.size()));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(EXIT_USAGE);
+            return;
+        }
+
+        int exitCode;
+        try {
+            exitCode = run(options);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            exitCode = EXIT_FAILED;
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * @param args arguments after the command name
+     * @throws IllegalArgumentException if the arguments are invalid, with a message for the user
+     */
+    static @NotNull Options parse(@NotNull List<String> args) {
+        Options options = new Options();
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            switch (arg) {
+                case "--check":
+                    options.check = true;
+                    break;
+                case "--shard": {
+                    String[] parts = value(args, ++i, arg).split("/");
+                    try {
+                        options.shard = Integer.parseInt(parts[0]);
+                        options.shards = parts.length == 2 ? Integer.parseInt(parts[1]) : -1;
+                    } catch (NumberFormatException e) {
+                        options.shards = -1;
+                    }
+                    if (options.shards < 1 || options.shard < 0 || options.shard >= options.shards) {
+                        throw new IllegalArgumentException("Invalid shard, expected i/n with 0 <= i < n: " + args.get(i));
+                    }
+                    break;
+                }
+                case "--jobs":
+                    try {
+                        options.jobs = Integer.parseInt(value(args, ++i, arg));
+                    } catch (NumberFormatException e) {
+                        options.jobs = 0;
+                    }
+                    if (options.jobs < 1) {
+                        throw new IllegalArgumentException("Invalid number of jobs: " + args.get(i));
+                    }
+                    break;
+                case "--executable":
+                    options.executablePath = value(args, ++i, arg);
+                    break;
+                case "--output":
+                    options.output = Path.of(value(args, ++i, arg)).toAbsolutePath();
+                    break;
+                default:
+                    if (arg.startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                    }
+                    if (options.project == null) {
+                        options.project = Path.of(arg).toAbsolutePath().normalize();
+                    } else {
+                        options.paths.add(options.project.resolve(arg).normalize());
+                    }
+            }
+        }
+        if (options.project == null) {
+            throw new IllegalArgumentException("No project given");
+        }
+        if (options.paths.isEmpty()) {
+            options.paths.add(options.project);
+        }
+        return options;
+    }
+
+    private static @NotNull String value(@NotNull List<String> args, int index, @NotNull String option) {
+        if (index >= args.size()) {
+            throw new IllegalArgumentException("Missing value of " + option);
+        }
+        return args.get(index);
+    }
+
+    private static int run(@NotNull Options options) throws IOException {
+        String executablePath = options.executablePath != null ? options.executablePath : UncrustifySettingsState.getInstance().executablePath;
+        if (executablePath == null || executablePath.isEmpty()) {
+            System.err.println("No Uncrustify executable configured, pass one with --executable");
+            return EXIT_USAGE;
+        }
+
+        Project project = ProjectUtil.openOrImport(options.project, null, false);
+        if (project == null) {
+            System.err.println("Could not open project " + options.project);
+            return EXIT_FAILED;
+        }
+        try {
+            VirtualFile[] roots = new VirtualFile[options.paths.size()];
+            for (int i = 0; i < roots.length; i++) {
+                roots[i] = LocalFileSystem.getInstance().refreshAndFindFileByNioFile(options.paths.get(i));
+                if (roots[i] == null) {
+                    System.err.println("No such file or directory: " + options.paths.get(i));
+                    return EXIT_USAGE;
+                }
+            }
+
+            UncrustifyBatchFormatter formatter = new UncrustifyBatchFormatter(project, options.jobs);
+            List<VirtualFile> files = formatter.collectFiles(roots);
+            if (files.isEmpty()) {
+                // the project model doesn't know the sources, e.g. a build that hasn't been imported
+                files = collectSupportedFiles(roots);
+            }
+            files.sort(Comparator.comparing(VirtualFile::getPath));
+            List<VirtualFile> shard = selectShard(files, options.shard, options.shards);
+
+            long startedAt = System.nanoTime();
+            List<FileResult> results = formatAll(formatter, executablePath, options, shard);
+            long elapsedNanos = System.nanoTime() - startedAt;
+
+            if (options.output != null) {
+                try (Writer writer = Files.newBufferedWriter(options.output, StandardCharsets.UTF_8)) {
+                    writeReport(writer, options, executablePath, results, elapsedNanos);
+                }
+            } else {
+                Writer writer = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+                writeReport(writer, options, executablePath, results, elapsedNanos);
+                writer.flush();
+            }
+            return results.stream().anyMatch(r -> !"unchanged".equals(r.status) && !"formatted".equals(r.status)) ? EXIT_FAILED : EXIT_OK;
+        } finally {
+            ProjectManager.getInstance().closeAndDispose(project);
+        }
+    }
+
+    /**
+     * @param sorted all files, in the same order for all shards
+     * @return every {@code shards}-th file, starting with the {@code shard}-th one
+     */
+    static <T> @NotNull List<T> selectShard(@NotNull List<T> sorted, int shard, int shards) {
+        List<T> selected = new ArrayList<>(sorted.size() / shards + 1);
+        for (int i = shard; i < sorted.size(); i += shards) {
+            selected.add(sorted.get(i));
+        }
+        return selected;
+    }
+
+    private static @NotNull List<VirtualFile> collectSupportedFiles(VirtualFile @NotNull [] roots) {
+        List<VirtualFile> files = new ArrayList<>();
+        for (VirtualFile root : roots) {
+            VfsUtilCore.iterateChildrenRecursively(root, file -> !file.getName().startsWith("."), file -> {
+                if (!file.isDirectory() && UncrustifyUtil.isExtensionSupported(file.getName())) {
+                    files.add(file);
+                }
+                return true;
+            });
+        }
+        return files;
+    }
+
+    private static @NotNull List<FileResult> formatAll(@NotNull UncrustifyBatchFormatter formatter,
+                                                       @NotNull String executablePath,
+                                                       @NotNull Options options,
+                                                       @NotNull List<VirtualFile> files) {
+        VirtualFile base = LocalFileSystem.getInstance().findFileByNioFile(options.project);
+        // more threads than the lane admits would only wait for the scheduler
+        int jobs = Math.min(options.jobs, UncrustifyScheduler.Lane.BACKGROUND.getLimit());
+        if (jobs < options.jobs) {
+            System.err.println("Running " + jobs + " jobs, the limit of uncrustify.scheduler.background.limit");
+        }
+        ExecutorService executor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Uncrustify Command Line", jobs);
+        List<Future<FileResult>> futures = new ArrayList<>(files.size());
+        for (VirtualFile file : files) {
+            String path = base != null && VfsUtilCore.isAncestor(base, file, false) ? VfsUtilCore.getRelativePath(file, base) : file.getPath();
+            futures.add(executor.submit(() -> formatFile(formatter, executablePath, options.check, file, new FileResult(path))));
+        }
+        List<FileResult> results = new ArrayList<>(files.size());
+        try {
+            for (Future<FileResult> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    private static @NotNull FileResult formatFile(@NotNull UncrustifyBatchFormatter formatter,
+                                                  @NotNull String executablePath,
+                                                  boolean check,
+                                                  @NotNull VirtualFile file,
+                                                  @NotNull FileResult result) {
+        long startedAt = System.nanoTime();
+        try {
+            result.config = formatter.getConfigPath(file);
+            result.bytes = file.getLength();
+            Charset charset = file.getCharset();
+            // the text of a document, without BOM and with \n line separators
+            String text = LoadTextUtil.loadText(file).toString();
+            String formatted;
+            try {
+                formatted = UncrustifyAsyncFormattingService.UncrustifyFormattingTask.formatInProcess(
+                        executablePath, result.config, file.getName(), text, charset, false, UncrustifyScheduler.Lane.BACKGROUND).get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null ? e.getCause().getCause() : e.getCause();
+                if (!(cause instanceof UncrustifyProcessException)) {
+                    throw new IOException(cause != null ? cause.getMessage() : e.getMessage(), cause);
+                }
+                UncrustifyProcessException failure = (UncrustifyProcessException) cause;
+                result.status = "failed";
+                result.error = failure.isTimedOut()
+                        ? "timed out"
+                        : "exit code " + failure.getExitCode() + ": " + failure.getStderr().trim();
+                return result;
+            }
+            if (formatted.equals(text)) {
+                result.status = "unchanged";
+            } else if (check) {
+                result.status = "not formatted";
+            } else {
+                write(file, formatted, charset);
+                result.status = "formatted";
+            }
+        } catch (IOException | RuntimeException e) {
+            result.status = "failed";
+            result.error = e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.status = "failed";
+            result.error = "interrupted";
+        } finally {
+            result.nanos = System.nanoTime() - startedAt;
+        }
+        return result;
+    }
+
+    /**
+     * Writes {@code text} like the IDE saves a document: with the line separators and the BOM the file had.
+     */
+    private static void write(@NotNull VirtualFile file, @NotNull String text, @NotNull Charset charset) throws IOException {
+        String separator = LoadTextUtil.detectLineSeparator(file, true);
+        if (separator != null && !"\n".equals(separator)) {
+            text = StringUtil.convertLineSeparators(text, separator);
+        }
+        try (OutputStream out = Files.newOutputStream(file.toNioPath())) {
+            byte[] bom = file.getBOM();
+            if (bom != null) {
+                out.write(bom);
+            }
+            out.write(text.getBytes(charset));
+        }
+    }
+
+    private static void writeReport(@NotNull Writer out,
+                                    @NotNull Options options,
+                                    @NotNull String executablePath,
+                                    @NotNull List<FileResult> results,
+                                    long elapsedNanos) throws IOException {
+        int unchanged = 0;
+        int changed = 0;
+        int failed = 0;
+        JsonWriter json = new JsonWriter(out);
+        json.setIndent("  ");
+        json.beginObject();
+        json.name("executable").value(executablePath);
+        json.name("mode").value(options.check ? "check" : "format");
+        json.name("shard").value(options.shard + "/" + options.shards);
+        json.name("files").beginArray();
+        for (FileResult result : results) {
+            if ("unchanged".equals(result.status)) {
+                unchanged++;
+            } else if ("failed".equals(result.status)) {
+                failed++;
+            } else {
+                changed++;
+            }
+            json.beginObject();
+            json.name("path").value(result.path);
+            json.name("status").value(result.status);
+            json.name("bytes").value(result.bytes);
+            json.name("millis").value(result.nanos / 1_000_000.0);
+            if (result.config != null) {
+                json.name("config").value(result.config);
+            }
+            if (result.error != null) {
+                json.name("error").value(result.error);
+            }
+            json.endObject();
+        }
+        json.endArray();
+        json.name("summary").beginObject();
+        json.name("total").value(results.size());
+        json.name(options.check ? "notFormatted" : "formatted").value(changed);
+        json.name("unchanged").value(unchanged);
+        json.name("failed").value(failed);
+        json.name("millis").value(elapsedNanos / 1_000_000.0);
+        json.endObject();
+        json.endObject();
+        json.flush();
+    }
+}
@@ -8,17 +8,18 @@ import java.io.Writer;
 public class UncrustifyConfigWriter extends Writer {
     public static final int DEFAULT_OPTION_ASSIGN_ALIGN = 32;
 
+    private static final char[] PADDING = " ".repeat(DEFAULT_OPTION_ASSIGN_ALIGN).toCharArray();
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
     private final Writer writer;
-    private final StringBuilder builder;
 
     public UncrustifyConfigWriter(@NotNull Writer out) {
         super(out);
         this.writer = out;
-        this.builder = new StringBuilder();
     }
 
     public static String lineSeparator() {
-        return System.lineSeparator();
+        return LINE_SEPARATOR;
     }
 
     public void newLine() throws IOException {
@@ -27,8 +28,8 @@ public class UncrustifyConfigWriter extends Writer {
 
     public void write_option(@NotNull String name, @NotNull String value) throws IOException {
         writer.write(name);
-        for (int i = 0; i < DEFAULT_OPTION_ASSIGN_ALIGN - name.length(); i++) {
-            writer.write(' ');
+        if (name.length() < DEFAULT_OPTION_ASSIGN_ALIGN) {
+            writer.write(PADDING, 0, DEFAULT_OPTION_ASSIGN_ALIGN - name.length());
         }
         writer.write("= ");
         writer.write(value);
@@ -36,14 +37,25 @@ public class UncrustifyConfigWriter extends Writer {
         newLine();
     }
 
+    /**
+     * Writes every line of {@code text} as a comment. Lines are split like {@link String#lines()} does.
+     */
     public void write_comment(@NotNull String text) throws IOException {
-        builder.setLength(0);
-        text.lines().forEach(l -> {
-            builder.append("# ");
-            builder.append(l);
-            builder.append(lineSeparator());
-        });
-        writer.write(builder.toString());
+        int start = 0;
+        int length = text.length();
+        while (start < length) {
+            int end = start;
+            while (end < length && text.charAt(end) != '\n' && text.charAt(end) != '\r') {
+                end++;
+            }
+            writer.write("# ");
+            writer.write(text, start, end - start);
+            writer.write(LINE_SEPARATOR);
+            if (end < length - 1 && text.charAt(end) == '\r' && text.charAt(end + 1) == '\n') {
+                end++;
+            }
+            start = end + 1;
+        }
     }
 
     @Override
@@ -0,0 +1,485 @@
+package org.jetbrains.uncrustify;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.ThrowableComputable;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.ConcurrencyUtil;
+import com.intellij.util.SystemProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.uncrustify.settings.UncrustifySettingsState;
+import org.jetbrains.uncrustify.util.UncrustifyConfigStore;
+import org.jetbrains.uncrustify.util.UncrustifyProcessException;
+import org.jetbrains.uncrustify.util.UncrustifyProcessResult;
+import org.jetbrains.uncrustify.util.UncrustifyProcessWatchdog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Optional formatting daemon shared by all IDE instances of the user, enabled by the {@value #REGISTRY_KEY} registry
+ * key.
+ * <p>
+ * The first instance that formats something becomes the host: it listens on a loopback port and publishes the port
+ * together with a random token in {@link #getPortFile()}. Other instances send their requests to the host, which
+ * serves them with its own result cache, result store, process pool and config parser, so that a file is formatted
+ * once for all instances. Requests have to present the token, which only the user can read, and the host only runs
+ * the executable configured in its own settings. Configs generated from code style settings are sent along with the
+ * request, since they live in the system directory of the requesting instance; other configs are read by the host.
+ * <p>
+ * Whenever the host can't serve a request, it is formatted in-process. Only an instance that finds no host listening
+ * becomes the new host. Closing the connection, e.g. by cancelling the request, cancels the request on the host.
+ */
+public class UncrustifyDaemon implements Disposable {
+    private static final Logger log = Logger.getInstance(UncrustifyDaemon.class);
+
+    public static final String REGISTRY_KEY = "uncrustify.daemon.enabled";
+
+    private static final int MAGIC = 0x55435259;
+    private static final int PROTOCOL_VERSION = 2;
+    private static final int MAX_MESSAGE_BYTES = 256 * 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 500;
+    private static final int REQUEST_TIMEOUT_MS = 10_000;
+
+    private static final byte STATUS_OK = 0;
+    private static final byte STATUS_PROCESS_FAILED = 1;
+    private static final byte STATUS_ERROR = 2;
+
+    private final Path myPortFile;
+    // dedicated, since accepting connections and waiting for responses blocks for as long as the daemon runs
+    private final ExecutorService myExecutor = Executors.newCachedThreadPool(
+            ConcurrencyUtil.newNamedThreadFactory("Uncrustify Daemon", true, Thread.NORM_PRIORITY));
+    private final AtomicLong myServedCount = new AtomicLong();
+    private @Nullable ServerSocket myServer;
+    private @Nullable String myToken;
+    private boolean myDisposed = false;
+
+    public UncrustifyDaemon() {
+        this(getPortFile());
+    }
+
+    public UncrustifyDaemon(@NotNull Path portFile) {
+        myPortFile = portFile;
+    }
+
+    public static UncrustifyDaemon getInstance() {
+        return ApplicationManager.getApplication().getService(UncrustifyDaemon.class);
+    }
+
+    public static @NotNull Path getPortFile() {
+        return Path.of(SystemProperties.getUserHome(), ".uncrustify-intellij", "daemon.port");
+    }
+
+    /**
+     * Formats {@code input} through the daemon if there is one, in-process otherwise. Cancelling the returned future
+     * cancels the request.
+     */
+    public @NotNull CompletableFuture<String> format(
+            @NotNull String executablePath,
+            @NotNull String configPath,
+            @NotNull String filename,
+            @NotNull CharSequence input,
+            @NotNull Charset charset,
+            boolean fragment) throws IOException {
+        if (Registry.is(REGISTRY_KEY, false) && !isHost()) {
+            Endpoint endpoint = readEndpoint();
+            Socket socket = endpoint != null ? connect(endpoint) : null;
+            if (socket == null) {
+                // nobody is listening, the host is gone without cleaning up or there has never been one
+                startHost();
+            } else {
+                try {
+                    socket.setSoTimeout(REQUEST_TIMEOUT_MS);
+                    sendRequest(socket, endpoint.token, executablePath, configPath, filename, input, charset, fragment);
+                    // the host may have to wait for a process and kills it only after the watchdog timeout
+                    socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE,
+                            2 * UncrustifyProcessWatchdog.getInstance().getTimeoutMs(input.length()) + REQUEST_TIMEOUT_MS));
+                    return receiveResponse(socket, () -> formatInProcess(executablePath, configPath, filename, input, charset, fragment));
+                } catch (IOException e) {
+                    log.debug("Uncrustify daemon at port " + endpoint.port + " failed, formatting in-process: " + e.getMessage());
+                    closeQuietly(socket);
+                }
+            }
+        }
+        return formatInProcess(executablePath, configPath, filename, input, charset, fragment);
+    }
+
+    private static @NotNull CompletableFuture<String> formatInProcess(
+            @NotNull String executablePath,
+            @NotNull String configPath,
+            @NotNull String filename,
+            @NotNull CharSequence input,
+            @NotNull Charset charset,
+            boolean fragment) throws IOException {
+        return UncrustifyAsyncFormattingService.UncrustifyFormattingTask.formatInProcess(
+                executablePath, configPath, filename, input, charset, fragment);
+    }
+
+    public synchronized boolean isHost() {
+        return myServer != null;
+    }
+
+    /**
+     * @return number of requests of other instances this instance has served as the host
+     */
+    public long getServedCount() {
+        return myServedCount.get();
+    }
+
+    private static @Nullable Socket connect(@NotNull Endpoint endpoint) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), endpoint.port), CONNECT_TIMEOUT_MS);
+            return socket;
+        } catch (IOException e) {
+            closeQuietly(socket);
+            return null;
+        }
+    }
+
+    private static void sendRequest(@NotNull Socket socket,
+                                    @NotNull String token,
+                                    @NotNull String executablePath,
+                                    @NotNull String configPath,
+                                    @NotNull String filename,
+                                    @NotNull CharSequence input,
+                                    @NotNull Charset charset,
+                                    boolean fragment) throws IOException {
+        Path config = Path.of(configPath);
+        boolean generated = UncrustifyConfigStore.getInstance().isGenerated(config);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeInt(MAGIC);
+        out.writeInt(PROTOCOL_VERSION);
+        out.writeUTF(token);
+        out.writeUTF(executablePath);
+        out.writeBoolean(generated);
+        if (generated) {
+            writeBytes(out, Files.readAllBytes(config));
+        } else {
+            out.writeUTF(configPath);
+        }
+        out.writeUTF(filename);
+        out.writeUTF(charset.name());
+        out.writeBoolean(fragment);
+        writeBytes(out, input.toString().getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * @param fallback formats the request in-process, used when the host fails to serve it
+     */
+    private @NotNull CompletableFuture<String> receiveResponse(@NotNull Socket socket, @NotNull ThrowableComputable<CompletableFuture<String>, IOException> fallback) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<String>> fallbackResult = new AtomicReference<>();
+        result.whenComplete((text, throwable) -> {
+            if (result.isCancelled()) {
+                // the host notices the closed connection and cancels the request
+                closeQuietly(socket);
+                CompletableFuture<String> running = fallbackResult.get();
+                if (running != null) {
+                    running.cancel(true);
+                }
+            }
+        });
+        myExecutor.execute(() -> {
+            try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                if (in.readInt() != MAGIC || in.readInt() != PROTOCOL_VERSION) {
+                    throw new IOException("Not an Uncrustify daemon");
+                }
+                byte status = in.readByte();
+                if (status == STATUS_OK) {
+                    result.complete(new String(readBytes(in), StandardCharsets.UTF_8));
+                    return;
+                }
+                if (status == STATUS_PROCESS_FAILED) {
+                    int exitCode = in.readInt();
+                    boolean timedOut = in.readBoolean();
+                    String stderr = new String(readBytes(in), StandardCharsets.UTF_8);
+                    result.completeExceptionally(new UncrustifyProcessException(
+                            new UncrustifyProcessResult(exitCode, new BufferExposingByteArrayOutputStream(0), stderr, timedOut)));
+                    return;
+                }
+                if (status == STATUS_ERROR) {
+                    throw new IOException(in.readUTF());
+                }
+                throw new IOException("Unknown status " + status);
+            } catch (IOException e) {
+                if (result.isDone()) {
+                    return;
+                }
+                log.debug("Uncrustify daemon failed, formatting in-process: " + e.getMessage());
+                try {
+                    CompletableFuture<String> running = fallback.compute();
+                    fallbackResult.set(running);
+                    if (result.isCancelled()) {
+                        running.cancel(true);
+                    }
+                    running.whenComplete((text, throwable) -> {
+                        if (throwable != null) {
+                            result.completeExceptionally(throwable);
+                        } else {
+                            result.complete(text);
+                        }
+                    });
+                } catch (IOException | RuntimeException fallbackFailure) {
+                    result.completeExceptionally(fallbackFailure);
+                }
+            }
+        });
+        return result;
+    }
+
+    private synchronized void startHost() {
+        if (myServer != null || myDisposed) {
+            return;
+        }
+        ServerSocket server = null;
+        try {
+            server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            byte[] random = new byte[32];
+            new SecureRandom().nextBytes(random);
+            String token = StringUtil.toHexString(random);
+            writePortFile(server.getLocalPort(), token);
+            myServer = server;
+            myToken = token;
+            log.info("Uncrustify daemon listening on port " + server.getLocalPort());
+        } catch (IOException e) {
+            log.warn("Could not start Uncrustify daemon: " + e.getMessage());
+            if (server != null) {
+                closeQuietly(server);
+            }
+            return;
+        }
+
+        ServerSocket listening = server;
+        myExecutor.execute(() -> {
+            while (!listening.isClosed()) {
+                try {
+                    Socket socket = listening.accept();
+                    myExecutor.execute(() -> serve(socket));
+                } catch (IOException e) {
+                    if (!listening.isClosed()) {
+                        log.warn("Uncrustify daemon stopped accepting requests: " + e.getMessage());
+                        closeQuietly(listening);
+                    }
+                } catch (RejectedExecutionException e) {
+                    // disposed
+                    closeQuietly(listening);
+                }
+            }
+        });
+    }
+
+    private void serve(@NotNull Socket socket) {
+        DataOutputStream out;
+        CompletableFuture<String> result;
+        try {
+            socket.setSoTimeout(REQUEST_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (in.readInt() != MAGIC || in.readInt() != PROTOCOL_VERSION || !isToken(in.readUTF())) {
+                closeQuietly(socket);
+                return;
+            }
+            String executablePath = in.readUTF();
+            boolean generated = in.readBoolean();
+            String configPath = generated
+                    ? UncrustifyConfigStore.getInstance().getConfig(readBytes(in)).toString()
+                    : in.readUTF();
+            String filename = in.readUTF();
+            Charset charset = Charset.forName(in.readUTF());
+            boolean fragment = in.readBoolean();
+            String input = new String(readBytes(in), StandardCharsets.UTF_8);
+
+            if (!isConfiguredExecutable(executablePath)) {
+                result = CompletableFuture.failedFuture(new IOException("Executable " + executablePath + " is not configured in the daemon"));
+            } else {
+                myServedCount.incrementAndGet();
+                result = formatInProcess(executablePath, configPath, filename, input, charset, fragment);
+                watchForCancellation(socket, in, result);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("Uncrustify daemon request failed: " + e.getMessage());
+            closeQuietly(socket);
+            return;
+        }
+
+        result.whenCompleteAsync((text, throwable) -> {
+            try (socket; out) {
+                out.writeInt(MAGIC);
+                out.writeInt(PROTOCOL_VERSION);
+                Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                if (cause == null) {
+                    out.writeByte(STATUS_OK);
+                    writeBytes(out, text.getBytes(StandardCharsets.UTF_8));
+                } else if (cause instanceof UncrustifyProcessException) {
+                    UncrustifyProcessException failure = (UncrustifyProcessException) cause;
+                    out.writeByte(STATUS_PROCESS_FAILED);
+                    out.writeInt(failure.getExitCode());
+                    out.writeBoolean(failure.isTimedOut());
+                    writeBytes(out, failure.getStderr().getBytes(StandardCharsets.UTF_8));
+                } else {
+                    out.writeByte(STATUS_ERROR);
+                    out.writeUTF(StringUtil.notNullize(cause.getMessage(), cause.getClass().getName()));
+                }
+            } catch (IOException e) {
+                // also when the request was cancelled
+                log.debug("Could not send Uncrustify daemon response: " + e.getMessage());
+            }
+        }, myExecutor);
+    }
+
+    /**
+     * Cancels {@code result} once the requesting instance closes the connection, which it only does when it is no
+     * longer interested in the result. Nothing else is sent by it after the request.
+     */
+    private void watchForCancellation(@NotNull Socket socket, @NotNull DataInputStream in, @NotNull CompletableFuture<String> result) {
+        myExecutor.execute(() -> {
+            while (!result.isDone()) {
+                try {
+                    if (in.read() < 0) {
+                        result.cancel(true);
+                        return;
+                    }
+                } catch (SocketTimeoutException e) {
+                    // still waiting for the result
+                } catch (IOException e) {
+                    // closed after the response was sent
+                    if (!result.isDone() && socket.isClosed()) {
+                        result.cancel(true);
+                    }
+                    return;
+                }
+            }
+        });
+    }
+
+    private static boolean isConfiguredExecutable(@NotNull String executablePath) {
+        String configured = UncrustifySettingsState.getInstance().executablePath;
+        if (StringUtil.isEmpty(configured)) {
+            return false;
+        }
+        if (configured.equals(executablePath)) {
+            return true;
+        }
+        try {
+            return Files.isSameFile(Path.of(configured), Path.of(executablePath));
+        } catch (IOException | InvalidPathException e) {
+            return false;
+        }
+    }
+
+    private synchronized boolean isToken(@NotNull String token) {
+        // constant time, so that the token can't be guessed from response times
+        return myToken != null && MessageDigest.isEqual(myToken.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writePortFile(int port, @NotNull String token) throws IOException {
+        Files.createDirectories(myPortFile.getParent());
+        Path tmp = Files.createTempFile(myPortFile.getParent(), "daemon", ".tmp");
+        try {
+            if (Files.getFileStore(tmp).supportsFileAttributeView("posix")) {
+                Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-------"));
+            }
+            Files.writeString(tmp, port + "\n" + token + "\n", StandardCharsets.UTF_8);
+            Files.move(tmp, myPortFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private @Nullable Endpoint readEndpoint() {
+        try {
+            List<String> lines = Files.readAllLines(myPortFile, StandardCharsets.UTF_8);
+            if (lines.size() < 2) {
+                return null;
+            }
+            return new Endpoint(Integer.parseInt(lines.get(0).trim()), lines.get(1).trim());
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void writeBytes(@NotNull DataOutputStream out, byte @NotNull [] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte @NotNull [] readBytes(@NotNull DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_MESSAGE_BYTES) {
+            throw new IOException("Invalid message length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void closeQuietly(@NotNull AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            log.debug(e);
+        }
+    }
+
+    @Override
+    public synchronized void dispose() {
+        myDisposed = true;
+        myExecutor.shutdownNow();
+        if (myServer == null) {
+            return;
+        }
+        closeQuietly(myServer);
+        myServer = null;
+        // another instance may have taken over in the meantime
+        Endpoint endpoint = readEndpoint();
+        if (endpoint != null && endpoint.token.equals(myToken)) {
+            try {
+                Files.deleteIfExists(myPortFile);
+            } catch (IOException e) {
+                log.debug("Could not delete " + myPortFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static class Endpoint {
+        private final int port;
+        private final String token;
+
+        private Endpoint(int port, @NotNull String token) {
+            this.port = port;
+            this.token = token;
+        }
+    }
+}
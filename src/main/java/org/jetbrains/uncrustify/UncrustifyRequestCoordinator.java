@@ -0,0 +1,108 @@
+package org.jetbrains.uncrustify;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.util.TextRange;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Makes sure that only the latest formatting request of a document applies its result.
+ * <p>
+ * When a request for a document arrives while another one is in flight (e.g. Reformat Code pressed twice, or
+ * reformat on save during an explicit reformat), the older request is superseded: it completes without changing the
+ * document. If the document changed in between, its Uncrustify process is cancelled; if not, both requests format the
+ * same text and the older process is left running, so that the newer request picks up its result from
+ * {@link org.jetbrains.uncrustify.util.UncrustifyResultCache} instead of starting another process. Requests for the
+ * same document state but other ranges don't supersede each other, since neither covers what the other formats. A
+ * request that arrives for an older document state than one in flight is dropped right away.
+ */
+public class UncrustifyRequestCoordinator {
+    private static final Logger log = Logger.getInstance(UncrustifyRequestCoordinator.class);
+
+    public interface Request {
+        /**
+         * Completes the request without changing the document.
+         *
+         * @param cancelComputation whether the request's Uncrustify process is of no use to the newer request
+         */
+        void supersede(boolean cancelComputation);
+    }
+
+    // document -> requests in flight, one per set of ranges
+    private final Map<Document, List<Entry>> myRequests = new HashMap<>();
+
+    public static UncrustifyRequestCoordinator getInstance() {
+        return ApplicationManager.getApplication().getService(UncrustifyRequestCoordinator.class);
+    }
+
+    /**
+     * Registers {@code request} as the latest one of {@code document} and supersedes the previous ones for an older
+     * state of the document or the same {@code ranges}, if any.
+     *
+     * @param stamp  modification stamp of the document the request's text was taken from
+     * @param ranges ranges of the document the request formats
+     * @return {@code false} if a request for a newer state of the document is already in flight, in which case
+     * {@code request} should complete without changing the document
+     */
+    public boolean begin(@NotNull Document document, long stamp, @NotNull List<TextRange> ranges, @NotNull Request request) {
+        List<Entry> superseded = new ArrayList<>();
+        synchronized (this) {
+            List<Entry> entries = myRequests.computeIfAbsent(document, k -> new ArrayList<>());
+            if (entries.stream().anyMatch(entry -> entry.stamp > stamp)) {
+                return false;
+            }
+            entries.removeIf(entry -> {
+                if (entry.stamp < stamp || entry.ranges.equals(ranges)) {
+                    superseded.add(entry);
+                    return true;
+                }
+                return false;
+            });
+            entries.add(new Entry(request, stamp, ranges));
+        }
+        for (Entry previous : superseded) {
+            log.debug("Uncrustify request superseded by a newer one for the same document");
+            previous.request.supersede(previous.stamp != stamp);
+        }
+        return true;
+    }
+
+    /**
+     * @return whether {@code request} is still a latest request of {@code document}
+     */
+    public synchronized boolean isCurrent(@NotNull Document document, @NotNull Request request) {
+        List<Entry> entries = myRequests.get(document);
+        return entries != null && entries.stream().anyMatch(entry -> entry.request == request);
+    }
+
+    /**
+     * Forgets {@code request} once it has completed, unless it has been superseded already.
+     */
+    public synchronized void end(@NotNull Document document, @NotNull Request request) {
+        List<Entry> entries = myRequests.get(document);
+        if (entries != null) {
+            entries.removeIf(entry -> entry.request == request);
+            if (entries.isEmpty()) {
+                myRequests.remove(document);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final Request request;
+        private final long stamp;
+        private final List<TextRange> ranges;
+
+        private Entry(@NotNull Request request, long stamp, @NotNull List<TextRange> ranges) {
+            this.request = request;
+            this.stamp = stamp;
+            this.ranges = List.copyOf(ranges);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.jetbrains.uncrustify.settings;
 
 import com.intellij.execution.ExecutionException;
 import com.intellij.icons.AllIcons;
+import com.intellij.openapi.Disposable;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.fileChooser.FileChooserDescriptorFactory;
 import com.intellij.openapi.project.Project;
@@ -9,6 +10,7 @@ import com.intellij.openapi.ui.DialogBuilder;
 import com.intellij.openapi.ui.TextFieldWithBrowseButton;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.HtmlChunk;
+import com.intellij.ui.JBIntSpinner;
 import com.intellij.ui.ScrollPaneFactory;
 import com.intellij.ui.components.JBLabel;
 import com.intellij.util.ui.GridBag;
@@ -33,12 +35,15 @@ public class UncrustifySettingsComponent {
 
     private final JPanel myMainPanel;
     private final TextFieldWithBrowseButton myExecutablePath = new TextFieldWithBrowseButton();
-    private final VersionVerifierComponent myVersionCheckField = new VersionVerifierComponent(myExecutablePath.getTextField().getDocument());
+    private final VersionVerifierComponent myVersionCheckField;
     private final TextFieldWithBrowseButton myConfigPath = new TextFieldWithBrowseButton();
-    private final ConfigVerifierComponent myConfigCheckField = new ConfigVerifierComponent(myConfigPath.getTextField().getDocument());
+    private final ConfigVerifierComponent myConfigCheckField;
     private final JBLabel myConfigExplanationLabel = new JBLabel();
+    private final JBIntSpinner myBatchWorkerCount = new JBIntSpinner(Runtime.getRuntime().availableProcessors(), 1, 64);
 
-    public UncrustifySettingsComponent(@Nullable Project project) {
+    public UncrustifySettingsComponent(@Nullable Project project, @NotNull Disposable parentDisposable) {
+        myVersionCheckField = new VersionVerifierComponent(myExecutablePath.getTextField().getDocument(), parentDisposable);
+        myConfigCheckField = new ConfigVerifierComponent(myConfigPath.getTextField().getDocument(), parentDisposable);
         myMainPanel = new JPanel(new GridBagLayout());
         GridBag bag = new GridBag()
                 .setDefaultWeightX(1, 1.0)
@@ -53,6 +58,8 @@ public class UncrustifySettingsComponent {
         myMainPanel.add(myConfigPath, bag.next().fillCell());
         myMainPanel.add(myConfigCheckField, bag.nextLine().next().next().insets(0, 5, -1, -1).fillCell());
         myMainPanel.add(myConfigExplanationLabel, bag.nextLine().next().next().fillCell());
+        myMainPanel.add(new JBLabel(UncrustifyBundle.message("uncrustify.settings.batchWorkerCount.label")), bag.nextLine().next());
+        myMainPanel.add(myBatchWorkerCount, bag.next().fillCellNone().anchor(GridBagConstraints.WEST));
         myMainPanel.add(Box.createVerticalGlue(), bag.nextLine().next().weighty(1.0).fillCell());
 
         myExecutablePath.addBrowseFolderListener(
@@ -126,10 +133,18 @@ public class UncrustifySettingsComponent {
         myConfigPath.setText(text);
     }
 
+    public int getBatchWorkerCount() {
+        return myBatchWorkerCount.getNumber();
+    }
+
+    public void setBatchWorkerCount(int count) {
+        myBatchWorkerCount.setNumber(count);
+    }
+
     private static class VersionVerifierComponent extends DocumentVerifierComponent {
 
-        public VersionVerifierComponent(@NotNull Document document) {
-            super(document);
+        public VersionVerifierComponent(@NotNull Document document, @NotNull Disposable parentDisposable) {
+            super(document, parentDisposable);
             setValid(false);
         }
 
@@ -157,17 +172,18 @@ public class UncrustifySettingsComponent {
                     setPathIsEmpty();
                 } else {
                     setDocumentIsBeingChecked();
+                    String path = getDocument().getText(0, getDocument().getLength());
                     UncrustifyExecutable.verify(
-                            getDocument().getText(0, getDocument().getLength()),
+                            path,
                             new UncrustifyExecutable.VerificationListener() {
                                 @Override
                                 public void onInvalid() {
-                                    setPathIsInvalid(UncrustifyBundle.message("uncrustify.settings.executableStatus.notUncrustify"));
+                                    updateIfCurrent(path, () -> setPathIsInvalid(UncrustifyBundle.message("uncrustify.settings.executableStatus.notUncrustify")));
                                 }
 
                                 @Override
                                 public void onValid(String version) {
-                                    setPathIsValid(version);
+                                    updateIfCurrent(path, () -> setPathIsValid(version));
                                 }
                             },
                             false);
@@ -183,8 +199,8 @@ public class UncrustifySettingsComponent {
     private class ConfigVerifierComponent extends DocumentVerifierComponent {
         private @Nullable Runnable hyperlinkListener = null;
 
-        public ConfigVerifierComponent(@NotNull Document document) {
-            super(document);
+        public ConfigVerifierComponent(@NotNull Document document, @NotNull Disposable parentDisposable) {
+            super(document, parentDisposable);
 
             this.addHyperlinkListener(e -> {
                 if (e.getEventType() == HyperlinkEvent.EventType.ACTIVATED) {
@@ -252,23 +268,25 @@ public class UncrustifySettingsComponent {
                             new UncrustifyConfigFile.VerificationListener() {
                                 @Override
                                 public void onInvalid(String output) {
-                                    setPathIsInvalidWithLink(UncrustifyBundle.message("uncrustify.settings.configStatus.fail"));
-
-                                    hyperlinkListener = () -> {
-                                        DialogBuilder dialogBuilder = new DialogBuilder(myConfigCheckField);
-                                        JTextArea textArea = new JTextArea(output, 20, 80);
-                                        dialogBuilder.setCenterPanel(ScrollPaneFactory.createScrollPane(textArea));
-                                        dialogBuilder.setPreferredFocusComponent(textArea);
-                                        dialogBuilder.setTitle(UncrustifyBundle.message("uncrustify.process.output.title"));
-                                        dialogBuilder.addCloseButton();
-
-                                        dialogBuilder.show();
-                                    };
+                                    updateIfCurrent(documentText, () -> {
+                                        setPathIsInvalidWithLink(UncrustifyBundle.message("uncrustify.settings.configStatus.fail"));
+
+                                        hyperlinkListener = () -> {
+                                            DialogBuilder dialogBuilder = new DialogBuilder(myConfigCheckField);
+                                            JTextArea textArea = new JTextArea(output, 20, 80);
+                                            dialogBuilder.setCenterPanel(ScrollPaneFactory.createScrollPane(textArea));
+                                            dialogBuilder.setPreferredFocusComponent(textArea);
+                                            dialogBuilder.setTitle(UncrustifyBundle.message("uncrustify.process.output.title"));
+                                            dialogBuilder.addCloseButton();
+
+                                            dialogBuilder.show();
+                                        };
+                                    });
                                 }
 
                                 @Override
                                 public void onValid() {
-                                    setPathIsValid();
+                                    updateIfCurrent(documentText, () -> setPathIsValid());
                                 }
                             },
                             false);
@@ -1,6 +1,8 @@
 package org.jetbrains.uncrustify.settings;
 
+import com.intellij.openapi.Disposable;
 import com.intellij.openapi.options.Configurable;
+import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.NlsContexts;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.uncrustify.UncrustifyBundle;
@@ -11,6 +13,7 @@ import javax.swing.*;
 public class UncrustifySettingsConfigurable implements Configurable {
 
     private UncrustifySettingsComponent mySettingsComponent;
+    private Disposable myDisposable;
 
     public UncrustifySettingsConfigurable() {}
 
@@ -21,15 +24,17 @@ public class UncrustifySettingsConfigurable implements Configurable {
 
     @Override
     public @Nullable JComponent createComponent() {
-        mySettingsComponent = new UncrustifySettingsComponent(null);
+        myDisposable = Disposer.newDisposable();
+        mySettingsComponent = new UncrustifySettingsComponent(null, myDisposable);
         return mySettingsComponent.getPanel();
     }
 
     @Override
     public boolean isModified() {
         UncrustifySettingsState settings = UncrustifySettingsState.getInstance();
-        boolean modified = !mySettingsComponent.getConfigPath().equals(settings.executablePath);
+        boolean modified = !mySettingsComponent.getConfigPath().equals(settings.configPath);
         modified |= !mySettingsComponent.getExecutablePath().equals(settings.executablePath);
+        modified |= mySettingsComponent.getBatchWorkerCount() != settings.batchWorkerCount;
         return modified;
     }
 
@@ -44,6 +49,7 @@ public class UncrustifySettingsConfigurable implements Configurable {
 
         settings.executablePath = mySettingsComponent.getExecutablePath();
         settings.configPath = mySettingsComponent.getConfigPath();
+        settings.batchWorkerCount = mySettingsComponent.getBatchWorkerCount();
     }
 
     @Override
@@ -51,10 +57,15 @@ public class UncrustifySettingsConfigurable implements Configurable {
         UncrustifySettingsState settings = UncrustifySettingsState.getInstance();
         mySettingsComponent.setExecutablePath(settings.executablePath);
         mySettingsComponent.setConfigPath(settings.configPath);
+        mySettingsComponent.setBatchWorkerCount(settings.batchWorkerCount);
     }
 
     @Override
     public void disposeUIResources() {
+        if (myDisposable != null) {
+            Disposer.dispose(myDisposable);
+            myDisposable = null;
+        }
         mySettingsComponent = null;
     }
 }
@@ -7,9 +7,13 @@ import com.intellij.openapi.components.State;
 import com.intellij.openapi.components.Storage;
 import com.intellij.openapi.project.Project;
 import com.intellij.util.xmlb.XmlSerializerUtil;
+import com.intellij.util.xmlb.annotations.XCollection;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @State(
         name = "UncrustifySettings",
         storages = {@Storage(value = "uncrustifyPluginSettings.xml", roamingType = RoamingType.DISABLED)}
@@ -17,6 +21,32 @@ import org.jetbrains.annotations.Nullable;
 public class UncrustifySettingsState implements PersistentStateComponent<UncrustifySettingsState> {
     public String executablePath = "";
     public String configPath = "";
+    public int batchWorkerCount = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Results of probing executables, so that an executable is run to find out its version only once, not every
+     * time the settings are opened or the IDE starts.
+     */
+    @XCollection(style = XCollection.Style.v2)
+    public List<ExecutableProbe> executableProbes = new ArrayList<>();
+
+    /**
+     * Version information of an executable file. Valid as long as the file at {@link #path} has the same size,
+     * modification time and file key (e.g. inode), i.e. hasn't been replaced.
+     */
+    public static class ExecutableProbe {
+        public String path = "";
+        public long size = 0;
+        public long modified = 0;
+        public String fileKey = "";
+
+        public String version = "";
+        public boolean debug = false;
+
+        public boolean matches(@NotNull String path, long size, long modified, @NotNull String fileKey) {
+            return this.path.equals(path) && this.size == size && this.modified == modified && this.fileKey.equals(fileKey);
+        }
+    }
 
     public static UncrustifySettingsState getInstance() {
         return ApplicationManager.getApplication().getService(UncrustifySettingsState.class);
@@ -1,22 +1,35 @@
 package org.jetbrains.uncrustify.ui;
 
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.ui.AnimatedIcon;
 import com.intellij.ui.DocumentAdapter;
 import com.intellij.ui.HyperlinkLabel;
+import com.intellij.util.Alarm;
 import org.jetbrains.annotations.NotNull;
 
 import javax.swing.event.DocumentEvent;
+import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
 
 abstract public class DocumentVerifierComponent extends HyperlinkLabel {
     public static final String DOCUMENT_VALID = "documentValid";
 
+    // delay between the last change of the document and its verification, so that typing a path verifies it only once
+    private static final int VERIFICATION_DELAY_MS = 300;
+
     private boolean myCheckedPathValid;
     private final @NotNull Document myCheckedDocument;
+    private final Alarm myVerificationAlarm;
 
-    public DocumentVerifierComponent(@NotNull Document document) {
+    /**
+     * @param parentDisposable disposed together with the UI the component is shown in, cancels pending verifications
+     */
+    public DocumentVerifierComponent(@NotNull Document document, @NotNull Disposable parentDisposable) {
         super();
         myCheckedDocument = document;
+        myVerificationAlarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, parentDisposable);
         document.addDocumentListener(new DocumentVerifierAdapter());
         verifyDocument();
     }
@@ -31,6 +44,26 @@ abstract public class DocumentVerifierComponent extends HyperlinkLabel {
         return myCheckedDocument;
     }
 
+    protected @NotNull String getDocumentText() {
+        try {
+            return myCheckedDocument.getText(0, myCheckedDocument.getLength());
+        } catch (BadLocationException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Runs {@code update} on the EDT, unless the document has changed since {@code verifiedText} was verified, so that
+     * results of a slow verification don't overwrite those of a newer one.
+     */
+    protected void updateIfCurrent(@NotNull String verifiedText, @NotNull Runnable update) {
+        ApplicationManager.getApplication().invokeLater(() -> {
+            if (verifiedText.equals(getDocumentText())) {
+                update.run();
+            }
+        }, ModalityState.any());
+    }
+
     public boolean isDocumentValid() {
         return myCheckedPathValid;
     }
@@ -46,7 +79,9 @@ abstract public class DocumentVerifierComponent extends HyperlinkLabel {
     public class DocumentVerifierAdapter extends DocumentAdapter {
         @Override
         protected void textChanged(@NotNull DocumentEvent e) {
-            verifyDocument();
+            setDocumentIsBeingChecked();
+            myVerificationAlarm.cancelAllRequests();
+            myVerificationAlarm.addRequest(DocumentVerifierComponent.this::verifyDocument, VERIFICATION_DELAY_MS);
         }
     }
 }
@@ -0,0 +1,126 @@
+package org.jetbrains.uncrustify.ui;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.NlsContexts;
+import com.intellij.openapi.wm.StatusBar;
+import com.intellij.openapi.wm.StatusBarWidget;
+import com.intellij.openapi.wm.StatusBarWidgetFactory;
+import com.intellij.util.Alarm;
+import com.intellij.util.Consumer;
+import org.jetbrains.annotations.Nls;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.uncrustify.UncrustifyBundle;
+import org.jetbrains.uncrustify.util.UncrustifyMetrics;
+
+import java.awt.*;
+import java.awt.event.MouseEvent;
+
+/**
+ * Status bar widget with the latency of formatting requests, see {@link UncrustifyMetrics}. Disabled by default, it
+ * can be enabled from the status bar's context menu.
+ */
+public class UncrustifyMetricsWidgetFactory implements StatusBarWidgetFactory {
+    private static final String ID = "UncrustifyMetrics";
+
+    @Override
+    public @NonNls @NotNull String getId() {
+        return ID;
+    }
+
+    @Override
+    public @Nls @NotNull String getDisplayName() {
+        return UncrustifyBundle.message("uncrustify.metrics.widget.displayName");
+    }
+
+    @Override
+    public boolean isAvailable(@NotNull Project project) {
+        return true;
+    }
+
+    @Override
+    public @NotNull StatusBarWidget createWidget(@NotNull Project project) {
+        return new Widget();
+    }
+
+    @Override
+    public void disposeWidget(@NotNull StatusBarWidget widget) {
+        Disposer.dispose(widget);
+    }
+
+    @Override
+    public boolean canBeEnabledOn(@NotNull StatusBar statusBar) {
+        return true;
+    }
+
+    @Override
+    public boolean isEnabledByDefault() {
+        return false;
+    }
+
+    private static class Widget implements StatusBarWidget, StatusBarWidget.TextPresentation {
+        private static final int UPDATE_INTERVAL_MS = 2000;
+
+        private final Alarm myUpdateAlarm = new Alarm(this);
+        private @Nullable StatusBar myStatusBar;
+
+        @Override
+        public @NonNls @NotNull String ID() {
+            return ID;
+        }
+
+        @Override
+        public @Nullable WidgetPresentation getPresentation() {
+            return this;
+        }
+
+        @Override
+        public void install(@NotNull StatusBar statusBar) {
+            myStatusBar = statusBar;
+            scheduleUpdate();
+        }
+
+        private void scheduleUpdate() {
+            myUpdateAlarm.addRequest(() -> {
+                StatusBar statusBar = myStatusBar;
+                if (statusBar != null) {
+                    statusBar.updateWidget(ID);
+                }
+                scheduleUpdate();
+            }, UPDATE_INTERVAL_MS);
+        }
+
+        @Override
+        public @NotNull String getText() {
+            UncrustifyMetrics metrics = UncrustifyMetrics.getInstance();
+            if (metrics.getRequestCount() == 0) {
+                return UncrustifyBundle.message("uncrustify.metrics.widget.idle");
+            }
+            return UncrustifyBundle.message("uncrustify.metrics.widget.text",
+                    String.format("%.0f", metrics.getTotalP50Ms()),
+                    String.format("%.0f", metrics.getTotalP95Ms()));
+        }
+
+        @Override
+        public float getAlignment() {
+            return Component.CENTER_ALIGNMENT;
+        }
+
+        @Override
+        public @Nullable @NlsContexts.Tooltip String getTooltipText() {
+            return UncrustifyMetrics.getInstance().getSummary();
+        }
+
+        @Override
+        public @Nullable Consumer<MouseEvent> getClickConsumer() {
+            return null;
+        }
+
+        @Override
+        public void dispose() {
+            myStatusBar = null;
+        }
+    }
+}
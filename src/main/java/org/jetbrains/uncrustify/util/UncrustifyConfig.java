@@ -0,0 +1,284 @@
+package org.jetbrains.uncrustify.util;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.uncrustify.UncrustifyConfigWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Typed in-memory model of an Uncrustify config generated from IntelliJ code style settings, see
+ * {@link UncrustifyConfigFile#createConfig}.
+ * <p>
+ * Values are kept as ints indexed by {@link Option}, so configs are cheap to build, compare and hash, and they are
+ * serialized from precomputed bytes without intermediate strings. The serialized form is the same as the one written
+ * by {@link UncrustifyConfigWriter}: options in declaration order, each followed by a blank line.
+ */
+public final class UncrustifyConfig {
+    public static final String HEADER = "Generated by org.jetbrains.uncrustify plugin from IntelliJ code style settings";
+
+    private static final int UNSET = Integer.MIN_VALUE;
+    private static final byte[] LINE_SEPARATOR = UncrustifyConfigWriter.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEADER_BYTES = ("# " + HEADER).getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+    public enum Keyword {
+        IGNORE, ADD, REMOVE, FORCE, LF, CRLF, CR, AUTO;
+
+        private final byte[] myBytes = name().toLowerCase(Locale.ROOT).getBytes(StandardCharsets.US_ASCII);
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * Options the plugin generates, in the order they are written.
+     */
+    public enum Option {
+        NEWLINES("newlines", UncrustifyOptionCatalog.Type.ENUM),
+
+        INDENT_CLASS("indent_class", UncrustifyOptionCatalog.Type.BOOLEAN),
+        INDENT_COLUMNS("indent_columns", UncrustifyOptionCatalog.Type.UNSIGNED),
+        INDENT_CONTINUE("indent_continue", UncrustifyOptionCatalog.Type.NUMBER),
+        INDENT_PARAM("indent_param", UncrustifyOptionCatalog.Type.UNSIGNED),
+        INDENT_SINGLE_NEWLINES("indent_single_newlines", UncrustifyOptionCatalog.Type.BOOLEAN),
+        INDENT_LABEL("indent_label", UncrustifyOptionCatalog.Type.NUMBER),
+
+        SP_ARITH_ADDITIVE("sp_arith_additive", UncrustifyOptionCatalog.Type.ENUM),
+        SP_ARITH("sp_arith", UncrustifyOptionCatalog.Type.ENUM),
+        SP_ASSIGN("sp_assign", UncrustifyOptionCatalog.Type.ENUM),
+        SP_BOOL("sp_bool", UncrustifyOptionCatalog.Type.ENUM),
+        SP_COMPARE("sp_compare", UncrustifyOptionCatalog.Type.ENUM),
+        SP_SIGN("sp_sign", UncrustifyOptionCatalog.Type.ENUM),
+        SP_INV("sp_inv", UncrustifyOptionCatalog.Type.ENUM),
+        SP_ADDR("sp_addr", UncrustifyOptionCatalog.Type.ENUM),
+        SP_INCDEC("sp_incdec", UncrustifyOptionCatalog.Type.ENUM),
+        SP_NOT("sp_not", UncrustifyOptionCatalog.Type.ENUM),
+        SP_DEREF("sp_deref", UncrustifyOptionCatalog.Type.ENUM),
+        SP_BEFORE_SEMI_FOR("sp_before_semi_for", UncrustifyOptionCatalog.Type.ENUM),
+        SP_BEFORE_SEMI_FOR_EMPTY("sp_before_semi_for_empty", UncrustifyOptionCatalog.Type.ENUM),
+        SP_AFTER_SEMI_FOR("sp_after_semi_for", UncrustifyOptionCatalog.Type.ENUM),
+        SP_AFTER_SEMI_FOR_EMPTY("sp_after_semi_for_empty", UncrustifyOptionCatalog.Type.ENUM),
+        SP_INSIDE_SPAREN("sp_inside_sparen", UncrustifyOptionCatalog.Type.ENUM),
+        SP_BEFORE_SPAREN("sp_before_sparen", UncrustifyOptionCatalog.Type.ENUM),
+        SP_WHILE_PAREN_OPEN("sp_while_paren_open", UncrustifyOptionCatalog.Type.ENUM),
+        SP_INSIDE_PAREN_CAST("sp_inside_paren_cast", UncrustifyOptionCatalog.Type.ENUM),
+        SP_AFTER_CAST("sp_after_cast", UncrustifyOptionCatalog.Type.ENUM),
+        SP_FUNC_PROTO_PAREN("sp_func_proto_paren", UncrustifyOptionCatalog.Type.ENUM),
+        SP_FUNC_PROTO_PAREN_EMPTY("sp_func_proto_paren_empty", UncrustifyOptionCatalog.Type.ENUM),
+        SP_FUNC_DEF_PAREN("sp_func_def_paren", UncrustifyOptionCatalog.Type.ENUM),
+        SP_FUNC_DEF_PAREN_EMPTY("sp_func_def_paren_empty", UncrustifyOptionCatalog.Type.ENUM),
+        SP_FPAREN_BRACE("sp_fparen_brace", UncrustifyOptionCatalog.Type.ENUM),
+        SP_FUNC_CALL_PAREN("sp_func_call_paren", UncrustifyOptionCatalog.Type.ENUM),
+        SP_INSIDE_FPAREN("sp_inside_fparen", UncrustifyOptionCatalog.Type.ENUM),
+        SP_INSIDE_FPARENS("sp_inside_fparens", UncrustifyOptionCatalog.Type.ENUM),
+        SP_INSIDE_PAREN("sp_inside_paren", UncrustifyOptionCatalog.Type.ENUM),
+        SP_PAREN_PAREN("sp_paren_paren", UncrustifyOptionCatalog.Type.ENUM),
+        SP_INSIDE_SQUARE("sp_inside_square", UncrustifyOptionCatalog.Type.ENUM),
+        SP_INSIDE_SQUARE_EMPTY("sp_inside_square_empty", UncrustifyOptionCatalog.Type.ENUM),
+        SP_SPAREN_BRACE("sp_sparen_brace", UncrustifyOptionCatalog.Type.ENUM),
+        SP_DO_BRACE_OPEN("sp_do_brace_open", UncrustifyOptionCatalog.Type.ENUM),
+        SP_TRY_BRACE("sp_try_brace", UncrustifyOptionCatalog.Type.ENUM),
+        SP_BRACE_CATCH("sp_brace_catch", UncrustifyOptionCatalog.Type.ENUM),
+        SP_BRACE_FINALLY("sp_brace_finally", UncrustifyOptionCatalog.Type.ENUM),
+        SP_FINALLY_BRACE("sp_finally_brace", UncrustifyOptionCatalog.Type.ENUM),
+        SP_BRACE_ELSE("sp_brace_else", UncrustifyOptionCatalog.Type.ENUM),
+        SP_ELSE_BRACE("sp_else_brace", UncrustifyOptionCatalog.Type.ENUM),
+        SP_COND_COLON_BEFORE("sp_cond_colon_before", UncrustifyOptionCatalog.Type.ENUM),
+        SP_COND_COLON_AFTER("sp_cond_colon_after", UncrustifyOptionCatalog.Type.ENUM),
+        SP_COND_QUESTION_BEFORE("sp_cond_question_before", UncrustifyOptionCatalog.Type.ENUM),
+        SP_COND_QUESTION_AFTER("sp_cond_question_after", UncrustifyOptionCatalog.Type.ENUM),
+
+        NL_START_OF_FILE("nl_start_of_file", UncrustifyOptionCatalog.Type.UNSIGNED),
+        NL_MAX("nl_max", UncrustifyOptionCatalog.Type.UNSIGNED),
+        NL_MAX_BLANK_IN_FUNC("nl_max_blank_in_func", UncrustifyOptionCatalog.Type.UNSIGNED),
+        NL_INSIDE_EMPTY_FUNC("nl_inside_empty_func", UncrustifyOptionCatalog.Type.UNSIGNED),
+        NL_BEFORE_FUNC_BODY_DEF("nl_before_func_body_def", UncrustifyOptionCatalog.Type.UNSIGNED),
+        NL_BEFORE_FUNC_CLASS_DEF("nl_before_func_class_def", UncrustifyOptionCatalog.Type.UNSIGNED),
+        NL_BEFORE_FUNC_CLASS_PROTO("nl_before_func_class_proto", UncrustifyOptionCatalog.Type.UNSIGNED),
+        NL_BEFORE_FUNC_BODY_PROTO("nl_before_func_body_proto", UncrustifyOptionCatalog.Type.UNSIGNED),
+        NL_BEFORE_CLASS("nl_before_class", UncrustifyOptionCatalog.Type.UNSIGNED),
+        NL_AFTER_CLASS("nl_after_class", UncrustifyOptionCatalog.Type.UNSIGNED);
+
+        private final String myName;
+        private final UncrustifyOptionCatalog.Type myType;
+        // name, padding and assignment, e.g. "indent_columns<spaces>= "
+        private final byte[] myPrefix;
+
+        Option(@NotNull String name, @NotNull UncrustifyOptionCatalog.Type type) {
+            myName = name;
+            myType = type;
+            int padding = Math.max(0, UncrustifyConfigWriter.DEFAULT_OPTION_ASSIGN_ALIGN - name.length());
+            myPrefix = (name + " ".repeat(padding) + "= ").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        public @NotNull String getName() {
+            return myName;
+        }
+
+        public @NotNull UncrustifyOptionCatalog.Type getType() {
+            return myType;
+        }
+    }
+
+    private static final Option[] OPTIONS = Option.values();
+    private static final Keyword[] KEYWORDS = Keyword.values();
+
+    private final int[] myValues = new int[OPTIONS.length];
+
+    public UncrustifyConfig() {
+        Arrays.fill(myValues, UNSET);
+    }
+
+    public @NotNull UncrustifyConfig set(@NotNull Option option, boolean value) {
+        checkType(option, UncrustifyOptionCatalog.Type.BOOLEAN);
+        myValues[option.ordinal()] = value ? 1 : 0;
+        return this;
+    }
+
+    public @NotNull UncrustifyConfig set(@NotNull Option option, int value) {
+        if (option.myType != UncrustifyOptionCatalog.Type.UNSIGNED) {
+            checkType(option, UncrustifyOptionCatalog.Type.NUMBER);
+        }
+        if (value == UNSET) {
+            throw new IllegalArgumentException(option.myName + " is out of range: " + value);
+        }
+        myValues[option.ordinal()] = value;
+        return this;
+    }
+
+    public @NotNull UncrustifyConfig set(@NotNull Option option, @NotNull Keyword value) {
+        checkType(option, UncrustifyOptionCatalog.Type.ENUM);
+        myValues[option.ordinal()] = value.ordinal();
+        return this;
+    }
+
+    private static void checkType(@NotNull Option option, @NotNull UncrustifyOptionCatalog.Type type) {
+        if (option.myType != type) {
+            throw new IllegalArgumentException(option.myName + " is " + option.myType + ", not " + type);
+        }
+    }
+
+    public boolean isSet(@NotNull Option option) {
+        return myValues[option.ordinal()] != UNSET;
+    }
+
+    /**
+     * @return the value of {@code option} as it is written to the config, {@code null} if it isn't set
+     */
+    public @Nullable String getValue(@NotNull Option option) {
+        int value = myValues[option.ordinal()];
+        if (value == UNSET) {
+            return null;
+        }
+        switch (option.myType) {
+            case BOOLEAN:
+                return String.valueOf(value != 0);
+            case ENUM:
+                return KEYWORDS[value].toString();
+            default:
+                return String.valueOf(value);
+        }
+    }
+
+    /**
+     * Writes the config to {@code out}. Only precomputed bytes and digits are written, so nothing is allocated when
+     * {@code out} is a reused buffer.
+     */
+    public void writeTo(@NotNull OutputStream out) throws IOException {
+        out.write(HEADER_BYTES);
+        out.write(LINE_SEPARATOR);
+        for (Option option : OPTIONS) {
+            int value = myValues[option.ordinal()];
+            if (value == UNSET) {
+                continue;
+            }
+            out.write(option.myPrefix);
+            switch (option.myType) {
+                case BOOLEAN:
+                    out.write(value != 0 ? TRUE : FALSE);
+                    break;
+                case ENUM:
+                    out.write(KEYWORDS[value].myBytes);
+                    break;
+                default:
+                    writeInt(out, value);
+            }
+            out.write(LINE_SEPARATOR);
+            out.write(LINE_SEPARATOR);
+        }
+    }
+
+    private static void writeInt(@NotNull OutputStream out, int value) throws IOException {
+        long v = value;
+        if (v < 0) {
+            out.write('-');
+            v = -v;
+        }
+        long divisor = 1;
+        while (divisor * 10 <= v) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.write((int) ('0' + v / divisor % 10));
+        }
+    }
+
+    public void write(@NotNull UncrustifyConfigWriter writer) throws IOException {
+        writer.write_comment(HEADER);
+        for (Option option : OPTIONS) {
+            String value = getValue(option);
+            if (value != null) {
+                writer.write_option(option.myName, value);
+            }
+        }
+    }
+
+    public byte @NotNull [] toByteArray() {
+        BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream(4096);
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the same fingerprint as {@link UncrustifyUtil#fingerprint(byte[])} of the serialized config
+     */
+    public @NotNull String fingerprint() {
+        BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream(4096);
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return UncrustifyUtil.fingerprint(out.getInternalBuffer(), 0, out.size());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(myValues, ((UncrustifyConfig) o).myValues);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(myValues);
+    }
+
+    @Override
+    public String toString() {
+        return new String(toByteArray(), StandardCharsets.US_ASCII);
+    }
+}
@@ -1,12 +1,11 @@
 package org.jetbrains.uncrustify.util;
 
 import com.intellij.execution.ExecutionException;
-import com.intellij.execution.process.CapturingProcessAdapter;
-import com.intellij.execution.process.ProcessEvent;
 import com.intellij.lang.Language;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.project.ProjectUtil;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.codeStyle.CodeStyleSettings;
 import com.intellij.psi.codeStyle.CommonCodeStyleSettings;
@@ -16,16 +15,17 @@ import org.jetbrains.annotations.Nullable;
 import org.jetbrains.uncrustify.UncrustifyConfigWriter;
 import org.jetbrains.uncrustify.settings.UncrustifySettingsState;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 public class UncrustifyConfigFile {
     private static final Logger log = Logger.getInstance(UncrustifyConfigFile.class);
@@ -58,10 +58,24 @@ public class UncrustifyConfigFile {
         return path;
     }
 
+    /**
+     * Same as {@link #getConfigPath(Project)}, except that the project's config is the one nearest to {@code file},
+     * i.e. a file named 'uncrustify.cfg' in the file's directory or any of its parents within the project, see
+     * {@link UncrustifyConfigResolver}.
+     */
+    public static @Nullable String getConfigPath(@NotNull Project project, @NotNull VirtualFile file) {
+        VirtualFile config = UncrustifyConfigResolver.getInstance(project).findConfig(file);
+        if (config != null) {
+            return config.getPath();
+        }
+
+        return getSettingConfigPath();
+    }
+
     public static @Nullable String getProjectConfigPath(@NotNull Project project) {
         VirtualFile projectDir = ProjectUtil.guessProjectDir(project);
         if (projectDir != null) {
-            VirtualFile projectConfig = projectDir.findChild(PROJECT_CONFIG_PATH);
+            VirtualFile projectConfig = UncrustifyConfigResolver.getInstance(project).findConfig(projectDir);
             if (projectConfig != null) {
                 return projectConfig.getPath();
             }
@@ -78,24 +92,89 @@ public class UncrustifyConfigFile {
         }
     }
 
+    /**
+     * @return fingerprint of the effective config at {@code configPath} including everything it includes, see
+     * {@link UncrustifyConfigParser}
+     */
+    public static @NotNull String getFingerprint(@NotNull String configPath) throws IOException {
+        return UncrustifyConfigParser.getInstance().getFingerprint(configPath);
+    }
+
+    /**
+     * @return whether Uncrustify needs the real name of the formatted file to format it with the config at
+     * {@code configPath}, see {@link UncrustifyConfigParser.EffectiveConfig#isFileNameDependent()}. A config that
+     * can't be read is assumed to need it.
+     */
+    public static boolean isFileNameDependent(@NotNull String configPath) {
+        try {
+            return UncrustifyConfigParser.getInstance().getEffectiveConfig(configPath).isFileNameDependent();
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Validates the config against the option catalog of the executable (see {@link UncrustifyOptionCatalog}), which
+     * reports problems with line numbers and doesn't need to run Uncrustify once the catalog is known. Only if the
+     * executable can't provide a catalog, the config is verified by formatting a snippet of code with it.
+     */
     public static void verify(@NotNull String executablePath, @NotNull String configPath, @NotNull VerificationListener listener, boolean block) throws ExecutionException {
-        UncrustifyExecutable.executeWithProcessListener(
+        CompletableFuture<Boolean> validated = UncrustifyOptionCatalog.get(executablePath)
+                .handle((catalog, t) -> catalog != null && validate(catalog, configPath, listener));
+        if (block) {
+            if (!validated.join()) {
+                verifyWithSnippet(executablePath, configPath, listener, true);
+            }
+        } else {
+            validated.thenAccept(done -> {
+                if (!done) {
+                    try {
+                        verifyWithSnippet(executablePath, configPath, listener, false);
+                    } catch (ExecutionException e) {
+                        listener.onInvalid(e.getMessage());
+                    }
+                }
+            });
+        }
+    }
+
+    private static boolean validate(@NotNull UncrustifyOptionCatalog catalog, @NotNull String configPath, @NotNull VerificationListener listener) {
+        String config;
+        try {
+            config = Files.readString(Path.of(configPath), StandardCharsets.UTF_8);
+        } catch (IOException | RuntimeException e) {
+            log.debug("Could not read " + configPath + ": " + e.getMessage());
+            return false;
+        }
+        List<UncrustifyOptionCatalog.Problem> problems = catalog.validate(config);
+        if (problems.isEmpty()) {
+            listener.onValid();
+        } else {
+            listener.onInvalid(StringUtil.join(problems, UncrustifyOptionCatalog.Problem::toString, "\n"));
+        }
+        return true;
+    }
+
+    private static void verifyWithSnippet(@NotNull String executablePath, @NotNull String configPath, @NotNull VerificationListener listener, boolean block) throws ExecutionException {
+        CompletableFuture<UncrustifyProcessResult> future = UncrustifyExecutable.execute(
                 executablePath,
                 List.of("-c", configPath, "-l", "JAVA"),
-                JAVA_SNIPPET,
-                new CapturingProcessAdapter() {
-                    public void processTerminated(@NotNull ProcessEvent event) {
-                        super.processTerminated(event);
-
-                        int exitCode = event.getExitCode();
-                        if (exitCode == 0) {
-                            listener.onValid();
-                        } else {
-                            listener.onInvalid(getOutput().getStderr());
-                        }
-                    }
-                },
-                block);
+                ByteBuffer.wrap(JAVA_SNIPPET.getBytes(StandardCharsets.UTF_8)));
+        if (block) {
+            notifyVerificationListener(listener, future.handle((r, t) -> r).join());
+        } else {
+            future.handle((r, t) -> r).thenAccept(r -> notifyVerificationListener(listener, r));
+        }
+    }
+
+    private static void notifyVerificationListener(@NotNull VerificationListener listener, @Nullable UncrustifyProcessResult result) {
+        if (result == null) {
+            listener.onInvalid("");
+        } else if (result.isSuccess()) {
+            listener.onValid();
+        } else {
+            listener.onInvalid(result.getStderr());
+        }
     }
 
     public static CommonCodeStyleSettings findRelevantCommonCodeStyleSettings(@NotNull CodeStyleSettings settings) {
@@ -110,31 +189,37 @@ public class UncrustifyConfigFile {
     public static void exportCodeStyle(
             @NotNull Path output,
             @NotNull CommonCodeStyleSettings settings) throws IOException {
-        try (UncrustifyConfigWriter writer = new UncrustifyConfigWriter(Files.newBufferedWriter(
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(
                 output,
-                Charset.defaultCharset(),
                 StandardOpenOption.WRITE,
                 StandardOpenOption.TRUNCATE_EXISTING,
                 StandardOpenOption.CREATE))
         ) {
-            exportCodeStyle(writer, settings);
+            createConfig(settings).writeTo(out);
         }
     }
 
     public static void exportCodeStyle(@NotNull UncrustifyConfigWriter writer, @NotNull CommonCodeStyleSettings settings) throws IOException {
-        writer.write_comment("Generated by org.jetbrains.uncrustify plugin from IntelliJ code style settings");
-        writer.write_option("newlines", "lf");
-        exportCommon(writer, settings);
+        createConfig(settings).write(writer);
     }
 
     public static void exportCodeStyle(@NotNull OutputStream outputStream, @NotNull CommonCodeStyleSettings settings) throws IOException {
-        try (UncrustifyConfigWriter writer = new UncrustifyConfigWriter(new BufferedWriter(new OutputStreamWriter(outputStream)))) {
-            exportCodeStyle(writer, settings);
-        }
+        createConfig(settings).writeTo(outputStream);
+        outputStream.flush();
+    }
+
+    /**
+     * @return Uncrustify config equivalent to {@code settings}, as far as Uncrustify supports them
+     */
+    public static @NotNull UncrustifyConfig createConfig(@NotNull CommonCodeStyleSettings settings) {
+        UncrustifyConfig config = new UncrustifyConfig();
+        config.set(UncrustifyConfig.Option.NEWLINES, UncrustifyConfig.Keyword.LF);
+        exportCommon(config, settings);
+        return config;
     }
 
     @Contract(pure = true)
-    private static @NotNull String sp_opt(boolean active) {
+    private static @NotNull UncrustifyConfig.Keyword sp_opt(boolean active) {
         /* From https://github.com/uncrustify/uncrustify/blob/master/src/space.cpp:
              "Ignore" means do not change it.
              "Add" in the context of spaces means make sure there is at least 1.
@@ -143,10 +228,10 @@ public class UncrustifyConfigFile {
              "Force" in the context of spaces means ensure that there is exactly 1.
              "Force" in other contexts means the same as "add".
         */
-        return active ? "force" : "remove";
+        return active ? UncrustifyConfig.Keyword.FORCE : UncrustifyConfig.Keyword.REMOVE;
     }
 
-    private static void exportCommon(@NotNull UncrustifyConfigWriter writer, @NotNull CommonCodeStyleSettings settings) throws IOException {
+    private static void exportCommon(@NotNull UncrustifyConfig config, @NotNull CommonCodeStyleSettings settings) {
 
         //TODO input_tab_size and output_tab_size, how do they work?
 
@@ -155,9 +240,9 @@ public class UncrustifyConfigFile {
         CommonCodeStyleSettings.IndentOptions opts = settings.getIndentOptions();
         assert opts != null : "No indenting options";
 
-        writer.write_option("indent_class", String.valueOf(!settings.DO_NOT_INDENT_TOP_LEVEL_CLASS_MEMBERS));
-        writer.write_option("indent_columns", String.valueOf(opts.INDENT_SIZE));
-        writer.write_option("indent_continue", String.valueOf(opts.CONTINUATION_INDENT_SIZE));
+        config.set(UncrustifyConfig.Option.INDENT_CLASS, !settings.DO_NOT_INDENT_TOP_LEVEL_CLASS_MEMBERS);
+        config.set(UncrustifyConfig.Option.INDENT_COLUMNS, opts.INDENT_SIZE);
+        config.set(UncrustifyConfig.Option.INDENT_CONTINUE, opts.CONTINUATION_INDENT_SIZE);
         //TODO Smart Tabs -- test this. It probably is not 100% the same behaviour.
         {
             int indent_with_tabs = 0;
@@ -167,116 +252,116 @@ public class UncrustifyConfigFile {
                     indent_with_tabs = 2;
                 }
             }
-            writer.write_option("indent_param", String.valueOf(indent_with_tabs));
+            config.set(UncrustifyConfig.Option.INDENT_PARAM, indent_with_tabs);
         }
-        writer.write_option("indent_single_newlines", String.valueOf(opts.KEEP_INDENTS_ON_EMPTY_LINES));
+        config.set(UncrustifyConfig.Option.INDENT_SINGLE_NEWLINES, opts.KEEP_INDENTS_ON_EMPTY_LINES);
         if (opts.LABEL_INDENT_ABSOLUTE) {
-            writer.write_option("indent_label", String.valueOf(opts.LABEL_INDENT_SIZE - 1));
+            config.set(UncrustifyConfig.Option.INDENT_LABEL, opts.LABEL_INDENT_SIZE - 1);
         } else {
             if (opts.LABEL_INDENT_SIZE > 0) {
                 log.warn(String.format(
                         "Uncrustify does not support relative label indents >0, truncating %d to 0",
                         opts.LABEL_INDENT_SIZE));
             }
-            writer.write_option("indent_label", String.valueOf(0));
+            config.set(UncrustifyConfig.Option.INDENT_LABEL, 0);
         }
         // end Indenting
 
         // start Spacing
         // Arithmetic operator options aren't as granular in Uncrustify as they are in IntelliJ
-        writer.write_option("sp_arith_additive", sp_opt(settings.SPACE_AROUND_ADDITIVE_OPERATORS));
+        config.set(UncrustifyConfig.Option.SP_ARITH_ADDITIVE, sp_opt(settings.SPACE_AROUND_ADDITIVE_OPERATORS));
         //   using multiplicative operators as the value, but sp_arith also controls shifts and bitwise operators
-        writer.write_option("sp_arith", sp_opt(settings.SPACE_AROUND_MULTIPLICATIVE_OPERATORS));
+        config.set(UncrustifyConfig.Option.SP_ARITH, sp_opt(settings.SPACE_AROUND_MULTIPLICATIVE_OPERATORS));
 
-        writer.write_option("sp_assign", sp_opt(settings.SPACE_AROUND_ASSIGNMENT_OPERATORS));
-        writer.write_option("sp_bool", sp_opt(settings.SPACE_AROUND_LOGICAL_OPERATORS));
-        writer.write_option("sp_compare", sp_opt(settings.SPACE_AROUND_RELATIONAL_OPERATORS));
+        config.set(UncrustifyConfig.Option.SP_ASSIGN, sp_opt(settings.SPACE_AROUND_ASSIGNMENT_OPERATORS));
+        config.set(UncrustifyConfig.Option.SP_BOOL, sp_opt(settings.SPACE_AROUND_LOGICAL_OPERATORS));
+        config.set(UncrustifyConfig.Option.SP_COMPARE, sp_opt(settings.SPACE_AROUND_RELATIONAL_OPERATORS));
         // SPACE_AROUND_UNARY_OPERATOR controls ~, !, -, +, --, ++, (* (deref) and & (address-of)?)
         // sp_sign controls unary -, +
-        writer.write_option("sp_sign", sp_opt(settings.SPACE_AROUND_UNARY_OPERATOR));
+        config.set(UncrustifyConfig.Option.SP_SIGN, sp_opt(settings.SPACE_AROUND_UNARY_OPERATOR));
         // sp_inv controls ~
-        writer.write_option("sp_inv", sp_opt(settings.SPACE_AROUND_UNARY_OPERATOR));
+        config.set(UncrustifyConfig.Option.SP_INV, sp_opt(settings.SPACE_AROUND_UNARY_OPERATOR));
         // sp_addr controls & (excluding type definitions, like const string& in C++)
-        writer.write_option("sp_addr", sp_opt(settings.SPACE_AROUND_UNARY_OPERATOR));
+        config.set(UncrustifyConfig.Option.SP_ADDR, sp_opt(settings.SPACE_AROUND_UNARY_OPERATOR));
         // sp_incdec controls --, ++ (post- and pre-)
-        writer.write_option("sp_incdec", sp_opt(settings.SPACE_AROUND_UNARY_OPERATOR));
+        config.set(UncrustifyConfig.Option.SP_INCDEC, sp_opt(settings.SPACE_AROUND_UNARY_OPERATOR));
         // sp_not controls !
-        writer.write_option("sp_not", sp_opt(settings.SPACE_AROUND_UNARY_OPERATOR));
+        config.set(UncrustifyConfig.Option.SP_NOT, sp_opt(settings.SPACE_AROUND_UNARY_OPERATOR));
         // sp_deref contorls unary *
-        writer.write_option("sp_deref", sp_opt(settings.SPACE_AROUND_UNARY_OPERATOR));
+        config.set(UncrustifyConfig.Option.SP_DEREF, sp_opt(settings.SPACE_AROUND_UNARY_OPERATOR));
 
-        writer.write_option("sp_before_semi_for", sp_opt(settings.SPACE_BEFORE_SEMICOLON));
-        writer.write_option("sp_before_semi_for_empty", sp_opt(settings.SPACE_BEFORE_SEMICOLON));
-        writer.write_option("sp_after_semi_for", sp_opt(settings.SPACE_AFTER_SEMICOLON));
-        writer.write_option("sp_after_semi_for_empty", sp_opt(settings.SPACE_AFTER_SEMICOLON));
+        config.set(UncrustifyConfig.Option.SP_BEFORE_SEMI_FOR, sp_opt(settings.SPACE_BEFORE_SEMICOLON));
+        config.set(UncrustifyConfig.Option.SP_BEFORE_SEMI_FOR_EMPTY, sp_opt(settings.SPACE_BEFORE_SEMICOLON));
+        config.set(UncrustifyConfig.Option.SP_AFTER_SEMI_FOR, sp_opt(settings.SPACE_AFTER_SEMICOLON));
+        config.set(UncrustifyConfig.Option.SP_AFTER_SEMI_FOR_EMPTY, sp_opt(settings.SPACE_AFTER_SEMICOLON));
 
         // sp_inside_sparen also affects for, switch, while, etc.
-        writer.write_option("sp_inside_sparen", sp_opt(settings.SPACE_WITHIN_IF_PARENTHESES));
+        config.set(UncrustifyConfig.Option.SP_INSIDE_SPAREN, sp_opt(settings.SPACE_WITHIN_IF_PARENTHESES));
 
         // sp_before_sparen also affects for, switch, while, etc.
-        writer.write_option("sp_before_sparen", sp_opt(settings.SPACE_BEFORE_IF_PARENTHESES));
+        config.set(UncrustifyConfig.Option.SP_BEFORE_SPAREN, sp_opt(settings.SPACE_BEFORE_IF_PARENTHESES));
         // although for 'while' specifically, it is overrideable
-        writer.write_option("sp_while_paren_open", sp_opt(settings.SPACE_BEFORE_WHILE_PARENTHESES));
+        config.set(UncrustifyConfig.Option.SP_WHILE_PAREN_OPEN, sp_opt(settings.SPACE_BEFORE_WHILE_PARENTHESES));
 
-        writer.write_option("sp_inside_paren_cast", sp_opt(settings.SPACE_WITHIN_CAST_PARENTHESES));
-        writer.write_option("sp_after_cast", sp_opt(settings.SPACE_AFTER_TYPE_CAST));
+        config.set(UncrustifyConfig.Option.SP_INSIDE_PAREN_CAST, sp_opt(settings.SPACE_WITHIN_CAST_PARENTHESES));
+        config.set(UncrustifyConfig.Option.SP_AFTER_CAST, sp_opt(settings.SPACE_AFTER_TYPE_CAST));
 
-        writer.write_option("sp_func_proto_paren", sp_opt(settings.SPACE_BEFORE_METHOD_PARENTHESES));
-        writer.write_option("sp_func_proto_paren_empty", sp_opt(settings.SPACE_BEFORE_METHOD_PARENTHESES));
-        writer.write_option("sp_func_def_paren", sp_opt(settings.SPACE_BEFORE_METHOD_PARENTHESES));
-        writer.write_option("sp_func_def_paren_empty", sp_opt(settings.SPACE_BEFORE_METHOD_PARENTHESES));
+        config.set(UncrustifyConfig.Option.SP_FUNC_PROTO_PAREN, sp_opt(settings.SPACE_BEFORE_METHOD_PARENTHESES));
+        config.set(UncrustifyConfig.Option.SP_FUNC_PROTO_PAREN_EMPTY, sp_opt(settings.SPACE_BEFORE_METHOD_PARENTHESES));
+        config.set(UncrustifyConfig.Option.SP_FUNC_DEF_PAREN, sp_opt(settings.SPACE_BEFORE_METHOD_PARENTHESES));
+        config.set(UncrustifyConfig.Option.SP_FUNC_DEF_PAREN_EMPTY, sp_opt(settings.SPACE_BEFORE_METHOD_PARENTHESES));
 
-        writer.write_option("sp_fparen_brace", sp_opt(settings.SPACE_BEFORE_METHOD_LBRACE));
-        writer.write_option("sp_func_call_paren", sp_opt(settings.SPACE_BEFORE_METHOD_CALL_PARENTHESES));
+        config.set(UncrustifyConfig.Option.SP_FPAREN_BRACE, sp_opt(settings.SPACE_BEFORE_METHOD_LBRACE));
+        config.set(UncrustifyConfig.Option.SP_FUNC_CALL_PAREN, sp_opt(settings.SPACE_BEFORE_METHOD_CALL_PARENTHESES));
 
-        writer.write_option("sp_inside_fparen", sp_opt(settings.SPACE_WITHIN_METHOD_PARENTHESES));
-        writer.write_option("sp_inside_fparens", sp_opt(settings.SPACE_WITHIN_METHOD_PARENTHESES));
+        config.set(UncrustifyConfig.Option.SP_INSIDE_FPAREN, sp_opt(settings.SPACE_WITHIN_METHOD_PARENTHESES));
+        config.set(UncrustifyConfig.Option.SP_INSIDE_FPARENS, sp_opt(settings.SPACE_WITHIN_METHOD_PARENTHESES));
 
-        writer.write_option("sp_inside_paren", sp_opt(settings.SPACE_WITHIN_PARENTHESES));
-        writer.write_option("sp_paren_paren", sp_opt(settings.SPACE_WITHIN_PARENTHESES));
+        config.set(UncrustifyConfig.Option.SP_INSIDE_PAREN, sp_opt(settings.SPACE_WITHIN_PARENTHESES));
+        config.set(UncrustifyConfig.Option.SP_PAREN_PAREN, sp_opt(settings.SPACE_WITHIN_PARENTHESES));
 
-        writer.write_option("sp_inside_square", sp_opt(settings.SPACE_WITHIN_BRACKETS));
-        writer.write_option("sp_inside_square_empty", sp_opt(false));
+        config.set(UncrustifyConfig.Option.SP_INSIDE_SQUARE, sp_opt(settings.SPACE_WITHIN_BRACKETS));
+        config.set(UncrustifyConfig.Option.SP_INSIDE_SQUARE_EMPTY, sp_opt(false));
 
         // sp_sparen_brace controls all control statements (if, for, switch, while, etc.)
-        writer.write_option("sp_sparen_brace", sp_opt(settings.SPACE_BEFORE_IF_LBRACE));
-        writer.write_option("sp_do_brace_open", sp_opt(settings.SPACE_BEFORE_DO_LBRACE));
-        writer.write_option("sp_try_brace", sp_opt(settings.SPACE_BEFORE_TRY_LBRACE));
+        config.set(UncrustifyConfig.Option.SP_SPAREN_BRACE, sp_opt(settings.SPACE_BEFORE_IF_LBRACE));
+        config.set(UncrustifyConfig.Option.SP_DO_BRACE_OPEN, sp_opt(settings.SPACE_BEFORE_DO_LBRACE));
+        config.set(UncrustifyConfig.Option.SP_TRY_BRACE, sp_opt(settings.SPACE_BEFORE_TRY_LBRACE));
 
-        writer.write_option("sp_brace_catch", sp_opt(settings.SPACE_BEFORE_CATCH_KEYWORD));
-        writer.write_option("sp_brace_finally", sp_opt(settings.SPACE_BEFORE_FINALLY_KEYWORD));
-        writer.write_option("sp_finally_brace", sp_opt(settings.SPACE_BEFORE_FINALLY_LBRACE));
-        writer.write_option("sp_brace_else", sp_opt(settings.SPACE_BEFORE_ELSE_KEYWORD));
-        writer.write_option("sp_else_brace", sp_opt(settings.SPACE_BEFORE_ELSE_LBRACE));
+        config.set(UncrustifyConfig.Option.SP_BRACE_CATCH, sp_opt(settings.SPACE_BEFORE_CATCH_KEYWORD));
+        config.set(UncrustifyConfig.Option.SP_BRACE_FINALLY, sp_opt(settings.SPACE_BEFORE_FINALLY_KEYWORD));
+        config.set(UncrustifyConfig.Option.SP_FINALLY_BRACE, sp_opt(settings.SPACE_BEFORE_FINALLY_LBRACE));
+        config.set(UncrustifyConfig.Option.SP_BRACE_ELSE, sp_opt(settings.SPACE_BEFORE_ELSE_KEYWORD));
+        config.set(UncrustifyConfig.Option.SP_ELSE_BRACE, sp_opt(settings.SPACE_BEFORE_ELSE_LBRACE));
 
         // Ternary Operator spacings
-        writer.write_option("sp_cond_colon_before", sp_opt(settings.SPACE_BEFORE_COLON));
-        writer.write_option("sp_cond_colon_after", sp_opt(settings.SPACE_AFTER_COLON));
-        writer.write_option("sp_cond_question_before", sp_opt(settings.SPACE_BEFORE_QUEST));
-        writer.write_option("sp_cond_question_after", sp_opt(settings.SPACE_AFTER_QUEST));
+        config.set(UncrustifyConfig.Option.SP_COND_COLON_BEFORE, sp_opt(settings.SPACE_BEFORE_COLON));
+        config.set(UncrustifyConfig.Option.SP_COND_COLON_AFTER, sp_opt(settings.SPACE_AFTER_COLON));
+        config.set(UncrustifyConfig.Option.SP_COND_QUESTION_BEFORE, sp_opt(settings.SPACE_BEFORE_QUEST));
+        config.set(UncrustifyConfig.Option.SP_COND_QUESTION_AFTER, sp_opt(settings.SPACE_AFTER_QUEST));
 
-        writer.write_option("nl_start_of_file", String.valueOf(settings.BLANK_LINES_BEFORE_PACKAGE));
+        config.set(UncrustifyConfig.Option.NL_START_OF_FILE, settings.BLANK_LINES_BEFORE_PACKAGE);
 
-        writer.write_option("nl_max", String.valueOf(UncrustifyUtil.max(
+        config.set(UncrustifyConfig.Option.NL_MAX, UncrustifyUtil.max(
                 settings.KEEP_BLANK_LINES_IN_DECLARATIONS,
                 settings.KEEP_BLANK_LINES_IN_CODE,
-                settings.KEEP_BLANK_LINES_BETWEEN_PACKAGE_DECLARATION_AND_HEADER)+1));
+                settings.KEEP_BLANK_LINES_BETWEEN_PACKAGE_DECLARATION_AND_HEADER)+1);
 
-        writer.write_option("nl_max_blank_in_func", String.valueOf(settings.KEEP_BLANK_LINES_IN_CODE+1));
-        writer.write_option("nl_inside_empty_func", String.valueOf(settings.KEEP_BLANK_LINES_IN_CODE+1));
+        config.set(UncrustifyConfig.Option.NL_MAX_BLANK_IN_FUNC, settings.KEEP_BLANK_LINES_IN_CODE+1);
+        config.set(UncrustifyConfig.Option.NL_INSIDE_EMPTY_FUNC, settings.KEEP_BLANK_LINES_IN_CODE+1);
 
-        writer.write_option("nl_before_func_body_def", String.valueOf(settings.BLANK_LINES_BEFORE_METHOD_BODY+1));
-        writer.write_option("nl_before_func_class_def", String.valueOf(settings.BLANK_LINES_BEFORE_METHOD_BODY+1));
-        writer.write_option("nl_before_func_class_proto", String.valueOf(settings.BLANK_LINES_BEFORE_METHOD_BODY+1));
-        writer.write_option("nl_before_func_body_proto", String.valueOf(settings.BLANK_LINES_BEFORE_METHOD_BODY+1));
-//        writer.write_option("nl_after_func_proto_group", String.valueOf(settings.BLANK_LINES_BEFORE_METHOD_BODY)+1);
-//        writer.write_option("nl_after_func_class_proto_group", String.valueOf(settings.BLANK_LINES_BEFORE_METHOD_BODY)+1);
+        config.set(UncrustifyConfig.Option.NL_BEFORE_FUNC_BODY_DEF, settings.BLANK_LINES_BEFORE_METHOD_BODY+1);
+        config.set(UncrustifyConfig.Option.NL_BEFORE_FUNC_CLASS_DEF, settings.BLANK_LINES_BEFORE_METHOD_BODY+1);
+        config.set(UncrustifyConfig.Option.NL_BEFORE_FUNC_CLASS_PROTO, settings.BLANK_LINES_BEFORE_METHOD_BODY+1);
+        config.set(UncrustifyConfig.Option.NL_BEFORE_FUNC_BODY_PROTO, settings.BLANK_LINES_BEFORE_METHOD_BODY+1);
+//        config.set(UncrustifyConfig.Option.NL_AFTER_FUNC_PROTO_GROUP, settings.BLANK_LINES_BEFORE_METHOD_BODY+1);
+//        config.set(UncrustifyConfig.Option.NL_AFTER_FUNC_CLASS_PROTO_GROUP, settings.BLANK_LINES_BEFORE_METHOD_BODY+1);
 
-        writer.write_option("nl_before_class", String.valueOf(settings.BLANK_LINES_AROUND_CLASS+1));
-        writer.write_option("nl_after_class", String.valueOf(settings.BLANK_LINES_AROUND_CLASS+1));
+        config.set(UncrustifyConfig.Option.NL_BEFORE_CLASS, settings.BLANK_LINES_AROUND_CLASS+1);
+        config.set(UncrustifyConfig.Option.NL_AFTER_CLASS, settings.BLANK_LINES_AROUND_CLASS+1);
 
         // Any newlines that aren't explicitly defined will be removed. This is potentially dangerous and can lead to invalid code.
         //  => use the default(=0)
-        // writer.write_option("nl_remove_extra_newlines", String.valueOf(1));
+        // config.set(UncrustifyConfig.Option.NL_REMOVE_EXTRA_NEWLINES, 1);
     }
 }
@@ -0,0 +1,387 @@
+package org.jetbrains.uncrustify.util;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads Uncrustify configs together with the configs they {@code include}, see {@link EffectiveConfig}.
+ * <p>
+ * Parsed configs are cached by path. Every file of a config's include graph is watched, and a VFS change to any of them
+ * (including the creation of a missing include) drops the config from the cache, so that its {@linkplain
+ * EffectiveConfig#getFingerprint() fingerprint} changes exactly when the effective config does. Whitespace, comments
+ * and the way the config is split into files do not change the fingerprint.
+ */
+public class UncrustifyConfigParser implements Disposable {
+    private static final Logger log = Logger.getInstance(UncrustifyConfigParser.class);
+
+    private static final String INCLUDE = "include";
+    // Uncrustify itself gives up on deeper nesting
+    private static final int MAX_INCLUDE_DEPTH = 10;
+    private static final int MAX_CACHED_CONFIGS = 64;
+
+    // config path -> parsed config, in access order
+    private final Map<String, Cached> myConfigs = new LinkedHashMap<>(16, 0.75f, true);
+    // path of a file in an include graph -> paths of the configs that depend on it
+    private final Map<String, Set<String>> myDependents = new HashMap<>();
+    // incremented by every batch of VFS events, so that a config parsed concurrently with a change isn't cached
+    private long myModificationCount = 0;
+
+    public UncrustifyConfigParser() {
+        ApplicationManager.getApplication().getMessageBus().connect(this).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void before(@NotNull List<? extends VFileEvent> events) {
+                onEvents(events);
+            }
+
+            @Override
+            public void after(@NotNull List<? extends VFileEvent> events) {
+                onEvents(events);
+            }
+        });
+    }
+
+    public static UncrustifyConfigParser getInstance() {
+        return ApplicationManager.getApplication().getService(UncrustifyConfigParser.class);
+    }
+
+    /**
+     * @return the parsed config at {@code configPath}, re-read only after a file in its include graph changed
+     * @throws IOException if the config itself can't be read, unreadable includes are reported as
+     *                     {@linkplain EffectiveConfig#getProblems() problems}
+     */
+    public @NotNull EffectiveConfig getEffectiveConfig(@NotNull String configPath) throws IOException {
+        long modificationCount;
+        synchronized (this) {
+            Cached cached = myConfigs.get(configPath);
+            if (cached != null) {
+                return cached.config;
+            }
+            modificationCount = myModificationCount;
+        }
+
+        EffectiveConfig config = parse(Path.of(configPath));
+        List<String> paths = new ArrayList<>(config.getFiles().size());
+        for (Path file : config.getFiles()) {
+            paths.add(FileUtil.toSystemIndependentName(file.toString()));
+        }
+        Set<LocalFileSystem.WatchRequest> watches = LocalFileSystem.getInstance().addRootsToWatch(paths, false);
+        if (!ApplicationManager.getApplication().isReadAccessAllowed()) {
+            for (Path file : config.getFiles()) {
+                // events are only sent for files the VFS knows about
+                if (LocalFileSystem.getInstance().findFileByNioFile(file) == null) {
+                    LocalFileSystem.getInstance().refreshAndFindFileByNioFile(file);
+                }
+            }
+        }
+
+        List<Cached> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (modificationCount != myModificationCount) {
+                LocalFileSystem.getInstance().removeWatchedRoots(watches);
+                return config;
+            }
+            Cached previous = myConfigs.put(configPath, new Cached(config, paths, watches));
+            if (previous != null) {
+                evicted.add(previous);
+            }
+            for (String path : paths) {
+                myDependents.computeIfAbsent(path, k -> new HashSet<>()).add(configPath);
+            }
+            Iterator<Map.Entry<String, Cached>> it = myConfigs.entrySet().iterator();
+            while (myConfigs.size() > MAX_CACHED_CONFIGS && it.hasNext()) {
+                Map.Entry<String, Cached> entry = it.next();
+                it.remove();
+                forget(entry.getKey(), entry.getValue());
+                evicted.add(entry.getValue());
+            }
+        }
+        unwatch(evicted);
+        return config;
+    }
+
+    /**
+     * @return fingerprint of the effective config at {@code configPath}, see {@link EffectiveConfig#getFingerprint()}
+     */
+    public @NotNull String getFingerprint(@NotNull String configPath) throws IOException {
+        return getEffectiveConfig(configPath).getFingerprint();
+    }
+
+    private void onEvents(@NotNull List<? extends VFileEvent> events) {
+        List<Cached> invalidated = new ArrayList<>();
+        synchronized (this) {
+            myModificationCount++;
+            if (myDependents.isEmpty()) {
+                return;
+            }
+            for (VFileEvent event : events) {
+                invalidate(event.getPath(), invalidated);
+                if (event instanceof VFileMoveEvent) {
+                    invalidate(((VFileMoveEvent) event).getNewPath(), invalidated);
+                } else if (event instanceof VFilePropertyChangeEvent
+                        && ((VFilePropertyChangeEvent) event).getPropertyName().equals(VirtualFile.PROP_NAME)) {
+                    invalidate(((VFilePropertyChangeEvent) event).getNewPath(), invalidated);
+                }
+            }
+        }
+        unwatch(invalidated);
+    }
+
+    private void invalidate(@NotNull String path, @NotNull List<Cached> invalidated) {
+        Set<String> configs = new HashSet<>();
+        Set<String> direct = myDependents.get(path);
+        if (direct != null) {
+            configs.addAll(direct);
+        }
+        // a change of a directory affects all the files below it
+        String prefix = path + "/";
+        for (Map.Entry<String, Set<String>> entry : myDependents.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                configs.addAll(entry.getValue());
+            }
+        }
+
+        for (String configPath : configs) {
+            Cached cached = myConfigs.remove(configPath);
+            if (cached != null) {
+                log.debug("Uncrustify config " + configPath + " changed because of " + path);
+                forget(configPath, cached);
+                invalidated.add(cached);
+            }
+        }
+    }
+
+    private void forget(@NotNull String configPath, @NotNull Cached cached) {
+        for (String path : cached.paths) {
+            Set<String> dependents = myDependents.get(path);
+            if (dependents != null) {
+                dependents.remove(configPath);
+                if (dependents.isEmpty()) {
+                    myDependents.remove(path);
+                }
+            }
+        }
+    }
+
+    private static void unwatch(@NotNull List<Cached> configs) {
+        for (Cached cached : configs) {
+            LocalFileSystem.getInstance().removeWatchedRoots(cached.watches);
+        }
+    }
+
+    @Override
+    public void dispose() {
+        List<Cached> configs;
+        synchronized (this) {
+            configs = new ArrayList<>(myConfigs.values());
+            myConfigs.clear();
+            myDependents.clear();
+        }
+        unwatch(configs);
+    }
+
+    /**
+     * Parses the config at {@code config} and, in place of their {@code include} lines, the configs it includes.
+     * Relative includes are resolved against the directory of the including config, like Uncrustify does.
+     */
+    public static @NotNull EffectiveConfig parse(@NotNull Path config) throws IOException {
+        EffectiveConfig result = new EffectiveConfig();
+        Path file = config.toAbsolutePath().normalize();
+        result.myFiles.add(file);
+        parse(file, read(file), result, new LinkedHashSet<>());
+        return result;
+    }
+
+    /**
+     * Uncrustify reads configs byte by byte without any charset, so any byte is accepted, e.g. in a Latin-1 comment.
+     * ISO-8859-1 maps every byte to a char.
+     */
+    private static @NotNull String read(@NotNull Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+    }
+
+    private static void parse(@NotNull Path file, @NotNull String text, @NotNull EffectiveConfig result, @NotNull Set<Path> stack) {
+        stack.add(file);
+        int lineNumber = 0;
+        for (String line : StringUtil.splitByLines(text, false)) {
+            lineNumber++;
+            int comment = UncrustifyOptionCatalog.findComment(line);
+            String content = (comment >= 0 ? line.substring(0, comment) : line).trim();
+            if (content.isEmpty()) {
+                continue;
+            }
+
+            String name;
+            String value;
+            int equals = content.indexOf('=');
+            if (equals >= 0) {
+                name = content.substring(0, equals).trim();
+                value = content.substring(equals + 1).trim();
+            } else {
+                int space = StringUtil.indexOfAny(content, " \t");
+                name = space >= 0 ? content.substring(0, space) : content;
+                value = space >= 0 ? content.substring(space + 1).trim() : "";
+            }
+
+            String keyword = name.toLowerCase(Locale.ROOT);
+            if (keyword.equals(INCLUDE)) {
+                include(file, lineNumber, UncrustifyOptionCatalog.unquote(value), result, stack);
+            } else if (UncrustifyOptionCatalog.KEYWORDS.contains(keyword)) {
+                result.myDirectives.add(keyword + " " + String.join(" ", value.split("\\s+")));
+            } else {
+                // the last assignment wins and determines the position, references to other options are order-dependent
+                result.myOptions.remove(name);
+                result.myOptions.put(name, value);
+            }
+        }
+        stack.remove(file);
+    }
+
+    private static void include(@NotNull Path from,
+                                int lineNumber,
+                                @NotNull String target,
+                                @NotNull EffectiveConfig result,
+                                @NotNull Set<Path> stack) {
+        if (target.isEmpty()) {
+            result.myProblems.add(from + ":" + lineNumber + ": include without a file name");
+            return;
+        }
+        Path dir = from.getParent();
+        Path file = (dir != null ? dir.resolve(target) : Path.of(target)).toAbsolutePath().normalize();
+        result.myFiles.add(file);
+        if (stack.contains(file)) {
+            result.myProblems.add(from + ":" + lineNumber + ": " + file + " includes itself");
+            return;
+        }
+        if (stack.size() >= MAX_INCLUDE_DEPTH) {
+            result.myProblems.add(from + ":" + lineNumber + ": includes are nested too deeply");
+            return;
+        }
+        String text;
+        try {
+            text = read(file);
+        } catch (IOException | RuntimeException e) {
+            // the include may still be created, so it stays part of the fingerprint
+            result.myDirectives.add(INCLUDE + " " + file + " (missing)");
+            result.myProblems.add(from + ":" + lineNumber + ": could not read " + file + ": " + e.getMessage());
+            return;
+        }
+        parse(file, text, result, stack);
+    }
+
+    /**
+     * A config with all its includes flattened: the value each option ends up with and, in order, the other lines
+     * Uncrustify interprets (like {@code type} or {@code set}).
+     */
+    public static class EffectiveConfig {
+        // options naming comment templates, in which Uncrustify substitutes $(filename) and $(fclass)
+        private static final List<String> FILE_NAME_TEMPLATES = List.of(
+                "cmt_insert_file_header",
+                "cmt_insert_file_footer",
+                "cmt_insert_func_header",
+                "cmt_insert_class_header",
+                "cmt_insert_oc_msg_header");
+
+        private final Map<String, String> myOptions = new LinkedHashMap<>();
+        private final List<String> myDirectives = new ArrayList<>();
+        private final Set<Path> myFiles = new LinkedHashSet<>();
+        private final List<String> myProblems = new ArrayList<>();
+        private String myFingerprint;
+
+        /**
+         * @return option name -> value as written in the config, in the order of their last assignment
+         */
+        public @NotNull Map<String, String> getOptions() {
+            return Collections.unmodifiableMap(myOptions);
+        }
+
+        public @Nullable String getOption(@NotNull String name) {
+            return myOptions.get(name);
+        }
+
+        /**
+         * @return whether the output may depend on the name of the formatted file, i.e. whether the config inserts
+         * comment templates, which may refer to {@code $(filename)} or {@code $(fclass)}
+         */
+        public boolean isFileNameDependent() {
+            for (Map.Entry<String, String> option : myOptions.entrySet()) {
+                if (FILE_NAME_TEMPLATES.contains(option.getKey().toLowerCase(Locale.ROOT))
+                        && !UncrustifyOptionCatalog.unquote(option.getValue()).isBlank()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public @NotNull List<String> getDirectives() {
+            return Collections.unmodifiableList(myDirectives);
+        }
+
+        /**
+         * @return the config and everything it includes, missing includes as well
+         */
+        public @NotNull Set<Path> getFiles() {
+            return Collections.unmodifiableSet(myFiles);
+        }
+
+        public @NotNull List<String> getProblems() {
+            return Collections.unmodifiableList(myProblems);
+        }
+
+        /**
+         * @return hex-encoded SHA-256 digest of the options and directives, independent of formatting and comments
+         */
+        public synchronized @NotNull String getFingerprint() {
+            if (myFingerprint == null) {
+                StringBuilder canonical = new StringBuilder(myOptions.size() * 48);
+                for (Map.Entry<String, String> option : myOptions.entrySet()) {
+                    canonical.append(option.getKey()).append('=').append(option.getValue()).append('\n');
+                }
+                for (String directive : myDirectives) {
+                    canonical.append(directive).append('\n');
+                }
+                myFingerprint = UncrustifyUtil.fingerprint(canonical.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return myFingerprint;
+        }
+    }
+
+    private static class Cached {
+        private final EffectiveConfig config;
+        private final List<String> paths;
+        private final Set<LocalFileSystem.WatchRequest> watches;
+
+        private Cached(@NotNull EffectiveConfig config, @NotNull List<String> paths, @NotNull Set<LocalFileSystem.WatchRequest> watches) {
+            this.config = config;
+            this.paths = paths;
+            this.watches = watches;
+        }
+    }
+}
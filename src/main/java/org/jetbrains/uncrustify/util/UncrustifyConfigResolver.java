@@ -0,0 +1,160 @@
+package org.jetbrains.uncrustify.util;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectUtil;
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.roots.ModuleRootListener;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileCopyEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileCreateEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import com.intellij.util.messages.MessageBusConnection;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the {@value UncrustifyConfigFile#PROJECT_CONFIG_PATH} nearest to a file, looking into the file's directory
+ * and its parents up to the project directory, or up to the file's content root for content outside of it.
+ * <p>
+ * The nearest config of every visited directory is remembered, so that a lookup costs at most one step per directory
+ * level and usually a single map read. Entries are invalidated from VFS events: creating, deleting or renaming a config
+ * drops the entries of the directory's subtree, moving or renaming a directory drops the entries of the moved subtree.
+ */
+public class UncrustifyConfigResolver implements Disposable {
+    private final Project myProject;
+
+    // directory -> nearest config, empty if there is none
+    private final Map<VirtualFile, Optional<VirtualFile>> myIndex = new ConcurrentHashMap<>();
+
+    public UncrustifyConfigResolver(@NotNull Project project) {
+        myProject = project;
+
+        MessageBusConnection connection = project.getMessageBus().connect(this);
+        connection.subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void before(@NotNull List<? extends VFileEvent> events) {
+                for (VFileEvent event : events) {
+                    if (event instanceof VFileDeleteEvent || event instanceof VFileMoveEvent) {
+                        invalidate(event.getFile());
+                    }
+                }
+            }
+
+            @Override
+            public void after(@NotNull List<? extends VFileEvent> events) {
+                for (VFileEvent event : events) {
+                    if (event instanceof VFileCreateEvent) {
+                        VFileCreateEvent create = (VFileCreateEvent) event;
+                        if (isConfigName(create.getChildName())) {
+                            invalidateSubtree(create.getParent());
+                        }
+                    } else if (event instanceof VFileCopyEvent) {
+                        VFileCopyEvent copy = (VFileCopyEvent) event;
+                        if (isConfigName(copy.getNewChildName())) {
+                            invalidateSubtree(copy.getNewParent());
+                        }
+                    } else if (event instanceof VFileMoveEvent) {
+                        invalidate(event.getFile());
+                    } else if (event instanceof VFilePropertyChangeEvent
+                            && ((VFilePropertyChangeEvent) event).getPropertyName().equals(VirtualFile.PROP_NAME)) {
+                        VFilePropertyChangeEvent rename = (VFilePropertyChangeEvent) event;
+                        VirtualFile file = rename.getFile();
+                        if (file.isDirectory()) {
+                            invalidateSubtree(file);
+                        } else if (isConfigName((String) rename.getOldValue()) || isConfigName((String) rename.getNewValue())) {
+                            invalidateSubtree(file.getParent());
+                        }
+                    }
+                }
+            }
+        });
+        connection.subscribe(ModuleRootListener.TOPIC, new ModuleRootListener() {
+            @Override
+            public void rootsChanged(@NotNull ModuleRootEvent event) {
+                myIndex.clear();
+            }
+        });
+    }
+
+    public static UncrustifyConfigResolver getInstance(@NotNull Project project) {
+        return project.getService(UncrustifyConfigResolver.class);
+    }
+
+    /**
+     * @return the nearest config in {@code file}'s directory or its parents, {@code file} may also be a directory
+     */
+    public @Nullable VirtualFile findConfig(@NotNull VirtualFile file) {
+        VirtualFile dir = file.isDirectory() ? file : file.getParent();
+        if (dir == null) {
+            return null;
+        }
+        Optional<VirtualFile> cached = myIndex.get(dir);
+        if (cached != null && (cached.isEmpty() || cached.get().isValid())) {
+            return cached.orElse(null);
+        }
+        return ReadAction.compute(() -> resolve(dir, getBoundary(dir)));
+    }
+
+    private @Nullable VirtualFile resolve(@NotNull VirtualFile dir, @Nullable VirtualFile boundary) {
+        Optional<VirtualFile> cached = myIndex.get(dir);
+        if (cached != null && (cached.isEmpty() || cached.get().isValid())) {
+            return cached.orElse(null);
+        }
+
+        VirtualFile config = dir.findChild(UncrustifyConfigFile.PROJECT_CONFIG_PATH);
+        if (config != null && config.isDirectory()) {
+            config = null;
+        }
+        if (config == null && boundary != null && !dir.equals(boundary) && dir.getParent() != null) {
+            config = resolve(dir.getParent(), boundary);
+        }
+        myIndex.put(dir, Optional.ofNullable(config));
+        return config;
+    }
+
+    private @Nullable VirtualFile getBoundary(@NotNull VirtualFile dir) {
+        VirtualFile projectDir = ProjectUtil.guessProjectDir(myProject);
+        if (projectDir != null && VfsUtilCore.isAncestor(projectDir, dir, false)) {
+            return projectDir;
+        }
+        return ProjectFileIndex.getInstance(myProject).getContentRootForFile(dir);
+    }
+
+    private static boolean isConfigName(@Nullable String name) {
+        return UncrustifyConfigFile.PROJECT_CONFIG_PATH.equals(name);
+    }
+
+    private void invalidate(@NotNull VirtualFile file) {
+        if (file.isDirectory()) {
+            invalidateSubtree(file);
+        } else if (isConfigName(file.getName())) {
+            invalidateSubtree(file.getParent());
+        }
+    }
+
+    private void invalidateSubtree(@Nullable VirtualFile dir) {
+        if (dir == null || myIndex.isEmpty()) {
+            return;
+        }
+        myIndex.keySet().removeIf(key -> VfsUtilCore.isAncestor(dir, key, false));
+    }
+
+    @Override
+    public void dispose() {
+        myIndex.clear();
+    }
+}
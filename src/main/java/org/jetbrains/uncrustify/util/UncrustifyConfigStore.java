@@ -0,0 +1,208 @@
+package org.jetbrains.uncrustify.util;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.psi.codeStyle.CommonCodeStyleSettings;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Application-level store of Uncrustify config files generated from IntelliJ code style settings.
+ * <p>
+ * Every distinct generated config is written to disk only once, to a file named after the fingerprint of its
+ * contents, and is then reused by all formatting requests with the same code style. Each caller identifies itself by
+ * a slot (e.g. project and language); when the code style of a slot changes and no other slot uses the previous
+ * config anymore, its file is deleted a few minutes later. Until then, formatting requests that got the previous path
+ * just before the change can still start Uncrustify with it. Files left over from previous sessions are deleted on the
+ * first write, once they are as old.
+ * <p>
+ * Configs are compared as {@link UncrustifyConfig} models first, so a slot whose code style hasn't changed gets its
+ * file back without serializing and fingerprinting the config again.
+ */
+public class UncrustifyConfigStore implements Disposable {
+    private static final Logger log = Logger.getInstance(UncrustifyConfigStore.class);
+
+    private static final int MAX_STORED_CONFIGS = 32;
+    private static final long STALE_CONFIG_AGE_MS = 5 * 60_000;
+
+    private final Path myDirectory = Path.of(PathManager.getSystemPath(), "uncrustify", "configs");
+    // slot -> fingerprint of the config last requested for that slot
+    private final Map<String, String> mySlots = new HashMap<>();
+    // slot -> config last requested for that slot
+    private final Map<String, UncrustifyConfig> mySlotConfigs = new HashMap<>();
+    // reused for serializing configs, guarded by this
+    private final BufferExposingByteArrayOutputStream myBuffer = new BufferExposingByteArrayOutputStream(4096);
+    // fingerprint -> config file, in access order
+    private final Map<String, Path> myConfigs = new LinkedHashMap<>(16, 0.75f, true);
+    // config file that is no longer used -> when it stopped being used
+    private final Map<Path, Long> myStaleConfigs = new HashMap<>();
+    private final ScheduledFuture<?> mySweeper;
+    private boolean myDirectoryPrepared = false;
+
+    public UncrustifyConfigStore() {
+        mySweeper = AppExecutorUtil.getAppScheduledExecutorService().scheduleWithFixedDelay(
+                this::deleteStaleConfigs, STALE_CONFIG_AGE_MS / 5, STALE_CONFIG_AGE_MS / 5, TimeUnit.MILLISECONDS);
+    }
+
+    public static UncrustifyConfigStore getInstance() {
+        return ApplicationManager.getApplication().getService(UncrustifyConfigStore.class);
+    }
+
+    public @NotNull Path getConfig(@NotNull String slot, @NotNull CommonCodeStyleSettings settings) throws IOException {
+        UncrustifyConfig model;
+        try (UncrustifyTracer.Span ignored = UncrustifyTracer.start("exportCodeStyle", slot)) {
+            model = UncrustifyConfigFile.createConfig(settings);
+        }
+        return getConfig(slot, model);
+    }
+
+    private synchronized @NotNull Path getConfig(@NotNull String slot, @NotNull UncrustifyConfig model) throws IOException {
+        if (model.equals(mySlotConfigs.get(slot))) {
+            Path config = myConfigs.get(mySlots.get(slot));
+            if (config != null && Files.exists(config)) {
+                return config;
+            }
+        }
+
+        myBuffer.reset();
+        model.writeTo(myBuffer);
+        String fingerprint = UncrustifyUtil.fingerprint(myBuffer.getInternalBuffer(), 0, myBuffer.size());
+        Path config = myConfigs.get(fingerprint);
+        if (config == null || !Files.exists(config)) {
+            config = write(fingerprint, myBuffer);
+            myConfigs.put(fingerprint, config);
+        }
+
+        mySlotConfigs.put(slot, model);
+        String previous = mySlots.put(slot, fingerprint);
+        if (previous != null && !previous.equals(fingerprint) && !mySlots.containsValue(previous)) {
+            markStale(myConfigs.remove(previous));
+        }
+        evictOverflow();
+        return config;
+    }
+
+    /**
+     * @return whether {@code config} is a file of this store, i.e. only exists in the system directory of this IDE
+     */
+    public boolean isGenerated(@NotNull Path config) {
+        return config.startsWith(myDirectory);
+    }
+
+    /**
+     * Stores a config generated by another IDE instance, see {@link org.jetbrains.uncrustify.UncrustifyDaemon}.
+     *
+     * @return the file with {@code content}
+     */
+    public synchronized @NotNull Path getConfig(byte @NotNull [] content) throws IOException {
+        String fingerprint = UncrustifyUtil.fingerprint(content, 0, content.length);
+        Path config = myConfigs.get(fingerprint);
+        if (config == null || !Files.exists(config)) {
+            myBuffer.reset();
+            myBuffer.write(content, 0, content.length);
+            config = write(fingerprint, myBuffer);
+            myConfigs.put(fingerprint, config);
+            evictOverflow();
+        }
+        return config;
+    }
+
+    private @NotNull Path write(@NotNull String fingerprint, @NotNull BufferExposingByteArrayOutputStream content) throws IOException {
+        if (!myDirectoryPrepared) {
+            Files.createDirectories(myDirectory);
+            deleteLeftoverConfigs();
+            myDirectoryPrepared = true;
+        }
+
+        Path config = myDirectory.resolve(fingerprint + ".cfg");
+        // used again before it was deleted
+        myStaleConfigs.remove(config);
+        Path tmp = Files.createTempFile(myDirectory, fingerprint, ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            content.writeTo(out);
+        }
+        Files.move(tmp, config, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.debug("Generated Uncrustify config written to " + config);
+        return config;
+    }
+
+    private void evictOverflow() {
+        Iterator<Map.Entry<String, Path>> it = myConfigs.entrySet().iterator();
+        while (myConfigs.size() > MAX_STORED_CONFIGS && it.hasNext()) {
+            Map.Entry<String, Path> entry = it.next();
+            if (!mySlots.containsValue(entry.getKey())) {
+                it.remove();
+                markStale(entry.getValue());
+            }
+        }
+    }
+
+    private void markStale(Path config) {
+        if (config != null) {
+            myStaleConfigs.put(config, System.currentTimeMillis());
+        }
+    }
+
+    private synchronized void deleteStaleConfigs() {
+        long cutoff = System.currentTimeMillis() - STALE_CONFIG_AGE_MS;
+        Iterator<Map.Entry<Path, Long>> it = myStaleConfigs.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Long> entry = it.next();
+            if (entry.getValue() < cutoff) {
+                it.remove();
+                delete(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Deletes the files left over from previous sessions, except for recent ones, which a previous session that is
+     * still shutting down may be using.
+     */
+    private void deleteLeftoverConfigs() {
+        long cutoff = System.currentTimeMillis() - STALE_CONFIG_AGE_MS;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(myDirectory)) {
+            for (Path file : files) {
+                if (Files.getLastModifiedTime(file).toMillis() < cutoff) {
+                    delete(file);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not clean up Uncrustify configs of previous sessions: " + e.getMessage());
+        }
+    }
+
+    private static void delete(@NotNull Path config) {
+        try {
+            Files.deleteIfExists(config);
+        } catch (IOException e) {
+            log.warn("Could not delete stale Uncrustify config " + config.getFileName() + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void dispose() {
+        mySweeper.cancel(false);
+        // the files are left to the next session, which deletes them once they are old enough
+        mySlots.clear();
+        mySlotConfigs.clear();
+        myConfigs.clear();
+        myStaleConfigs.clear();
+    }
+}
@@ -1,29 +1,69 @@
 package org.jetbrains.uncrustify.util;
 
 import com.intellij.execution.ExecutionException;
-import com.intellij.execution.process.*;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.io.FileUtilRt;
+import com.intellij.util.PathUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.jetbrains.uncrustify.UncrustifyBundle;
+import org.jetbrains.uncrustify.settings.UncrustifySettingsState;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class UncrustifyExecutable {
+    private static final Logger log = Logger.getInstance(UncrustifyExecutable.class);
+
+    private static final String POOLED_FILE_NAME = "uncrustify";
+    private static final String FILE_LIST_NAME = "files.txt";
+    private static final int MAX_PROBES = 16;
+
     // example of a version string: Uncrustify_d-0.73.0_f
     //                                         ^        ^
     //                        indicates debug version   |
     //                                               fallback?
     private static final Pattern VERSION_PATTERN = Pattern.compile("Uncrustify(_d)?-((\\d+)\\.(\\d+)\\.(\\d+))(_[a-z])?");
 
+    // file stamp -> running probe, so that concurrent verifications of the same executable share a process
+    private static final Map<String, CompletableFuture<UncrustifySettingsState.ExecutableProbe>> ourRunningProbes = new ConcurrentHashMap<>();
+
     public static @Nullable String verifyVersion(String version) {
         Matcher matcher = VERSION_PATTERN.matcher(version);
         return matcher.find() ? matcher.group() : null;
     }
 
+    /**
+     * @return string that changes whenever the executable at {@code path} is replaced, e.g. by a different version
+     */
+    public static @NotNull String getIdentity(@NotNull String path) {
+        UncrustifySettingsState.ExecutableProbe probe = getCachedProbe(path);
+        if (probe != null) {
+            return probe.version + ":" + probe.size + ":" + probe.modified + ":" + probe.fileKey;
+        }
+        File file = new File(path);
+        return path + ":" + file.lastModified() + ":" + file.length();
+    }
+
     public interface VerificationListener {
         void onInvalid();
 
@@ -32,55 +72,419 @@ public class UncrustifyExecutable {
 
     // Throws in case the file could not be executed
     public static void verify(@NotNull String path, @NotNull VerificationListener listener, boolean block) throws ExecutionException {
-        executeWithProcessListener(
-                path,
-                List.of("--version"),
-                null,
-                new CapturingProcessAdapter() {
-                    public void processTerminated(@NotNull ProcessEvent event) {
-                        super.processTerminated(event);
-
-                        int exitCode = event.getExitCode();
-                        ProcessOutput processOutput = getOutput();
-                        if (exitCode == 0) {
-                            String version = verifyVersion(processOutput.getStdout());
-                            if (version != null) {
-                                listener.onValid(version);
-                            } else {
-                                listener.onInvalid();
-                            }
-                        } else {
-                            listener.onInvalid();
-                        }
-                    }
-                },
-                block);
-    }
-
-    public static @NotNull OSProcessHandler executeWithProcessListener(
+        CompletableFuture<UncrustifySettingsState.ExecutableProbe> future = probe(path);
+        if (block) {
+            notifyVerificationListener(listener, future.handle((r, t) -> r).join());
+        } else {
+            future.handle((r, t) -> r).thenAccept(r -> notifyVerificationListener(listener, r));
+        }
+    }
+
+    private static void notifyVerificationListener(@NotNull VerificationListener listener, @Nullable UncrustifySettingsState.ExecutableProbe probe) {
+        if (probe != null) {
+            listener.onValid(probe.version);
+        } else {
+            listener.onInvalid();
+        }
+    }
+
+    /**
+     * @return the remembered probe of the executable at {@code path}, or {@code null} if it hasn't been probed yet or
+     * has been replaced since
+     */
+    public static @Nullable UncrustifySettingsState.ExecutableProbe getCachedProbe(@NotNull String path) {
+        FileStamp stamp = FileStamp.of(path);
+        if (stamp == null) {
+            return null;
+        }
+        UncrustifySettingsState settings = UncrustifySettingsState.getInstance();
+        synchronized (settings.executableProbes) {
+            for (UncrustifySettingsState.ExecutableProbe probe : settings.executableProbes) {
+                if (probe.matches(path, stamp.size, stamp.modified, stamp.fileKey)) {
+                    return probe;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds out the version of the executable at {@code path}. The executable is run only if it has not been probed
+     * before (also in previous sessions) or has changed since, and only once for concurrent calls.
+     *
+     * @return future completed with {@code null} if the file is not an Uncrustify executable
+     */
+    public static @NotNull CompletableFuture<UncrustifySettingsState.ExecutableProbe> probe(@NotNull String path) throws ExecutionException {
+        UncrustifySettingsState.ExecutableProbe cached = getCachedProbe(path);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        FileStamp stamp = FileStamp.of(path);
+        String key = path + ":" + (stamp != null ? stamp.toString() : "");
+        // reserve the slot before starting the process, so that concurrent calls never run it twice
+        CompletableFuture<UncrustifySettingsState.ExecutableProbe> future = new CompletableFuture<>();
+        CompletableFuture<UncrustifySettingsState.ExecutableProbe> running = ourRunningProbes.putIfAbsent(key, future);
+        if (running != null) {
+            return running;
+        }
+        future.whenComplete((probe, t) -> ourRunningProbes.remove(key, future));
+
+        CompletableFuture<UncrustifySettingsState.ExecutableProbe> probe;
+        try {
+            probe = execute(path, List.of("--version"), null)
+                    .thenApply(result -> result.isSuccess() ? createProbe(path, stamp, result.getStdout()) : null);
+        } catch (ExecutionException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        }
+        probe.whenComplete((result, t) -> {
+            if (t != null) {
+                future.completeExceptionally(t);
+            } else {
+                future.complete(result);
+            }
+        });
+        return future;
+    }
+
+    private static @Nullable UncrustifySettingsState.ExecutableProbe createProbe(@NotNull String path, @Nullable FileStamp stamp, @NotNull String output) {
+        Matcher matcher = VERSION_PATTERN.matcher(output);
+        if (!matcher.find()) {
+            return null;
+        }
+
+        UncrustifySettingsState.ExecutableProbe probe = new UncrustifySettingsState.ExecutableProbe();
+        probe.path = path;
+        probe.version = matcher.group();
+        probe.debug = matcher.group(1) != null;
+        if (stamp == null) {
+            return probe;
+        }
+        probe.size = stamp.size;
+        probe.modified = stamp.modified;
+        probe.fileKey = stamp.fileKey;
+
+        // the list is part of the persisted settings, which are saved on the EDT
+        ApplicationManager.getApplication().invokeLater(() -> rememberProbe(probe), ModalityState.any());
+        return probe;
+    }
+
+    private static void rememberProbe(@NotNull UncrustifySettingsState.ExecutableProbe probe) {
+        UncrustifySettingsState settings = UncrustifySettingsState.getInstance();
+        // getCachedProbe reads it from any thread
+        synchronized (settings.executableProbes) {
+            settings.executableProbes.removeIf(p -> p.path.equals(probe.path));
+            settings.executableProbes.add(probe);
+            while (settings.executableProbes.size() > MAX_PROBES) {
+                settings.executableProbes.remove(0);
+            }
+        }
+    }
+
+    private static class FileStamp {
+        private final long size;
+        private final long modified;
+        private final String fileKey;
+
+        private FileStamp(long size, long modified, @NotNull String fileKey) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+        }
+
+        private static @Nullable FileStamp of(@NotNull String path) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(Path.of(path), BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) {
+                    return null;
+                }
+                Object fileKey = attributes.fileKey();
+                return new FileStamp(attributes.size(), attributes.lastModifiedTime().toMillis(), fileKey != null ? fileKey.toString() : "");
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return size + ":" + modified + ":" + fileKey;
+        }
+    }
+
+    /**
+     * Formats {@code input} using a process taken from {@link UncrustifyProcessPool}. The process only learns the
+     * extension of {@code filename}, which is all Uncrustify needs to detect the language, so that the same warm
+     * processes can serve all files of a language. Configs that insert the file name into comments (see
+     * {@link UncrustifyConfigFile#isFileNameDependent}) get a process of their own that is told the real name.
+     * <p>
+     * The input is encoded with {@code charset} and written to the process as bytes. The output should be decoded
+     * with the same charset, so that Uncrustify sees the same bytes as it would when formatting the file on disk.
+     * Cancelling the returned future kills the process.
+     *
+     * @param fragment whether {@code input} is only a part of the file, see {@link UncrustifyFragment}
+     */
+    public static @NotNull CompletableFuture<UncrustifyProcessResult> format(
             @NotNull String executablePath,
-            @NotNull List<String> params,
-            @Nullable String input,
-            @NotNull ProcessListener processListener,
-            boolean block) throws ExecutionException {
-        OSProcessHandler handler = UncrustifyUtil.createProcessHandler(
-                executablePath,
-                params);
-        handler.addProcessListener(processListener);
-        //TODO after some timeout, kill the process (for cases when it doesn't terminate on its own for some reason)
-        handler.startNotify();
-
-        if (input != null) {
-            try (OutputStreamWriter osw = new OutputStreamWriter(handler.getProcessInput())) {
-                osw.write(input);
+            @NotNull String configPath,
+            @NotNull String filename,
+            @NotNull CharSequence input,
+            @NotNull Charset charset,
+            boolean fragment) throws ExecutionException {
+        return format(executablePath, configPath, filename, input, charset, fragment, false);
+    }
+
+    /**
+     * @param background whether the process runs with a lowered priority, see
+     *                   {@link UncrustifyUtil#createCommandLine(String, List, boolean)}
+     */
+    public static @NotNull CompletableFuture<UncrustifyProcessResult> format(
+            @NotNull String executablePath,
+            @NotNull String configPath,
+            @NotNull String filename,
+            @NotNull CharSequence input,
+            @NotNull Charset charset,
+            boolean fragment,
+            boolean background) throws ExecutionException {
+        ByteBuffer encoded = UncrustifyStreams.encode(input, charset);
+        try {
+            return format(executablePath, configPath, filename, encoded, fragment, background);
+        } finally {
+            UncrustifyStreams.release(encoded);
+        }
+    }
+
+    /**
+     * Same as {@link #format(String, String, String, CharSequence, Charset, boolean, boolean)}, for input that is
+     * already encoded, e.g. contents of a file on disk. The input is fully consumed when this method returns.
+     */
+    public static @NotNull CompletableFuture<UncrustifyProcessResult> format(
+            @NotNull String executablePath,
+            @NotNull String configPath,
+            @NotNull String filename,
+            @NotNull ByteBuffer input,
+            boolean fragment,
+            boolean background) throws ExecutionException {
+        boolean pooled = !UncrustifyConfigFile.isFileNameDependent(configPath);
+        String assumed = pooled ? POOLED_FILE_NAME + "." + FileUtilRt.getExtension(filename) : PathUtil.getFileName(filename);
+        List<String> params = new ArrayList<>(List.of("-c", configPath, "--assume", assumed));
+        if (fragment) {
+            params.add("--frag");
+        }
+        UncrustifyMetrics metrics = UncrustifyMetrics.getInstance();
+        long acquireStart = System.nanoTime();
+        Process process;
+        try (UncrustifyTracer.Span ignored = UncrustifyTracer.start("acquireProcess", filename)) {
+            if (pooled) {
+                process = UncrustifyProcessPool.getInstance().acquire(executablePath, configPath, params, background);
+            } else {
+                process = UncrustifyUtil.createCommandLine(executablePath, params, background).createProcess();
+                metrics.recordSpawn(System.nanoTime() - acquireStart);
+            }
+        } catch (ExecutionException e) {
+            metrics.recordFailure(executablePath, configPath);
+            throw e;
+        }
+        long acquireNanos = System.nanoTime() - acquireStart;
+
+        // formatted output is about as large as the input
+        int inputSize = input.remaining();
+        CompletableFuture<UncrustifyProcessResult> result = UncrustifyProcessRunner.run(process, input, inputSize + inputSize / 8);
+        result.whenComplete((r, t) -> {
+            if (r != null) {
+                metrics.recordRun(executablePath, configPath, acquireNanos, inputSize, r);
+            } else if (result.isCancelled()) {
+                metrics.recordCancellation(executablePath, configPath);
+            } else {
+                metrics.recordFailure(executablePath, configPath);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Formats {@code input} through files instead of pipes, which keeps large inputs out of the process I/O buffers:
+     * the input is encoded into a temporary file chunk by chunk, Uncrustify reads it with {@code -f} and writes its
+     * result with {@code -o}, which is decoded chunk by chunk as well. Neither the input nor the output is ever held
+     * in memory as a whole in encoded form, so only the texts themselves take heap. The temporary files are deleted
+     * once the returned future completes.
+     * <p>
+     * A failure of Uncrustify fails the returned future with {@link UncrustifyProcessException}. Cancelling the
+     * returned future kills the process.
+     *
+     * @param fragment whether {@code input} is only a part of the file, see {@link UncrustifyFragment}
+     * @return the formatted text
+     */
+    public static @NotNull CompletableFuture<String> formatThroughFiles(
+            @NotNull String executablePath,
+            @NotNull String configPath,
+            @NotNull String filename,
+            @NotNull CharSequence input,
+            @NotNull Charset charset,
+            boolean fragment) throws ExecutionException, IOException {
+        Path directory = FileUtil.createTempDirectory("uncrustify", "large", true).toPath();
+        // Uncrustify detects the language from the name of the input file, and may insert the name into comments
+        Path inputFile = directory.resolve("input").resolve(PathUtil.getFileName(filename));
+        Path outputFile = directory.resolve(POOLED_FILE_NAME + ".out");
+        long inputBytes;
+        try {
+            Files.createDirectories(inputFile.getParent());
+            try (OutputStream out = Files.newOutputStream(inputFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                UncrustifyStreams.writeText(input, charset, out);
+            }
+            inputBytes = Files.size(inputFile);
+        } catch (IOException e) {
+            FileUtil.delete(directory.toFile());
+            throw e;
+        }
+
+        List<String> params = new ArrayList<>(List.of("-c", configPath, "-f", inputFile.toString(), "-o", outputFile.toString(), "-q"));
+        if (fragment) {
+            params.add("--frag");
+        }
+        UncrustifyMetrics metrics = UncrustifyMetrics.getInstance();
+        long spawnStart = System.nanoTime();
+        Process process;
+        try (UncrustifyTracer.Span ignored = UncrustifyTracer.start("startProcess")) {
+            process = UncrustifyUtil.createCommandLine(executablePath, params).createProcess();
+        } catch (ExecutionException e) {
+            FileUtil.delete(directory.toFile());
+            metrics.recordFailure(executablePath, configPath);
+            throw e;
+        }
+        long spawnNanos = System.nanoTime() - spawnStart;
+        metrics.recordSpawn(spawnNanos);
+
+        CompletableFuture<UncrustifyProcessResult> run = UncrustifyProcessRunner.run(process, null, 1024, inputBytes);
+        CompletableFuture<String> result = run.thenApply(r -> {
+            metrics.recordRun(executablePath, configPath, spawnNanos, inputBytes, r);
+            if (!r.isSuccess()) {
+                throw new UncrustifyProcessException(r);
+            }
+            try (InputStream output = Files.newInputStream(outputFile);
+                 UncrustifyTracer.Span ignored = UncrustifyTracer.start("readOutputFile", filename)) {
+                // formatted output has about as many chars as the input
+                return UncrustifyStreams.readText(output, charset, input.length() + input.length() / 8);
             } catch (IOException e) {
-                throw new ExecutionException(e);
+                throw new UncheckedIOException(e);
             }
+        });
+        result.whenComplete((r, t) -> {
+            if (result.isCancelled()) {
+                run.cancel(true);
+                metrics.recordCancellation(executablePath, configPath);
+            }
+            if (!FileUtil.delete(directory.toFile())) {
+                log.debug("Could not delete " + directory);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Formats several files with a single Uncrustify process, which saves process startup and config parsing for all
+     * files but the first. The inputs are copied to a temporary directory under their original names, listed in a file
+     * passed to Uncrustify with {@code -F} and formatted in place there.
+     * <p>
+     * A failure of any file fails the whole batch with {@link UncrustifyProcessException}, since Uncrustify's exit code
+     * does not tell which file it was. Callers are expected to fall back to {@link #format} for the individual files.
+     * Cancelling the returned future kills the process.
+     *
+     * @param background whether the process runs with a lowered priority, see
+     *                   {@link UncrustifyUtil#createCommandLine(String, List, boolean)}
+     * @return formatted contents of the files, in the order of {@code filenames}
+     */
+    public static @NotNull CompletableFuture<List<byte[]>> formatFiles(
+            @NotNull String executablePath,
+            @NotNull String configPath,
+            @NotNull List<String> filenames,
+            @NotNull List<byte[]> inputs,
+            boolean background) throws ExecutionException, IOException {
+        assert filenames.size() == inputs.size();
+
+        Path directory = FileUtil.createTempDirectory("uncrustify", "batch", true).toPath();
+        List<Path> files = new ArrayList<>(filenames.size());
+        StringBuilder fileList = new StringBuilder();
+        long totalBytes = 0;
+        try {
+            for (int i = 0; i < filenames.size(); i++) {
+                // every file gets its own directory, so that files with the same name don't collide
+                String relativePath = i + "/" + filenames.get(i);
+                Path file = directory.resolve(relativePath);
+                Files.createDirectories(file.getParent());
+                Files.write(file, inputs.get(i));
+                files.add(file);
+                fileList.append(relativePath).append('\n');
+                totalBytes += inputs.get(i).length;
+            }
+            Files.writeString(directory.resolve(FILE_LIST_NAME), fileList, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            FileUtil.delete(directory.toFile());
+            throw e;
         }
-        if (block) {
-            handler.waitFor();
+
+        UncrustifyMetrics metrics = UncrustifyMetrics.getInstance();
+        long spawnStart = System.nanoTime();
+        Process process;
+        try (UncrustifyTracer.Span ignored = UncrustifyTracer.start("startProcess")) {
+            process = UncrustifyUtil.createCommandLine(
+                    executablePath,
+                    List.of("-c", configPath, "-F", FILE_LIST_NAME, "--replace", "--no-backup", "-q"),
+                    background)
+                    .withWorkDirectory(directory.toFile())
+                    .createProcess();
+        } catch (ExecutionException e) {
+            FileUtil.delete(directory.toFile());
+            metrics.recordFailure(executablePath, configPath);
+            throw e;
         }
-        return handler;
+        long spawnNanos = System.nanoTime() - spawnStart;
+        metrics.recordSpawn(spawnNanos);
+
+        long inputBytes = totalBytes;
+        CompletableFuture<UncrustifyProcessResult> run = UncrustifyProcessRunner.run(process, null, 1024, totalBytes);
+        CompletableFuture<List<byte[]>> result = run.thenApply(r -> {
+            metrics.recordRun(executablePath, configPath, spawnNanos, inputBytes, r);
+            if (!r.isSuccess()) {
+                throw new UncrustifyProcessException(r);
+            }
+            try {
+                List<byte[]> outputs = new ArrayList<>(files.size());
+                for (Path file : files) {
+                    outputs.add(Files.readAllBytes(file));
+                }
+                return outputs;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        result.whenComplete((r, t) -> {
+            if (result.isCancelled()) {
+                run.cancel(true);
+                metrics.recordCancellation(executablePath, configPath);
+            }
+            // a cancelled process may still be writing its files
+            process.onExit().whenComplete((p, e) -> {
+                if (!FileUtil.delete(directory.toFile())) {
+                    log.debug("Could not delete " + directory);
+                }
+            });
+        });
+        return result;
     }
 
+    /**
+     * Runs a fresh Uncrustify process with the given parameters. Cancelling the returned future kills the process.
+     */
+    public static @NotNull CompletableFuture<UncrustifyProcessResult> execute(
+            @NotNull String executablePath,
+            @NotNull List<String> params,
+            @Nullable ByteBuffer input) throws ExecutionException {
+        long start = System.nanoTime();
+        Process process;
+        try (UncrustifyTracer.Span ignored = UncrustifyTracer.start("startProcess")) {
+            process = UncrustifyUtil.createCommandLine(executablePath, params).createProcess();
+        }
+        UncrustifyMetrics.getInstance().recordSpawn(System.nanoTime() - start);
+        return UncrustifyProcessRunner.run(process, input, 1024);
+    }
 }
@@ -0,0 +1,77 @@
+package org.jetbrains.uncrustify.util;
+
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.util.text.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Part of a document that is formatted on its own using Uncrustify's {@code --frag} mode.
+ * <p>
+ * A fragment always consists of whole lines, so that its first line carries the indentation context that Uncrustify
+ * assumes to be correct, and it spans all formatting ranges of a request.
+ */
+public class UncrustifyFragment {
+    private final CharSequence myText;
+    private final TextRange myRange;
+
+    private UncrustifyFragment(@NotNull CharSequence text, @NotNull TextRange range) {
+        myText = text;
+        myRange = range;
+    }
+
+    /**
+     * @return fragment of {@code text} enclosing all {@code ranges}, or {@code null} when the ranges cover the whole
+     * text and the text should be formatted as a file
+     */
+    public static @Nullable UncrustifyFragment create(@NotNull CharSequence text, @NotNull List<TextRange> ranges) {
+        if (ranges.isEmpty()) {
+            return null;
+        }
+
+        int start = text.length();
+        int end = 0;
+        for (TextRange range : ranges) {
+            start = Math.min(start, range.getStartOffset());
+            end = Math.max(end, range.getEndOffset());
+        }
+        start = Math.max(0, Math.min(start, text.length()));
+        end = Math.max(start, Math.min(end, text.length()));
+
+        // extend to whole lines, including the line break of the last one
+        start = StringUtil.lastIndexOf(text, '\n', 0, start) + 1;
+        int lineEnd = StringUtil.indexOf(text, '\n', end > start ? end - 1 : end);
+        end = lineEnd < 0 ? text.length() : lineEnd + 1;
+
+        if (start == 0 && end == text.length()) {
+            return null;
+        }
+        return new UncrustifyFragment(text, new TextRange(start, end));
+    }
+
+    public @NotNull TextRange getRange() {
+        return myRange;
+    }
+
+    public @NotNull CharSequence getText() {
+        return myRange.subSequence(myText);
+    }
+
+    /**
+     * @return the whole text with this fragment replaced by its formatted version
+     */
+    public @NotNull String splice(@NotNull String formattedFragment) {
+        // Uncrustify terminates its output with a line break even if the fragment ended at the end of the text without one
+        if (myText.charAt(myRange.getEndOffset() - 1) != '\n' && formattedFragment.endsWith("\n")) {
+            formattedFragment = formattedFragment.substring(0, formattedFragment.length() - 1);
+        }
+
+        StringBuilder result = new StringBuilder(myText.length() - myRange.getLength() + formattedFragment.length());
+        result.append(myText, 0, myRange.getStartOffset());
+        result.append(formattedFragment);
+        result.append(myText, myRange.getEndOffset(), myText.length());
+        return result.toString();
+    }
+}
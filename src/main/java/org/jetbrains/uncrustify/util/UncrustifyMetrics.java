@@ -0,0 +1,336 @@
+package org.jetbrains.uncrustify.util;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Application-wide formatting metrics: how long requests wait before they run, how long it takes to get a process,
+ * to receive the first byte of output and to finish, how much data goes in and out, and how many requests are
+ * cancelled, time out or fail.
+ * <p>
+ * Process metrics are broken down per executable and config ("group"), everything is also aggregated. The metrics
+ * are exposed through JMX (see {@link UncrustifyMetricsMXBean}) and the Uncrustify status bar widget.
+ */
+public class UncrustifyMetrics implements UncrustifyMetricsMXBean, Disposable {
+    private static final Logger log = Logger.getInstance(UncrustifyMetrics.class);
+
+    public static final String OBJECT_NAME = "org.jetbrains.uncrustify:type=Metrics";
+
+    private static final int MAX_GROUPS = 64;
+    private static final String OTHER_GROUP = "<other>";
+
+    private final Histogram myQueueWait = new Histogram();
+    private final Histogram mySpawn = new Histogram();
+    private final Group myTotal = new Group();
+    private final Map<String, Group> myGroups = new ConcurrentHashMap<>();
+    private @Nullable ObjectName myObjectName;
+
+    public UncrustifyMetrics() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+                myObjectName = name;
+            }
+        } catch (JMException e) {
+            log.warn("Could not register Uncrustify metrics MBean: " + e.getMessage());
+        }
+    }
+
+    public static UncrustifyMetrics getInstance() {
+        return ApplicationManager.getApplication().getService(UncrustifyMetrics.class);
+    }
+
+    /**
+     * @param nanos time between the creation of a formatting task and the start of its execution
+     */
+    public void recordQueueWait(long nanos) {
+        myQueueWait.record(nanos);
+    }
+
+    /**
+     * @param nanos time it took to start a new Uncrustify process
+     */
+    public void recordSpawn(long nanos) {
+        mySpawn.record(nanos);
+    }
+
+    /**
+     * Records a finished process.
+     *
+     * @param acquireNanos time the request waited for its process, close to zero if a warm process was available
+     */
+    public void recordRun(@NotNull String executablePath,
+                          @NotNull String configPath,
+                          long acquireNanos,
+                          long inputBytes,
+                          @NotNull UncrustifyProcessResult result) {
+        for (Group group : new Group[]{myTotal, getGroup(executablePath, configPath)}) {
+            group.requests.increment();
+            group.acquire.record(acquireNanos);
+            if (result.getTimeToFirstByteNanos() >= 0) {
+                group.firstByte.record(result.getTimeToFirstByteNanos());
+            }
+            group.total.record(acquireNanos + result.getElapsedNanos());
+            group.bytesIn.add(inputBytes);
+            group.bytesOut.add(result.getStdoutBytes().size());
+            if (result.isTimedOut()) {
+                group.timeouts.increment();
+            } else if (!result.isSuccess()) {
+                group.failures.increment();
+            }
+        }
+    }
+
+    public void recordCancellation(@NotNull String executablePath, @NotNull String configPath) {
+        myTotal.cancellations.increment();
+        getGroup(executablePath, configPath).cancellations.increment();
+    }
+
+    /**
+     * Records a request that failed without a result, e.g. because the process couldn't be started.
+     */
+    public void recordFailure(@NotNull String executablePath, @NotNull String configPath) {
+        myTotal.failures.increment();
+        getGroup(executablePath, configPath).failures.increment();
+    }
+
+    private @NotNull Group getGroup(@NotNull String executablePath, @NotNull String configPath) {
+        String key = executablePath + " | " + configPath;
+        Group group = myGroups.get(key);
+        if (group != null) {
+            return group;
+        }
+        if (myGroups.size() >= MAX_GROUPS) {
+            key = OTHER_GROUP;
+        }
+        return myGroups.computeIfAbsent(key, k -> new Group());
+    }
+
+    @Override
+    public long getRequestCount() {
+        return myTotal.requests.sum();
+    }
+
+    @Override
+    public long getCancellationCount() {
+        return myTotal.cancellations.sum();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return myTotal.timeouts.sum();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return myTotal.failures.sum();
+    }
+
+    @Override
+    public long getSpawnCount() {
+        return mySpawn.getCount();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return myTotal.bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return myTotal.bytesOut.sum();
+    }
+
+    @Override
+    public double getQueueWaitP50Ms() {
+        return myQueueWait.getPercentileMs(0.5);
+    }
+
+    @Override
+    public double getQueueWaitP95Ms() {
+        return myQueueWait.getPercentileMs(0.95);
+    }
+
+    @Override
+    public double getSpawnP50Ms() {
+        return mySpawn.getPercentileMs(0.5);
+    }
+
+    @Override
+    public double getSpawnP95Ms() {
+        return mySpawn.getPercentileMs(0.95);
+    }
+
+    @Override
+    public double getFirstByteP50Ms() {
+        return myTotal.firstByte.getPercentileMs(0.5);
+    }
+
+    @Override
+    public double getFirstByteP95Ms() {
+        return myTotal.firstByte.getPercentileMs(0.95);
+    }
+
+    @Override
+    public double getTotalP50Ms() {
+        return myTotal.total.getPercentileMs(0.5);
+    }
+
+    @Override
+    public double getTotalP95Ms() {
+        return myTotal.total.getPercentileMs(0.95);
+    }
+
+    @Override
+    public double getTotalP99Ms() {
+        return myTotal.total.getPercentileMs(0.99);
+    }
+
+    @Override
+    public String[] getGroups() {
+        return myGroups.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public String describeGroup(String group) {
+        Group g = myGroups.get(group);
+        return g != null ? g.toString() : "";
+    }
+
+    @Override
+    public String getSummary() {
+        return String.format("queue wait p50 %.1f ms, p95 %.1f ms; spawns %d, p50 %.1f ms; %s",
+                getQueueWaitP50Ms(), getQueueWaitP95Ms(), getSpawnCount(), getSpawnP50Ms(), myTotal);
+    }
+
+    @Override
+    public void reset() {
+        myQueueWait.reset();
+        mySpawn.reset();
+        myTotal.reset();
+        myGroups.clear();
+    }
+
+    @Override
+    public void dispose() {
+        if (myObjectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(myObjectName);
+            } catch (JMException e) {
+                log.debug("Could not unregister Uncrustify metrics MBean: " + e.getMessage());
+            }
+        }
+    }
+
+    private static class Group {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder cancellations = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final Histogram acquire = new Histogram();
+        private final Histogram firstByte = new Histogram();
+        private final Histogram total = new Histogram();
+
+        private void reset() {
+            requests.reset();
+            cancellations.reset();
+            timeouts.reset();
+            failures.reset();
+            bytesIn.reset();
+            bytesOut.reset();
+            acquire.reset();
+            firstByte.reset();
+            total.reset();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests %d (cancelled %d, timed out %d, failed %d); " +
+                            "process p50 %.1f ms; first byte p50 %.1f ms; total p50 %.1f ms, p95 %.1f ms, p99 %.1f ms; " +
+                            "in %d B, out %d B",
+                    requests.sum(), cancellations.sum(), timeouts.sum(), failures.sum(),
+                    acquire.getPercentileMs(0.5), firstByte.getPercentileMs(0.5),
+                    total.getPercentileMs(0.5), total.getPercentileMs(0.95), total.getPercentileMs(0.99),
+                    bytesIn.sum(), bytesOut.sum());
+        }
+    }
+
+    /**
+     * Latency histogram with exponentially growing buckets, from 50 µs to over two minutes. Recording is lock-free,
+     * percentiles are approximated by the upper bound of the bucket they fall into.
+     */
+    public static class Histogram {
+        private static final long FIRST_BUCKET_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+        private static final int BUCKETS = 24;
+
+        private final AtomicLongArray myCounts = new AtomicLongArray(BUCKETS);
+
+        public void record(long nanos) {
+            myCounts.incrementAndGet(getBucket(nanos));
+        }
+
+        private static int getBucket(long nanos) {
+            int bucket = 0;
+            long bound = FIRST_BUCKET_NANOS;
+            while (nanos > bound && bucket < BUCKETS - 1) {
+                bound <<= 1;
+                bucket++;
+            }
+            return bucket;
+        }
+
+        private static long getUpperBoundNanos(int bucket) {
+            return FIRST_BUCKET_NANOS << bucket;
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += myCounts.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * @return upper bound of the bucket containing the given percentile (0..1), 0 if nothing has been recorded
+         */
+        public double getPercentileMs(double percentile) {
+            long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += myCounts.get(i);
+                if (seen >= rank) {
+                    return getUpperBoundNanos(i) / 1_000_000.0;
+                }
+            }
+            return getUpperBoundNanos(BUCKETS - 1) / 1_000_000.0;
+        }
+
+        public void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                myCounts.set(i, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.jetbrains.uncrustify.util;
+
+/**
+ * JMX view of {@link UncrustifyMetrics}, registered as {@value UncrustifyMetrics#OBJECT_NAME}. Latencies are in
+ * milliseconds, percentiles are upper bounds of the histogram buckets they fall into.
+ */
+public interface UncrustifyMetricsMXBean {
+    long getRequestCount();
+
+    long getCancellationCount();
+
+    long getTimeoutCount();
+
+    long getFailureCount();
+
+    long getSpawnCount();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getQueueWaitP50Ms();
+
+    double getQueueWaitP95Ms();
+
+    double getSpawnP50Ms();
+
+    double getSpawnP95Ms();
+
+    double getFirstByteP50Ms();
+
+    double getFirstByteP95Ms();
+
+    double getTotalP50Ms();
+
+    double getTotalP95Ms();
+
+    double getTotalP99Ms();
+
+    /**
+     * @return keys of the executable and config combinations that have been used, see {@link #describeGroup}
+     */
+    String[] getGroups();
+
+    String describeGroup(String group);
+
+    String getSummary();
+
+    void reset();
+}
@@ -0,0 +1,348 @@
+package org.jetbrains.uncrustify.util;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.uncrustify.settings.UncrustifySettingsState;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Options known to a version of Uncrustify, with their types, allowed values and defaults, as printed by
+ * {@code uncrustify --show-config}.
+ * <p>
+ * The catalog of a version is extracted only once and kept on disk, so that configs can be validated without running
+ * Uncrustify (see {@link #validate}).
+ */
+public class UncrustifyOptionCatalog {
+    private static final Logger log = Logger.getInstance(UncrustifyOptionCatalog.class);
+
+    // keywords that may start a config line instead of an option name
+    static final Set<String> KEYWORDS = Set.of(
+            "type", "define", "macro-open", "macro-close", "macro-else", "set", "include", "file_ext", "using");
+
+    private static final Path ourDirectory = Path.of(PathManager.getSystemPath(), "uncrustify", "catalogs");
+    // version -> catalog
+    private static final Map<String, UncrustifyOptionCatalog> ourCatalogs = new ConcurrentHashMap<>();
+
+    public enum Type {
+        BOOLEAN, NUMBER, UNSIGNED, STRING, ENUM
+    }
+
+    public static class Option {
+        private final String myName;
+        private final Type myType;
+        private final Set<String> myAllowedValues;
+        private final String myDefaultValue;
+
+        public Option(@NotNull String name, @NotNull Type type, @NotNull Set<String> allowedValues, @NotNull String defaultValue) {
+            myName = name;
+            myType = type;
+            myAllowedValues = allowedValues;
+            myDefaultValue = defaultValue;
+        }
+
+        public @NotNull String getName() {
+            return myName;
+        }
+
+        public @NotNull Type getType() {
+            return myType;
+        }
+
+        /**
+         * @return lowercase values allowed for {@link Type#ENUM} options, empty for other types
+         */
+        public @NotNull Set<String> getAllowedValues() {
+            return myAllowedValues;
+        }
+
+        public @NotNull String getDefaultValue() {
+            return myDefaultValue;
+        }
+    }
+
+    public static class Problem {
+        private final int myLine;
+        private final String myMessage;
+
+        public Problem(int line, @NotNull String message) {
+            myLine = line;
+            myMessage = message;
+        }
+
+        /**
+         * @return 1-based line number
+         */
+        public int getLine() {
+            return myLine;
+        }
+
+        public @NotNull String getMessage() {
+            return myMessage;
+        }
+
+        @Override
+        public String toString() {
+            return "Line " + myLine + ": " + myMessage;
+        }
+    }
+
+    private final Map<String, Option> myOptions;
+
+    private UncrustifyOptionCatalog(@NotNull Map<String, Option> options) {
+        myOptions = options;
+    }
+
+    public @Nullable Option getOption(@NotNull String name) {
+        return myOptions.get(name);
+    }
+
+    public @NotNull Collection<Option> getOptions() {
+        return Collections.unmodifiableCollection(myOptions.values());
+    }
+
+    /**
+     * @return catalog of the executable at {@code executablePath}, extracted from the executable only if its version
+     * has not been seen before. Completed with {@code null} if the executable can't provide one.
+     */
+    public static @NotNull CompletableFuture<UncrustifyOptionCatalog> get(@NotNull String executablePath) throws ExecutionException {
+        return UncrustifyExecutable.probe(executablePath).thenCompose(probe -> {
+            if (probe == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            UncrustifyOptionCatalog catalog = getCached(probe);
+            if (catalog != null) {
+                return CompletableFuture.completedFuture(catalog);
+            }
+            try {
+                return UncrustifyExecutable.execute(executablePath, List.of("--show-config"), null)
+                        .thenApply(result -> result.isSuccess() ? store(probe, result.getStdout()) : null);
+            } catch (ExecutionException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        });
+    }
+
+    /**
+     * @return catalog of the probed version, if it has been extracted before, possibly in a previous session
+     */
+    public static @Nullable UncrustifyOptionCatalog getCached(@NotNull UncrustifySettingsState.ExecutableProbe probe) {
+        UncrustifyOptionCatalog catalog = ourCatalogs.get(probe.version);
+        if (catalog != null) {
+            return catalog;
+        }
+        Path file = getCatalogFile(probe.version);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            catalog = parse(Files.readString(file, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            log.warn("Could not read Uncrustify option catalog " + file + ": " + e.getMessage());
+            return null;
+        }
+        if (catalog == null) {
+            return null;
+        }
+        ourCatalogs.put(probe.version, catalog);
+        return catalog;
+    }
+
+    private static @Nullable UncrustifyOptionCatalog store(@NotNull UncrustifySettingsState.ExecutableProbe probe, @NotNull String showConfig) {
+        UncrustifyOptionCatalog catalog = parse(showConfig);
+        if (catalog == null) {
+            return null;
+        }
+        ourCatalogs.put(probe.version, catalog);
+
+        Path file = getCatalogFile(probe.version);
+        try {
+            Files.createDirectories(ourDirectory);
+            Path tmp = Files.createTempFile(ourDirectory, "catalog", ".tmp");
+            Files.writeString(tmp, showConfig, StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Could not store Uncrustify option catalog " + file + ": " + e.getMessage());
+        }
+        return catalog;
+    }
+
+    private static @NotNull Path getCatalogFile(@NotNull String version) {
+        return ourDirectory.resolve(FileUtil.sanitizeFileName(version) + ".txt");
+    }
+
+    /**
+     * Parses the output of {@code uncrustify --show-config}, where each option is printed as
+     * {@code name = default # type}, preceded by comment lines describing it. The type is either a list of allowed
+     * values separated by slashes, {@code number}, {@code unsigned number} or {@code string}.
+     *
+     * @return {@code null} if the text contains no options
+     */
+    public static @Nullable UncrustifyOptionCatalog parse(@NotNull String showConfig) {
+        Map<String, Option> options = new HashMap<>();
+        for (String line : StringUtil.splitByLines(showConfig)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int equals = line.indexOf('=');
+            int hash = line.lastIndexOf('#');
+            if (equals <= 0 || hash < equals) {
+                continue;
+            }
+
+            String name = line.substring(0, equals).trim();
+            String defaultValue = unquote(line.substring(equals + 1, hash).trim());
+            String typeText = line.substring(hash + 1).trim().toLowerCase(Locale.ROOT);
+            Set<String> allowedValues = Collections.emptySet();
+            Type type;
+            if (typeText.equals("true/false")) {
+                type = Type.BOOLEAN;
+            } else if (typeText.equals("unsigned number")) {
+                type = Type.UNSIGNED;
+            } else if (typeText.equals("number")) {
+                type = Type.NUMBER;
+            } else if (typeText.contains("/")) {
+                type = Type.ENUM;
+                allowedValues = new LinkedHashSet<>(StringUtil.split(typeText, "/"));
+            } else {
+                type = Type.STRING;
+            }
+            options.put(name, new Option(name, type, allowedValues, defaultValue));
+        }
+        return options.isEmpty() ? null : new UncrustifyOptionCatalog(options);
+    }
+
+    /**
+     * Checks that every line of {@code config} either sets a known option to a value allowed by its type, or starts
+     * with one of the keywords Uncrustify accepts in configs. {@code include} lines are not followed.
+     *
+     * @return problems in the order of lines, empty if the config is valid
+     */
+    public @NotNull List<Problem> validate(@NotNull CharSequence config) {
+        List<Problem> problems = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : StringUtil.splitByLines(config.toString(), false)) {
+            lineNumber++;
+            int comment = findComment(line);
+            String content = (comment >= 0 ? line.substring(0, comment) : line).trim();
+            if (content.isEmpty()) {
+                continue;
+            }
+
+            String name;
+            String value;
+            int equals = content.indexOf('=');
+            if (equals >= 0) {
+                name = content.substring(0, equals).trim();
+                value = content.substring(equals + 1).trim();
+            } else {
+                int space = StringUtil.indexOfAny(content, " \t");
+                name = space >= 0 ? content.substring(0, space) : content;
+                value = space >= 0 ? content.substring(space + 1).trim() : "";
+            }
+
+            if (KEYWORDS.contains(name.toLowerCase(Locale.ROOT))) {
+                continue;
+            }
+            Option option = myOptions.get(name);
+            if (option == null) {
+                problems.add(new Problem(lineNumber, "Unknown option '" + name + "'"));
+                continue;
+            }
+            String error = checkValue(option, unquote(value));
+            if (error != null) {
+                problems.add(new Problem(lineNumber, error));
+            }
+        }
+        return problems;
+    }
+
+    private @Nullable String checkValue(@NotNull Option option, @NotNull String value) {
+        if (value.isEmpty()) {
+            return "Missing value of option '" + option.getName() + "'";
+        }
+        String lowercase = value.toLowerCase(Locale.ROOT);
+        switch (option.getType()) {
+            case BOOLEAN:
+                if (lowercase.equals("true") || lowercase.equals("false") || lowercase.equals("1") || lowercase.equals("0")
+                        || isReference(value, option)) {
+                    return null;
+                }
+                return "Option '" + option.getName() + "' expects true or false, got '" + value + "'";
+            case NUMBER:
+            case UNSIGNED:
+                if (isReference(value, option)) {
+                    return null;
+                }
+                try {
+                    long number = Long.parseLong(value);
+                    if (option.getType() == Type.UNSIGNED && number < 0) {
+                        return "Option '" + option.getName() + "' expects a non-negative number, got '" + value + "'";
+                    }
+                    return null;
+                } catch (NumberFormatException e) {
+                    return "Option '" + option.getName() + "' expects a number, got '" + value + "'";
+                }
+            case ENUM:
+                if (option.getAllowedValues().contains(lowercase) || isReference(value, option)) {
+                    return null;
+                }
+                return "Option '" + option.getName() + "' expects one of " + String.join(", ", option.getAllowedValues())
+                        + ", got '" + value + "'";
+            default:
+                return null;
+        }
+    }
+
+    // Uncrustify allows to set an option to the value of another option of the same type, optionally negated
+    private boolean isReference(@NotNull String value, @NotNull Option option) {
+        String name = StringUtil.trimStart(StringUtil.trimStart(value, "-"), "~");
+        Option referenced = myOptions.get(name);
+        return referenced != null && referenced.getType() == option.getType();
+    }
+
+    static int findComment(@NotNull String line) {
+        char quote = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '#') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static @NotNull String unquote(@NotNull String value) {
+        if (value.length() >= 2 && (value.startsWith("\"") && value.endsWith("\"") || value.startsWith("'") && value.endsWith("'"))) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,31 @@
+package org.jetbrains.uncrustify.util;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Completes formatting futures exceptionally when Uncrustify failed or was killed by {@link UncrustifyProcessWatchdog}.
+ */
+public class UncrustifyProcessException extends RuntimeException {
+    private final int myExitCode;
+    private final boolean myTimedOut;
+    private final String myStderr;
+
+    public UncrustifyProcessException(@NotNull UncrustifyProcessResult result) {
+        super(result.isTimedOut() ? "Uncrustify timed out" : "Uncrustify exited with code " + result.getExitCode());
+        myExitCode = result.getExitCode();
+        myTimedOut = result.isTimedOut();
+        myStderr = result.getStderr();
+    }
+
+    public int getExitCode() {
+        return myExitCode;
+    }
+
+    public boolean isTimedOut() {
+        return myTimedOut;
+    }
+
+    public @NotNull String getStderr() {
+        return myStderr;
+    }
+}
@@ -0,0 +1,333 @@
+package org.jetbrains.uncrustify.util;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps Uncrustify processes that are already started, have their config loaded and are blocked reading stdin.
+ * <p>
+ * Uncrustify reads the whole input before it starts formatting, so a process can be spawned ahead of time with all
+ * its parameters and handed over once a format request arrives. Processes are pooled by executable, parameters and
+ * the effective config at spawn time (see {@link UncrustifyConfigParser}); every {@link #acquire} schedules a
+ * background refill of its pool entry, and destroys the processes that were started for a previous version of the
+ * config.
+ * Idle processes are destroyed after a while, so that configs or executables that are no longer used do not keep
+ * processes around. An entry whose processes exit before they are given input isn't refilled until it expires after
+ * the same while, or until a process with its parameters has formatted successfully.
+ */
+public class UncrustifyProcessPool implements Disposable {
+    private static final Logger log = Logger.getInstance(UncrustifyProcessPool.class);
+
+    private static final long IDLE_TIMEOUT_MS = 60_000;
+    private static final int MAX_KEYS = 8;
+
+    // in access order, so that the least recently used key is evicted first
+    private final Map<Key, Entry> myEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long myIdleTimeoutMs;
+    private final ScheduledFuture<?> mySweeper;
+    private boolean myDisposed = false;
+
+    public UncrustifyProcessPool() {
+        this(IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * @param idleTimeoutMs time after which idle processes are destroyed and broken entries expire
+     */
+    public UncrustifyProcessPool(long idleTimeoutMs) {
+        myIdleTimeoutMs = idleTimeoutMs;
+        mySweeper = AppExecutorUtil.getAppScheduledExecutorService().scheduleWithFixedDelay(
+                this::destroyIdleProcesses, idleTimeoutMs, idleTimeoutMs / 2, TimeUnit.MILLISECONDS);
+    }
+
+    public static UncrustifyProcessPool getInstance() {
+        return ApplicationManager.getApplication().getService(UncrustifyProcessPool.class);
+    }
+
+    public static int getPoolSize() {
+        return Registry.intValue("uncrustify.process.pool.size", 2);
+    }
+
+    /**
+     * @return number of processes that are waiting to be acquired, for all parameters
+     */
+    public synchronized int getIdleProcessCount() {
+        int count = 0;
+        for (Entry entry : myEntries.values()) {
+            count += entry.idle.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return a running Uncrustify process with the given parameters that has not been given any input yet
+     */
+    public @NotNull Process acquire(@NotNull String executablePath, @NotNull String configPath, @NotNull List<String> params) throws ExecutionException {
+        return acquire(executablePath, configPath, params, false);
+    }
+
+    /**
+     * @param background whether the process is started with a lowered priority, see
+     *                   {@link UncrustifyUtil#createCommandLine(String, List, boolean)}
+     */
+    public @NotNull Process acquire(@NotNull String executablePath,
+                                    @NotNull String configPath,
+                                    @NotNull List<String> params,
+                                    boolean background) throws ExecutionException {
+        Key key = new Key(executablePath, params, configFingerprint(configPath), background);
+        Process process = takeWarmProcess(key);
+        if (process == null) {
+            process = spawn(key);
+            if (isBroken(key)) {
+                // the processes that exited prematurely did so for a transient reason if this one succeeds
+                process.onExit().thenAccept(p -> {
+                    if (p.exitValue() == 0) {
+                        repair(key);
+                    }
+                });
+            }
+        }
+        scheduleRefill(key);
+        return process;
+    }
+
+    private synchronized boolean isBroken(@NotNull Key key) {
+        Entry entry = myEntries.get(key);
+        return entry != null && entry.brokenAt != 0;
+    }
+
+    private synchronized void repair(@NotNull Key key) {
+        Entry entry = myEntries.get(key);
+        if (entry != null) {
+            entry.brokenAt = 0;
+        }
+    }
+
+    private @Nullable Process takeWarmProcess(@NotNull Key key) {
+        List<WarmProcess> stale = new ArrayList<>();
+        Process process = takeWarmProcess(key, stale);
+        destroy(stale);
+        return process;
+    }
+
+    private synchronized @Nullable Process takeWarmProcess(@NotNull Key key, @NotNull List<WarmProcess> stale) {
+        Entry entry = myEntries.get(key);
+        if (entry == null) {
+            // processes with the same parameters but another config fingerprint have loaded an outdated config
+            Iterator<Map.Entry<Key, Entry>> it = myEntries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, Entry> other = it.next();
+                if (other.getKey().isOutdatedBy(key)) {
+                    it.remove();
+                    stale.addAll(other.getValue().idle);
+                }
+            }
+            return null;
+        }
+        while (!entry.idle.isEmpty()) {
+            Process process = entry.idle.pollFirst().process;
+            if (process.isAlive()) {
+                return process;
+            }
+            // a process that died without input most likely rejected its config, spawning more of them is pointless
+            log.debug("Pooled Uncrustify process exited prematurely, pooling disabled for " + key);
+            entry.brokenAt = System.currentTimeMillis();
+        }
+        return null;
+    }
+
+    private void scheduleRefill(@NotNull Key key) {
+        int missing;
+        Entry entry;
+        synchronized (this) {
+            if (myDisposed) {
+                return;
+            }
+            entry = myEntries.computeIfAbsent(key, k -> new Entry());
+            missing = entry.brokenAt != 0 ? 0 : getPoolSize() - entry.idle.size() - entry.spawning;
+            if (missing <= 0) {
+                return;
+            }
+            entry.spawning += missing;
+            evictOverflow();
+        }
+
+        for (int i = 0; i < missing; i++) {
+            AppExecutorUtil.getAppExecutorService().execute(() -> refill(key, entry));
+        }
+    }
+
+    private void refill(@NotNull Key key, @NotNull Entry entry) {
+        Process process = null;
+        try {
+            process = spawn(key);
+        } catch (ExecutionException e) {
+            log.debug("Could not spawn a pooled Uncrustify process: " + e.getMessage());
+        }
+
+        synchronized (this) {
+            entry.spawning--;
+            if (process == null) {
+                return;
+            }
+            if (myEntries.get(key) != entry || myDisposed) {
+                process.destroy();
+                return;
+            }
+            entry.idle.addLast(new WarmProcess(process));
+        }
+    }
+
+    private static @NotNull Process spawn(@NotNull Key key) throws ExecutionException {
+        long start = System.nanoTime();
+        Process process;
+        try (UncrustifyTracer.Span ignored = UncrustifyTracer.start("startProcess")) {
+            process = UncrustifyUtil.createCommandLine(key.executablePath, key.params, key.background).createProcess();
+        }
+        UncrustifyMetrics.getInstance().recordSpawn(System.nanoTime() - start);
+        return process;
+    }
+
+    private void evictOverflow() {
+        Iterator<Entry> it = myEntries.values().iterator();
+        while (myEntries.size() > MAX_KEYS && it.hasNext()) {
+            Entry entry = it.next();
+            it.remove();
+            destroy(entry.idle);
+        }
+    }
+
+    private void destroyIdleProcesses() {
+        List<WarmProcess> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Iterator<Entry> it = myEntries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                entry.idle.removeIf(p -> {
+                    if (!p.process.isAlive()) {
+                        log.debug("Pooled Uncrustify process exited prematurely, pooling disabled");
+                        entry.brokenAt = now;
+                        return true;
+                    }
+                    if (now - p.spawnedAt > myIdleTimeoutMs) {
+                        expired.add(p);
+                        return true;
+                    }
+                    return false;
+                });
+                // a broken entry is kept until it expires, so that it isn't refilled right away
+                boolean broken = entry.brokenAt != 0 && now - entry.brokenAt <= myIdleTimeoutMs;
+                if (entry.idle.isEmpty() && entry.spawning == 0 && !broken) {
+                    it.remove();
+                }
+            }
+        }
+        destroy(expired);
+    }
+
+    private static void destroy(@NotNull Iterable<WarmProcess> processes) {
+        for (WarmProcess p : processes) {
+            p.process.destroy();
+        }
+    }
+
+    /**
+     * Changes to a config or any config it includes must not be served by processes that loaded its previous version,
+     * so the key includes the fingerprint of the effective config.
+     */
+    private static @NotNull String configFingerprint(@NotNull String configPath) {
+        try {
+            return UncrustifyConfigParser.getInstance().getFingerprint(configPath);
+        } catch (IOException e) {
+            // Uncrustify will fail to load it too, there is nothing to tell apart
+            return "unreadable";
+        }
+    }
+
+    @Override
+    public void dispose() {
+        mySweeper.cancel(false);
+        List<WarmProcess> processes = new ArrayList<>();
+        synchronized (this) {
+            myDisposed = true;
+            for (Entry entry : myEntries.values()) {
+                processes.addAll(entry.idle);
+            }
+            myEntries.clear();
+        }
+        destroy(processes);
+    }
+
+    private static class Entry {
+        private final Deque<WarmProcess> idle = new ArrayDeque<>();
+        private int spawning = 0;
+        // when a process of this entry exited prematurely, or 0
+        private long brokenAt = 0;
+    }
+
+    private static class WarmProcess {
+        private final Process process;
+        private final long spawnedAt = System.currentTimeMillis();
+
+        private WarmProcess(@NotNull Process process) {
+            this.process = process;
+        }
+    }
+
+    private static class Key {
+        private final String executablePath;
+        private final List<String> params;
+        private final String configFingerprint;
+        private final boolean background;
+
+        private Key(@NotNull String executablePath, @NotNull List<String> params, @NotNull String configFingerprint, boolean background) {
+            this.executablePath = executablePath;
+            this.params = List.copyOf(params);
+            this.configFingerprint = configFingerprint;
+            this.background = background;
+        }
+
+        private boolean isOutdatedBy(@NotNull Key key) {
+            return executablePath.equals(key.executablePath) && params.equals(key.params) && background == key.background
+                    && !configFingerprint.equals(key.configFingerprint);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return executablePath.equals(key.executablePath) && params.equals(key.params)
+                    && configFingerprint.equals(key.configFingerprint) && background == key.background;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(executablePath, params, configFingerprint, background);
+        }
+
+        @Override
+        public String toString() {
+            return executablePath + " " + String.join(" ", params) + " (config " + configFingerprint + (background ? ", background)" : ")");
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.jetbrains.uncrustify.util;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Raw outcome of an Uncrustify process run by {@link UncrustifyProcessRunner}.
+ */
+public class UncrustifyProcessResult {
+    private final int myExitCode;
+    private final BufferExposingByteArrayOutputStream myStdout;
+    private final String myStderr;
+    private final boolean myTimedOut;
+    private final long myTimeToFirstByteNanos;
+    private final long myElapsedNanos;
+
+    public UncrustifyProcessResult(int exitCode, @NotNull BufferExposingByteArrayOutputStream stdout, @NotNull String stderr, boolean timedOut) {
+        this(exitCode, stdout, stderr, timedOut, -1, 0);
+    }
+
+    public UncrustifyProcessResult(int exitCode,
+                                   @NotNull BufferExposingByteArrayOutputStream stdout,
+                                   @NotNull String stderr,
+                                   boolean timedOut,
+                                   long timeToFirstByteNanos,
+                                   long elapsedNanos) {
+        myExitCode = exitCode;
+        myStdout = stdout;
+        myStderr = stderr;
+        myTimedOut = timedOut;
+        myTimeToFirstByteNanos = timeToFirstByteNanos;
+        myElapsedNanos = elapsedNanos;
+    }
+
+    public int getExitCode() {
+        return myExitCode;
+    }
+
+    /**
+     * @return true if the process was killed by {@link UncrustifyProcessWatchdog}
+     */
+    public boolean isTimedOut() {
+        return myTimedOut;
+    }
+
+    public boolean isSuccess() {
+        return myExitCode == 0 && !myTimedOut;
+    }
+
+    public @NotNull BufferExposingByteArrayOutputStream getStdoutBytes() {
+        return myStdout;
+    }
+
+    public @NotNull String getStdout(@NotNull Charset charset) {
+        return UncrustifyStreams.decode(myStdout, charset);
+    }
+
+    public @NotNull String getStdout() {
+        return getStdout(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return time between writing the input and receiving the first byte of output, -1 if there was no output
+     */
+    public long getTimeToFirstByteNanos() {
+        return myTimeToFirstByteNanos;
+    }
+
+    /**
+     * @return time between writing the input and the exit of the process
+     */
+    public long getElapsedNanos() {
+        return myElapsedNanos;
+    }
+
+    /**
+     * @return the tail of the process's stderr, at most {@link UncrustifyProcessRunner#STDERR_LIMIT} bytes of it
+     */
+    public @NotNull String getStderr() {
+        return myStderr;
+    }
+}
@@ -0,0 +1,164 @@
+package org.jetbrains.uncrustify.util;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs Uncrustify processes without the text event machinery of {@code OSProcessHandler}.
+ * <p>
+ * Stdout is read as raw bytes into a single growable buffer, stderr is kept in a ring buffer that remembers only its
+ * last {@link #STDERR_LIMIT} bytes. Stdout is drained on a small executor shared by all processes, and every
+ * process is watched by {@link UncrustifyProcessWatchdog}. The deadline is restarted once the output is being drained,
+ * so that waiting for a free thread doesn't count against the process.
+ */
+public class UncrustifyProcessRunner {
+    private static final Logger log = Logger.getInstance(UncrustifyProcessRunner.class);
+
+    public static final int STDERR_LIMIT = 16 * 1024;
+
+    // drains stdout; stderr is read on the unbounded application pool instead, see run()
+    private static final ExecutorService ourIoExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor(
+            "Uncrustify I/O", Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Writes {@code input} to the process's stdin, which is closed afterwards, and collects the process's output.
+     * The input is fully written when this method returns. Cancelling the returned future destroys the process.
+     *
+     * @param stdoutSizeHint expected size of the output, used as the initial size of the output buffer
+     */
+    public static @NotNull CompletableFuture<UncrustifyProcessResult> run(@NotNull Process process, @Nullable ByteBuffer input, int stdoutSizeHint) {
+        return run(process, input, stdoutSizeHint, input == null ? 0 : input.remaining());
+    }
+
+    /**
+     * @param workBytes amount of code the process formats, from which the watchdog derives its timeout. Differs from
+     *                  the size of {@code input} when the process reads its input from files.
+     */
+    public static @NotNull CompletableFuture<UncrustifyProcessResult> run(@NotNull Process process, @Nullable ByteBuffer input, int stdoutSizeHint, long workBytes) {
+        long startedAt = System.nanoTime();
+
+        // Not on ourIoExecutor: stderr readers only finish once their process exits, and a process only exits once its
+        // stdout is drained. Stderr readers taking every thread of a bounded pool would leave no thread for that.
+        CompletableFuture<String> stderr = CompletableFuture.supplyAsync(
+                () -> readStderr(process.getErrorStream()), AppExecutorUtil.getAppExecutorService());
+        UncrustifyProcessWatchdog.Watch watch = UncrustifyProcessWatchdog.getInstance().watch(process, workBytes, null);
+        CompletableFuture<UncrustifyProcessResult> result = CompletableFuture.supplyAsync(() -> {
+            // time spent waiting for a free I/O thread doesn't count against the process
+            watch.restart();
+            try {
+                FirstByteInputStream stdoutStream = new FirstByteInputStream(process.getInputStream());
+                BufferExposingByteArrayOutputStream stdout;
+                try (UncrustifyTracer.Span ignored = UncrustifyTracer.start("drainStdout")) {
+                    stdout = UncrustifyStreams.readAll(stdoutStream, stdoutSizeHint);
+                }
+                int exitCode = process.waitFor();
+                long firstByteAt = stdoutStream.firstByteAt;
+                return new UncrustifyProcessResult(exitCode, stdout, stderr.join(), watch.isTimedOut(),
+                        firstByteAt >= 0 ? firstByteAt - startedAt : -1, System.nanoTime() - startedAt);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            } finally {
+                watch.finish();
+            }
+        }, ourIoExecutor);
+        result.whenComplete((r, t) -> {
+            if (result.isCancelled()) {
+                process.destroy();
+            }
+        });
+
+        try (UncrustifyTracer.Span ignored = UncrustifyTracer.start("writeStdin");
+             OutputStream stdin = process.getOutputStream()) {
+            if (input != null) {
+                UncrustifyStreams.write(input, stdin);
+            }
+        } catch (IOException e) {
+            // the process has probably died already, which will be reflected in its exit code
+            log.debug("Could not write input to Uncrustify: " + e.getMessage());
+        }
+        return result;
+    }
+
+    private static @NotNull String readStderr(@NotNull InputStream in) {
+        RingBuffer ring = new RingBuffer(STDERR_LIMIT);
+        byte[] chunk = new byte[1024];
+        try {
+            int read;
+            while ((read = in.read(chunk)) >= 0) {
+                ring.write(chunk, read);
+            }
+        } catch (IOException e) {
+            log.debug("Could not read Uncrustify stderr: " + e.getMessage());
+        }
+        return ring.toString();
+    }
+
+    private static class FirstByteInputStream extends FilterInputStream {
+        private long firstByteAt = -1;
+
+        private FirstByteInputStream(@NotNull InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte @NotNull [] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0 && firstByteAt < 0) {
+                firstByteAt = System.nanoTime();
+            }
+            return read;
+        }
+    }
+
+    private static class RingBuffer {
+        private final byte[] myBuffer;
+        private int myStart = 0;
+        private int mySize = 0;
+        private long myDropped = 0;
+
+        private RingBuffer(int capacity) {
+            myBuffer = new byte[capacity];
+        }
+
+        private void write(byte @NotNull [] bytes, int length) {
+            for (int i = 0; i < length; i++) {
+                int end = (myStart + mySize) % myBuffer.length;
+                myBuffer[end] = bytes[i];
+                if (mySize < myBuffer.length) {
+                    mySize++;
+                } else {
+                    myStart = (myStart + 1) % myBuffer.length;
+                    myDropped++;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            byte[] ordered = new byte[mySize];
+            int firstPart = Math.min(mySize, myBuffer.length - myStart);
+            System.arraycopy(myBuffer, myStart, ordered, 0, firstPart);
+            System.arraycopy(myBuffer, 0, ordered, firstPart, mySize - firstPart);
+            String text = new String(ordered, StandardCharsets.UTF_8);
+            return myDropped > 0 ? "[" + myDropped + " bytes omitted]\n" + text : text;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.jetbrains.uncrustify.util;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single scheduler that keeps track of all live Uncrustify processes and kills those that run for too long.
+ * <p>
+ * The deadline of each process is derived from the size of its input and from the latency per input byte observed on
+ * previous runs, so that large files get more time than small ones, and a machine on which Uncrustify is slow adapts
+ * the timeouts accordingly.
+ */
+public class UncrustifyProcessWatchdog implements Disposable {
+    private static final Logger log = Logger.getInstance(UncrustifyProcessWatchdog.class);
+
+    private static final long MIN_TIMEOUT_MS = 5_000;
+    private static final long MAX_TIMEOUT_MS = 120_000;
+    private static final double SAFETY_FACTOR = 10.0;
+    private static final double INITIAL_NANOS_PER_BYTE = 1_000.0;
+    // smaller inputs are dominated by process startup and say little about the throughput
+    private static final long MIN_SAMPLE_BYTES = 4096;
+    private static final double SAMPLE_WEIGHT = 0.2;
+
+    private final ScheduledExecutorService myScheduler = AppExecutorUtil.createBoundedScheduledExecutorService("Uncrustify Watchdog", 1);
+    private final Set<Watch> myWatches = ConcurrentHashMap.newKeySet();
+    private final AtomicLong myTimeoutCount = new AtomicLong();
+    private volatile double myNanosPerByte = INITIAL_NANOS_PER_BYTE;
+
+    public static UncrustifyProcessWatchdog getInstance() {
+        return ApplicationManager.getApplication().getService(UncrustifyProcessWatchdog.class);
+    }
+
+    /**
+     * Starts watching {@code process}. {@link Watch#finish()} must be called once the process terminates.
+     *
+     * @param onTimeout called after the process was killed because it exceeded its deadline
+     */
+    public @NotNull Watch watch(@NotNull Process process, long inputBytes, @Nullable Runnable onTimeout) {
+        long timeoutMs = getTimeoutMs(inputBytes);
+        Watch watch = new Watch(process, inputBytes, timeoutMs, onTimeout);
+        myWatches.add(watch);
+        watch.future = myScheduler.schedule(watch::expire, timeoutMs, TimeUnit.MILLISECONDS);
+        return watch;
+    }
+
+    public long getTimeoutMs(long inputBytes) {
+        double expectedMs = inputBytes * myNanosPerByte / 1_000_000.0;
+        long timeoutMs = MIN_TIMEOUT_MS + (long) (expectedMs * SAFETY_FACTOR);
+        return Math.min(timeoutMs, MAX_TIMEOUT_MS);
+    }
+
+    public int getLiveProcessCount() {
+        return myWatches.size();
+    }
+
+    public long getTimeoutCount() {
+        return myTimeoutCount.get();
+    }
+
+    private void recordSample(long inputBytes, long elapsedNanos) {
+        if (inputBytes < MIN_SAMPLE_BYTES) {
+            return;
+        }
+        double sample = (double) elapsedNanos / inputBytes;
+        myNanosPerByte = myNanosPerByte * (1 - SAMPLE_WEIGHT) + sample * SAMPLE_WEIGHT;
+    }
+
+    @Override
+    public void dispose() {
+        myScheduler.shutdownNow();
+        for (Watch watch : myWatches) {
+            watch.process.destroyForcibly();
+        }
+        myWatches.clear();
+    }
+
+    public class Watch {
+        private final Process process;
+        private final long inputBytes;
+        private final long timeoutMs;
+        private final @Nullable Runnable onTimeout;
+        private volatile long startedAt = System.nanoTime();
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile boolean timedOut = false;
+        private volatile ScheduledFuture<?> future;
+
+        private Watch(@NotNull Process process, long inputBytes, long timeoutMs, @Nullable Runnable onTimeout) {
+            this.process = process;
+            this.inputBytes = inputBytes;
+            this.timeoutMs = timeoutMs;
+            this.onTimeout = onTimeout;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        public long getTimeoutMs() {
+            return timeoutMs;
+        }
+
+        /**
+         * Gives the process its full timeout again, counted from now.
+         */
+        public void restart() {
+            if (done.get()) {
+                return;
+            }
+            ScheduledFuture<?> f = future;
+            if (f != null) {
+                f.cancel(false);
+            }
+            startedAt = System.nanoTime();
+            future = myScheduler.schedule(this::expire, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        public void finish() {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            myWatches.remove(this);
+            ScheduledFuture<?> f = future;
+            if (f != null) {
+                f.cancel(false);
+            }
+            recordSample(inputBytes, System.nanoTime() - startedAt);
+        }
+
+        private void expire() {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            myWatches.remove(this);
+            if (!process.isAlive()) {
+                return;
+            }
+            timedOut = true;
+            myTimeoutCount.incrementAndGet();
+            log.warn(String.format("Uncrustify process (pid %d, %d bytes of input) did not finish within %d ms, killing it",
+                    process.pid(), inputBytes, timeoutMs));
+            process.descendants().forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+            if (onTimeout != null) {
+                onTimeout.run();
+            }
+        }
+    }
+}
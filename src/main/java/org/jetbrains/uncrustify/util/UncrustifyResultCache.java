@@ -0,0 +1,190 @@
+package org.jetbrains.uncrustify.util;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.LowMemoryWatcher;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Bounded in-memory cache of formatted texts in front of Uncrustify.
+ * <p>
+ * Entries are keyed by everything that determines Uncrustify's output: the input text, the effective config, the
+ * executable and the way the input is passed to it. Identical requests that arrive while the first of them is still
+ * being formatted share its process instead of spawning their own. The cache is cleared when the IDE is low on memory.
+ */
+public class UncrustifyResultCache implements Disposable {
+    // in characters of the cached texts
+    private static final long MAX_CACHED_SIZE = 16 * 1024 * 1024;
+
+    // in access order, so that the least recently used entry is evicted first
+    private final Map<Key, String> myResults = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Key, InFlight> myInFlight = new LinkedHashMap<>();
+    private long myCachedSize = 0;
+
+    public UncrustifyResultCache() {
+        LowMemoryWatcher.register(this::clear, this);
+    }
+
+    public static UncrustifyResultCache getInstance() {
+        return ApplicationManager.getApplication().getService(UncrustifyResultCache.class);
+    }
+
+    /**
+     * @param compute starts formatting, called only if there is neither a cached nor an in-flight result for
+     *                {@code key}. Only successfully completed results are cached.
+     * @return the formatted text. Cancelling the returned future cancels the computation only if no other request
+     * is waiting for it; requests made after that start a new computation.
+     */
+    public @NotNull CompletableFuture<String> get(@NotNull Key key, @NotNull Supplier<CompletableFuture<String>> compute) {
+        InFlight inFlight;
+        boolean computeNow = false;
+        synchronized (this) {
+            String cached = myResults.get(key);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+            inFlight = myInFlight.get(key);
+            if (inFlight == null) {
+                inFlight = new InFlight(key);
+                myInFlight.put(key, inFlight);
+                computeNow = true;
+            }
+            inFlight.waiters++;
+        }
+
+        if (computeNow) {
+            CompletableFuture<String> future;
+            try {
+                future = compute.get();
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            inFlight.source.complete(future);
+            InFlight computed = inFlight;
+            future.whenComplete((text, throwable) -> onComputed(key, computed, text));
+        }
+        return inFlight.newWaiter();
+    }
+
+    private synchronized void onComputed(@NotNull Key key, @NotNull InFlight inFlight, String text) {
+        myInFlight.remove(key, inFlight);
+        if (text == null || text.length() > MAX_CACHED_SIZE / 4) {
+            return;
+        }
+        String previous = myResults.put(key, text);
+        myCachedSize += text.length() - (previous != null ? previous.length() : 0);
+
+        Iterator<String> it = myResults.values().iterator();
+        while (myCachedSize > MAX_CACHED_SIZE && it.hasNext()) {
+            myCachedSize -= it.next().length();
+            it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        myResults.clear();
+        myCachedSize = 0;
+    }
+
+    @Override
+    public void dispose() {
+        clear();
+    }
+
+    /**
+     * Called when a waiter of {@code inFlight} is cancelled. When it was the last one, the computation is removed
+     * before it is cancelled, so that a request arriving afterwards starts a new one instead of joining the cancelled
+     * computation.
+     */
+    private void onWaiterCancelled(@NotNull InFlight inFlight) {
+        synchronized (this) {
+            if (--inFlight.waiters > 0) {
+                return;
+            }
+            myInFlight.remove(inFlight.key, inFlight);
+        }
+        inFlight.source.thenAccept(f -> f.cancel(true));
+    }
+
+    public synchronized int getInFlightCount() {
+        return myInFlight.size();
+    }
+
+    private class InFlight {
+        private final Key key;
+        private final CompletableFuture<CompletableFuture<String>> source = new CompletableFuture<>();
+        // guarded by UncrustifyResultCache.this
+        private int waiters = 0;
+
+        private InFlight(@NotNull Key key) {
+            this.key = key;
+        }
+
+        private @NotNull CompletableFuture<String> newWaiter() {
+            CompletableFuture<String> waiter = source.thenCompose(f -> f);
+            waiter.whenComplete((text, throwable) -> {
+                if (waiter.isCancelled()) {
+                    onWaiterCancelled(this);
+                }
+            });
+            return waiter;
+        }
+    }
+
+    public static class Key {
+        private final String myInputFingerprint;
+        private final String myConfigFingerprint;
+        private final String myExecutableVersion;
+        private final String myVariant;
+
+        /**
+         * @param variant everything else that affects the output, like the language, whether the input is a fragment
+         *                and the file name if the config inserts it into comments
+         */
+        public Key(@NotNull String inputFingerprint, @NotNull String configFingerprint, @NotNull String executableVersion, @NotNull String variant) {
+            myInputFingerprint = inputFingerprint;
+            myConfigFingerprint = configFingerprint;
+            myExecutableVersion = executableVersion;
+            myVariant = variant;
+        }
+
+        public @NotNull String getInputFingerprint() {
+            return myInputFingerprint;
+        }
+
+        public @NotNull String getConfigFingerprint() {
+            return myConfigFingerprint;
+        }
+
+        public @NotNull String getExecutableVersion() {
+            return myExecutableVersion;
+        }
+
+        public @NotNull String getVariant() {
+            return myVariant;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return myInputFingerprint.equals(key.myInputFingerprint) &&
+                    myConfigFingerprint.equals(key.myConfigFingerprint) &&
+                    myExecutableVersion.equals(key.myExecutableVersion) &&
+                    myVariant.equals(key.myVariant);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(myInputFingerprint, myConfigFingerprint, myExecutableVersion, myVariant);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package org.jetbrains.uncrustify.util;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.registry.Registry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persistent store of formatted texts, so that files that haven't changed since the previous IDE session are not
+ * formatted by Uncrustify again.
+ * <p>
+ * Results are addressed by {@link UncrustifyResultCache.Key}, i.e. by the fingerprints of the input and the effective
+ * config, the executable and the way the input was passed. Every result is a gzipped file named after the key; inputs
+ * that Uncrustify left unchanged are stored as an empty file, since the input itself is all it takes to restore them.
+ * Files are written to a temporary file first and moved into place, so a crash never leaves a truncated result behind,
+ * and a result that can't be read is dropped. Once the store grows over {@code uncrustify.result.store.mb}, the least
+ * recently used results are deleted; the last use survives restarts as the modification time of the file.
+ */
+public class UncrustifyResultStore {
+    private static final Logger log = Logger.getInstance(UncrustifyResultStore.class);
+
+    private static final String SUFFIX = ".gz";
+    private static final String TMP_SUFFIX = ".tmp";
+    // file systems with coarse timestamps may round the modification time of a new file down by that much
+    private static final long TIMESTAMP_GRANULARITY_MS = 2_000;
+
+    private final Path myDirectory;
+    private final long myMaxSize;
+    private final long myCreatedAt = System.currentTimeMillis();
+    // file name -> file size, in access order; loaded from disk on first use
+    private @Nullable Map<String, Long> myIndex;
+    private long mySize = 0;
+
+    public UncrustifyResultStore() {
+        this(Path.of(PathManager.getSystemPath(), "uncrustify", "results"),
+                Registry.intValue("uncrustify.result.store.mb", 64) * 1024L * 1024L);
+    }
+
+    public UncrustifyResultStore(@NotNull Path directory, long maxSize) {
+        myDirectory = directory;
+        myMaxSize = maxSize;
+    }
+
+    public static UncrustifyResultStore getInstance() {
+        return ApplicationManager.getApplication().getService(UncrustifyResultStore.class);
+    }
+
+    /**
+     * @param input the text {@code key} was computed for, returned as is for inputs that were already formatted
+     * @return the stored formatted text, {@code null} if there is none
+     */
+    public @Nullable String get(@NotNull UncrustifyResultCache.Key key, @NotNull CharSequence input) {
+        if (myMaxSize <= 0) {
+            return null;
+        }
+        String name = getFileName(key);
+        synchronized (this) {
+            // also marks the result as recently used
+            if (getIndex().get(name) == null) {
+                return null;
+            }
+        }
+
+        Path file = myDirectory.resolve(name);
+        try {
+            String text;
+            if (Files.size(file) == 0) {
+                text = input.toString();
+            } else {
+                try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+                    text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                }
+            }
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return text;
+        } catch (NoSuchFileException e) {
+            // evicted in the meantime
+            remove(name);
+            return null;
+        } catch (IOException e) {
+            log.debug("Dropping unreadable Uncrustify result " + file + ": " + e.getMessage());
+            remove(name);
+            delete(file);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the result of formatting {@code input}. Failures are only logged, the store is just an optimization.
+     */
+    public void put(@NotNull UncrustifyResultCache.Key key, @NotNull CharSequence input, @NotNull String formatted) {
+        if (myMaxSize <= 0) {
+            return;
+        }
+        String name = getFileName(key);
+        Path file = myDirectory.resolve(name);
+        long size;
+        try {
+            Files.createDirectories(myDirectory);
+            Path tmp = Files.createTempFile(myDirectory, name, TMP_SUFFIX);
+            try {
+                if (!formatted.contentEquals(input)) {
+                    BufferExposingByteArrayOutputStream buffer = new BufferExposingByteArrayOutputStream(formatted.length() / 4 + 64);
+                    try (OutputStream out = new GZIPOutputStream(buffer)) {
+                        out.write(formatted.getBytes(StandardCharsets.UTF_8));
+                    }
+                    try (OutputStream out = Files.newOutputStream(tmp)) {
+                        out.write(buffer.getInternalBuffer(), 0, buffer.size());
+                    }
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            size = Files.size(file);
+        } catch (IOException e) {
+            log.warn("Could not store Uncrustify result in " + myDirectory + ": " + e.getMessage());
+            return;
+        }
+
+        List<Path> evicted = new ArrayList<>();
+        synchronized (this) {
+            Map<String, Long> index = getIndex();
+            Long previous = index.put(name, size);
+            mySize += size - (previous != null ? previous : 0);
+            Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+            while (mySize > myMaxSize && it.hasNext()) {
+                Map.Entry<String, Long> entry = it.next();
+                it.remove();
+                mySize -= entry.getValue();
+                evicted.add(myDirectory.resolve(entry.getKey()));
+            }
+        }
+        evicted.forEach(UncrustifyResultStore::delete);
+    }
+
+    public synchronized long getSize() {
+        getIndex();
+        return mySize;
+    }
+
+    private synchronized void remove(@NotNull String name) {
+        Long size = getIndex().remove(name);
+        if (size != null) {
+            mySize -= size;
+        }
+    }
+
+    private @NotNull Map<String, Long> getIndex() {
+        if (myIndex == null) {
+            myIndex = new LinkedHashMap<>(16, 0.75f, true);
+            mySize = 0;
+            loadIndex(myIndex);
+        }
+        return myIndex;
+    }
+
+    private void loadIndex(@NotNull Map<String, Long> index) {
+        if (!Files.isDirectory(myDirectory)) {
+            return;
+        }
+        List<Map.Entry<Path, BasicFileAttributes>> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(myDirectory)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TMP_SUFFIX)) {
+                    // left behind by a crash while writing; newer ones may belong to a put that runs right now
+                    if (Files.getLastModifiedTime(file).toMillis() < myCreatedAt - TIMESTAMP_GRANULARITY_MS) {
+                        delete(file);
+                    }
+                } else if (name.endsWith(SUFFIX)) {
+                    files.add(Map.entry(file, Files.readAttributes(file, BasicFileAttributes.class)));
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not read Uncrustify results from " + myDirectory + ": " + e.getMessage());
+        }
+        files.sort(Comparator.comparing(entry -> entry.getValue().lastModifiedTime()));
+        for (Map.Entry<Path, BasicFileAttributes> entry : files) {
+            index.put(entry.getKey().getFileName().toString(), entry.getValue().size());
+            mySize += entry.getValue().size();
+        }
+    }
+
+    private static @NotNull String getFileName(@NotNull UncrustifyResultCache.Key key) {
+        String id = key.getInputFingerprint() + '\n' + key.getConfigFingerprint() + '\n' + key.getExecutableVersion() + '\n' + key.getVariant();
+        return UncrustifyUtil.fingerprint(id.getBytes(StandardCharsets.UTF_8)) + SUFFIX;
+    }
+
+    private static void delete(@NotNull Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.debug("Could not delete Uncrustify result " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.jetbrains.uncrustify.util;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.registry.Registry;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Plugin-wide admission control for Uncrustify processes.
+ * <p>
+ * Work is submitted to one of two lanes: {@link Lane#INTERACTIVE} for formatting the user waits for, and
+ * {@link Lane#BACKGROUND} for bulk jobs like {@link org.jetbrains.uncrustify.UncrustifyBatchFormatter}. Every lane has
+ * its own limit of concurrently running processes, so a bulk job can never occupy the slots of interactive requests,
+ * and interactive requests are always started first when slots free up. All lanes share a memory budget for the
+ * input (and about as large output) of running processes; a request that doesn't fit waits, unless nothing of its
+ * lane is running, so that every lane always makes progress.
+ */
+public class UncrustifyScheduler {
+    public enum Lane {
+        INTERACTIVE("uncrustify.scheduler.interactive.limit"),
+        BACKGROUND("uncrustify.scheduler.background.limit");
+
+        private final String myLimitKey;
+
+        Lane(@NotNull String limitKey) {
+            myLimitKey = limitKey;
+        }
+
+        public int getLimit() {
+            int limit = Registry.intValue(myLimitKey, 0);
+            // 0 means the default, half of the cores for either lane
+            return limit > 0 ? limit : Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+        }
+    }
+
+    private final Map<Lane, Deque<Job<?>>> myQueues = new EnumMap<>(Lane.class);
+    private final Map<Lane, Integer> myRunning = new EnumMap<>(Lane.class);
+    private long myMemoryInUse = 0;
+
+    public UncrustifyScheduler() {
+        for (Lane lane : Lane.values()) {
+            myQueues.put(lane, new ArrayDeque<>());
+            myRunning.put(lane, 0);
+        }
+    }
+
+    public static UncrustifyScheduler getInstance() {
+        return ApplicationManager.getApplication().getService(UncrustifyScheduler.class);
+    }
+
+    public static long getMemoryBudget() {
+        return Registry.intValue("uncrustify.scheduler.memory.mb", 256) * 1024L * 1024L;
+    }
+
+    /**
+     * Starts {@code work} once {@code lane} has a free slot and the memory budget allows it.
+     *
+     * @param inputBytes size of the input {@code work} passes to Uncrustify
+     * @return completes with the result of {@code work}. Cancelling it removes the work from the queue or, if it has
+     * started already, cancels the future returned by {@code work}.
+     */
+    public @NotNull <T> CompletableFuture<T> submit(@NotNull Lane lane, long inputBytes, @NotNull Supplier<CompletableFuture<T>> work) {
+        Job<T> job = new Job<>(lane, 2 * Math.max(0, inputBytes), work);
+        synchronized (this) {
+            myQueues.get(lane).addLast(job);
+        }
+        dispatch();
+        return job.result;
+    }
+
+    private void dispatch() {
+        List<Job<?>> startable = new ArrayList<>();
+        synchronized (this) {
+            // lanes in order of priority
+            for (Lane lane : Lane.values()) {
+                Deque<Job<?>> queue = myQueues.get(lane);
+                while (!queue.isEmpty()) {
+                    Job<?> job = queue.peekFirst();
+                    if (job.result.isDone()) {
+                        queue.pollFirst();
+                        continue;
+                    }
+                    int running = myRunning.get(lane);
+                    if (running >= lane.getLimit() || running > 0 && myMemoryInUse + job.memory > getMemoryBudget()) {
+                        break;
+                    }
+                    queue.pollFirst();
+                    myRunning.put(lane, running + 1);
+                    myMemoryInUse += job.memory;
+                    startable.add(job);
+                }
+            }
+        }
+        for (Job<?> job : startable) {
+            job.start();
+        }
+    }
+
+    private void release(@NotNull Job<?> job) {
+        synchronized (this) {
+            myRunning.put(job.lane, myRunning.get(job.lane) - 1);
+            myMemoryInUse -= job.memory;
+        }
+        dispatch();
+    }
+
+    public synchronized int getRunningCount(@NotNull Lane lane) {
+        return myRunning.get(lane);
+    }
+
+    public synchronized int getQueuedCount(@NotNull Lane lane) {
+        return myQueues.get(lane).size();
+    }
+
+    private class Job<T> {
+        private final Lane lane;
+        private final long memory;
+        private final Supplier<CompletableFuture<T>> work;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private Job(@NotNull Lane lane, long memory, @NotNull Supplier<CompletableFuture<T>> work) {
+            this.lane = lane;
+            this.memory = memory;
+            this.work = work;
+        }
+
+        private void start() {
+            if (result.isDone()) {
+                // cancelled while it was being dispatched
+                release(this);
+                return;
+            }
+            CompletableFuture<T> future;
+            try {
+                future = work.get();
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            CompletableFuture<T> started = future;
+            started.whenComplete((value, throwable) -> {
+                release(this);
+                if (throwable != null) {
+                    result.completeExceptionally(throwable);
+                } else {
+                    result.complete(value);
+                }
+            });
+            result.whenComplete((value, throwable) -> {
+                if (result.isCancelled()) {
+                    started.cancel(true);
+                }
+            });
+        }
+    }
+}
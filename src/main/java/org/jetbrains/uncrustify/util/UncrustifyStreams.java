@@ -0,0 +1,163 @@
+package org.jetbrains.uncrustify.util;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Byte-level plumbing for the text that is sent to and received from Uncrustify.
+ * <p>
+ * Input text is encoded exactly once, with the charset of the formatted file, into a heap buffer that is returned to
+ * a small pool after the process has consumed it. Output is read as raw bytes into a single buffer pre-sized from the
+ * input, and is decoded with the same charset once the process has finished. Very large texts that go through files
+ * instead of pipes are encoded and decoded in chunks, see {@link #writeText} and {@link #readText}.
+ */
+public class UncrustifyStreams {
+    private static final int MAX_POOLED_BUFFERS = 4;
+    private static final int MAX_POOLED_CAPACITY = 8 * 1024 * 1024;
+    private static final int READ_CHUNK_SIZE = 64 * 1024;
+    private static final int WRITE_CHUNK_SIZE = 64 * 1024;
+    private static final int TEXT_CHUNK_SIZE = 32 * 1024;
+
+    private static final ConcurrentLinkedDeque<ByteBuffer> ourBufferPool = new ConcurrentLinkedDeque<>();
+
+    /**
+     * @return buffer holding the encoded text between its position and limit. Pass it to {@link #release} once it is
+     * not needed anymore.
+     */
+    public static @NotNull ByteBuffer encode(@NotNull CharSequence text, @NotNull Charset charset) {
+        CharsetEncoder encoder = newEncoder(charset);
+        CharBuffer in = CharBuffer.wrap(text);
+        ByteBuffer out = acquire((int) (text.length() * (double) encoder.averageBytesPerChar()) + 16);
+        while (true) {
+            // also for empty text, flush() is only allowed after the end of the input was passed to encode()
+            CoderResult result = encoder.encode(in, out, true);
+            if (result.isUnderflow()) {
+                result = encoder.flush(out);
+            }
+            if (result.isUnderflow()) {
+                break;
+            }
+            if (result.isOverflow()) {
+                out = grow(out, (int) (in.remaining() * (double) encoder.maxBytesPerChar()) + 16);
+            }
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Encodes {@code text} into {@code out} chunk by chunk, so that the encoded text is never held in memory as a
+     * whole. {@code out} is flushed but not closed.
+     */
+    public static void writeText(@NotNull CharSequence text, @NotNull Charset charset, @NotNull OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, newEncoder(charset));
+        for (int start = 0; start < text.length(); start += TEXT_CHUNK_SIZE) {
+            writer.append(text, start, Math.min(text.length(), start + TEXT_CHUNK_SIZE));
+        }
+        writer.flush();
+    }
+
+    /**
+     * Decodes {@code in} until EOF chunk by chunk, so that only the decoded text is held in memory, not its bytes.
+     *
+     * @param sizeHint expected number of chars
+     */
+    public static @NotNull String readText(@NotNull InputStream in, @NotNull Charset charset, int sizeHint) throws IOException {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        Reader reader = new InputStreamReader(in, decoder);
+        StringBuilder text = new StringBuilder(Math.max(sizeHint, 32));
+        char[] chunk = new char[TEXT_CHUNK_SIZE];
+        int read;
+        while ((read = reader.read(chunk)) >= 0) {
+            text.append(chunk, 0, read);
+        }
+        return text.toString();
+    }
+
+    private static @NotNull CharsetEncoder newEncoder(@NotNull Charset charset) {
+        return charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    public static void release(@NotNull ByteBuffer buffer) {
+        if (buffer.capacity() > MAX_POOLED_CAPACITY || ourBufferPool.size() >= MAX_POOLED_BUFFERS) {
+            return;
+        }
+        buffer.clear();
+        ourBufferPool.offerFirst(buffer);
+    }
+
+    /**
+     * Writes the remaining bytes of {@code buffer} without changing its position. Direct and read-only buffers, such
+     * as mapped files, are copied in chunks.
+     */
+    public static void write(@NotNull ByteBuffer buffer, @NotNull OutputStream out) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+        ByteBuffer source = buffer.duplicate();
+        byte[] chunk = new byte[Math.min(source.remaining(), WRITE_CHUNK_SIZE)];
+        while (source.hasRemaining()) {
+            int length = Math.min(source.remaining(), chunk.length);
+            source.get(chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+    }
+
+    /**
+     * Reads {@code in} until EOF into a single buffer of initial capacity {@code sizeHint}.
+     */
+    public static @NotNull BufferExposingByteArrayOutputStream readAll(@NotNull InputStream in, int sizeHint) throws IOException {
+        BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream(Math.max(sizeHint, 32));
+        byte[] chunk = new byte[Math.min(Math.max(sizeHint, 32), READ_CHUNK_SIZE)];
+        int read;
+        while ((read = in.read(chunk)) >= 0) {
+            out.write(chunk, 0, read);
+        }
+        return out;
+    }
+
+    public static @NotNull String decode(@NotNull BufferExposingByteArrayOutputStream bytes, @NotNull Charset charset) {
+        return new String(bytes.getInternalBuffer(), 0, bytes.size(), charset);
+    }
+
+    private static @NotNull ByteBuffer acquire(int capacity) {
+        // taken off the pool atomically: the pool can't tell equal buffers apart, e.g. two cleared ones of the same size
+        ByteBuffer buffer = ourBufferPool.pollFirst();
+        if (buffer != null) {
+            if (buffer.capacity() >= capacity) {
+                return buffer;
+            }
+            ourBufferPool.offerLast(buffer);
+        }
+        return ByteBuffer.allocate(capacity);
+    }
+
+    private static @NotNull ByteBuffer grow(@NotNull ByteBuffer buffer, int additional) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + additional));
+        buffer.flip();
+        bigger.put(buffer);
+        release(buffer);
+        return bigger;
+    }
+}
@@ -0,0 +1,84 @@
+package org.jetbrains.uncrustify.util;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.diff.Diff;
+import com.intellij.util.diff.FilesTooBigForDiffException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Line-based difference between a text and its formatted version. {@link org.jetbrains.uncrustify.UncrustifyBatchFormatter}
+ * uses it to apply only the lines that Uncrustify actually changed to documents with unsaved changes. Formatting in
+ * the editor doesn't: it hands the whole formatted text to the platform's reformat command.
+ */
+public class UncrustifyTextDiff {
+    private static final Logger log = Logger.getInstance(UncrustifyTextDiff.class);
+
+    public static class Hunk {
+        private final int myStartOffset;
+        private final int myEndOffset;
+        private final String myReplacement;
+
+        public Hunk(int startOffset, int endOffset, @NotNull String replacement) {
+            myStartOffset = startOffset;
+            myEndOffset = endOffset;
+            myReplacement = replacement;
+        }
+
+        public int getStartOffset() {
+            return myStartOffset;
+        }
+
+        public int getEndOffset() {
+            return myEndOffset;
+        }
+
+        public @NotNull String getReplacement() {
+            return myReplacement;
+        }
+    }
+
+    /**
+     * @return changed regions of {@code before}, ordered by offset, or {@code null} if the texts are too big to be
+     * compared. An empty list means that the texts are equal.
+     */
+    public static @Nullable List<Hunk> compute(@NotNull String before, @NotNull String after) {
+        if (before.equals(after)) {
+            return Collections.emptyList();
+        }
+
+        String[] beforeLines = StringUtil.splitByLinesKeepSeparators(before);
+        String[] afterLines = StringUtil.splitByLinesKeepSeparators(after);
+        Diff.Change change;
+        try {
+            change = Diff.buildChanges(beforeLines, afterLines);
+        } catch (FilesTooBigForDiffException e) {
+            log.debug("Formatted text is too different to be diffed: " + e.getMessage());
+            return null;
+        }
+
+        int[] beforeOffsets = lineOffsets(beforeLines);
+        int[] afterOffsets = lineOffsets(afterLines);
+        List<Hunk> hunks = new ArrayList<>();
+        for (; change != null; change = change.link) {
+            hunks.add(new Hunk(
+                    beforeOffsets[change.line0],
+                    beforeOffsets[change.line0 + change.deleted],
+                    after.substring(afterOffsets[change.line1], afterOffsets[change.line1 + change.inserted])));
+        }
+        return hunks;
+    }
+
+    private static int @NotNull [] lineOffsets(String @NotNull [] lines) {
+        int[] offsets = new int[lines.length + 1];
+        for (int i = 0; i < lines.length; i++) {
+            offsets[i + 1] = offsets[i] + lines[i].length();
+        }
+        return offsets;
+    }
+}
@@ -0,0 +1,182 @@
+package org.jetbrains.uncrustify.util;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.util.registry.RegistryValue;
+import com.intellij.openapi.util.registry.RegistryValueListener;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Opt-in tracer of the formatting pipeline, enabled by the {@value #REGISTRY_KEY} registry key.
+ * <p>
+ * Spans are written in the Chrome trace event format to {@value #TRACE_FILE_NAME} in the IDE log directory, which can
+ * be opened in chrome://tracing or Perfetto. The file is rolled over to a single backup when it grows over
+ * {@link #MAX_TRACE_FILE_SIZE}. When tracing is disabled, {@link #start} returns a shared span that does nothing.
+ */
+public final class UncrustifyTracer {
+    private static final Logger log = Logger.getInstance(UncrustifyTracer.class);
+
+    public static final String REGISTRY_KEY = "uncrustify.trace.enabled";
+    public static final String TRACE_FILE_NAME = "uncrustify-trace.json";
+
+    private static final long MAX_TRACE_FILE_SIZE = 32 * 1024 * 1024;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    private static final Span NO_SPAN = new Span(null, null);
+
+    private static final long ourOrigin = System.nanoTime();
+    private static final long ourPid = ProcessHandle.current().pid();
+    private static final Queue<String> ourEvents = new ConcurrentLinkedQueue<>();
+    private static final Set<Long> ourNamedThreads = ConcurrentHashMap.newKeySet();
+    private static final AtomicBoolean ourFlushScheduled = new AtomicBoolean();
+    private static volatile boolean ourEnabled;
+
+    static {
+        RegistryValue value = Registry.get(REGISTRY_KEY);
+        ourEnabled = value.asBoolean();
+        value.addListener(new RegistryValueListener() {
+            @Override
+            public void afterValueChanged(@NotNull RegistryValue value) {
+                ourEnabled = value.asBoolean();
+            }
+        }, ApplicationManager.getApplication());
+    }
+
+    private UncrustifyTracer() {
+    }
+
+    public static boolean isEnabled() {
+        return ourEnabled;
+    }
+
+    /**
+     * Starts a span on the current thread, to be ended by {@link Span#close()} on the same thread.
+     */
+    public static @NotNull Span start(@NotNull String name) {
+        return ourEnabled ? new Span(name, null) : NO_SPAN;
+    }
+
+    /**
+     * @param detail shown as an argument of the span, e.g. a file name
+     */
+    public static @NotNull Span start(@NotNull String name, @NotNull String detail) {
+        return ourEnabled ? new Span(name, detail) : NO_SPAN;
+    }
+
+    public static class Span implements AutoCloseable {
+        private final @Nullable String myName;
+        private final @Nullable String myDetail;
+        private final long myStart = System.nanoTime();
+
+        private Span(@Nullable String name, @Nullable String detail) {
+            myName = name;
+            myDetail = detail;
+        }
+
+        @Override
+        public void close() {
+            if (myName != null) {
+                record(myName, myDetail, myStart, System.nanoTime());
+            }
+        }
+    }
+
+    private static void record(@NotNull String name, @Nullable String detail, long start, long end) {
+        Thread thread = Thread.currentThread();
+        long tid = thread.getId();
+        if (ourNamedThreads.add(tid)) {
+            ourEvents.add(String.format("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":%d,\"tid\":%d,\"args\":{\"name\":\"%s\"}}",
+                    ourPid, tid, escape(thread.getName())));
+        }
+
+        StringBuilder event = new StringBuilder(128)
+                .append("{\"name\":\"").append(escape(name))
+                .append("\",\"cat\":\"uncrustify\",\"ph\":\"X\",\"pid\":").append(ourPid)
+                .append(",\"tid\":").append(tid)
+                .append(",\"ts\":").append(TimeUnit.NANOSECONDS.toMicros(start - ourOrigin))
+                .append(",\"dur\":").append(TimeUnit.NANOSECONDS.toMicros(end - start));
+        if (detail != null) {
+            event.append(",\"args\":{\"detail\":\"").append(escape(detail)).append("\"}");
+        }
+        ourEvents.add(event.append('}').toString());
+        scheduleFlush();
+    }
+
+    private static void scheduleFlush() {
+        if (ourFlushScheduled.compareAndSet(false, true)) {
+            ScheduledExecutorService executor = AppExecutorUtil.getAppScheduledExecutorService();
+            executor.schedule(() -> {
+                ourFlushScheduled.set(false);
+                flush();
+            }, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static synchronized void flush() {
+        if (ourEvents.isEmpty()) {
+            return;
+        }
+        Path file = Path.of(PathManager.getLogPath(), TRACE_FILE_NAME);
+        try {
+            if (Files.exists(file) && Files.size(file) > MAX_TRACE_FILE_SIZE) {
+                Files.move(file, Path.of(PathManager.getLogPath(), TRACE_FILE_NAME + ".1"), StandardCopyOption.REPLACE_EXISTING);
+                // metadata has to be repeated in the new file
+                ourNamedThreads.clear();
+            }
+            boolean newFile = !Files.exists(file);
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                // the closing bracket of the array is optional in the trace event format, so events can just be appended
+                if (newFile) {
+                    writer.write("[\n");
+                }
+                String event;
+                while ((event = ourEvents.poll()) != null) {
+                    writer.write(event);
+                    writer.write(",\n");
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not write Uncrustify trace to " + file + ": " + e.getMessage());
+            ourEvents.clear();
+        }
+    }
+
+    private static @NotNull String escape(@NotNull String text) {
+        StringBuilder builder = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\' || c < 0x20) {
+                if (builder == null) {
+                    builder = new StringBuilder(text.length() + 8).append(text, 0, i);
+                }
+                if (c == '"' || c == '\\') {
+                    builder.append('\\').append(c);
+                } else {
+                    builder.append(String.format("\\u%04x", (int) c));
+                }
+            } else if (builder != null) {
+                builder.append(c);
+            }
+        }
+        return builder != null ? builder.toString() : text;
+    }
+}
@@ -1,20 +1,35 @@
 package org.jetbrains.uncrustify.util;
 
-import com.intellij.execution.ExecutionException;
 import com.intellij.execution.configurations.GeneralCommandLine;
-import com.intellij.execution.process.OSProcessHandler;
+import com.intellij.execution.configurations.PathEnvironmentVariableUtil;
+import com.intellij.openapi.util.NotNullLazyValue;
+import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.FileUtilRt;
+import com.intellij.openapi.util.text.StringUtil;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 public class UncrustifyUtil {
     private static final Logger log = Logger.getInstance(UncrustifyUtil.class);
 
+    // niceness of background processes, low enough not to slow down the IDE, high enough to still make progress
+    private static final int BACKGROUND_NICENESS = 10;
+
+    private static final NotNullLazyValue<String> ourNicePath = NotNullLazyValue.atomicLazy(() -> {
+        File nice = SystemInfo.isUnix ? PathEnvironmentVariableUtil.findInPath("nice") : null;
+        return nice != null ? nice.getAbsolutePath() : "";
+    });
+
     public static final List<String> SUPPORTED_LANGUAGES_IDS = List.of(
             "JAVA", "ObjectiveC", "D");
 
@@ -54,23 +69,78 @@ public class UncrustifyUtil {
         return Arrays.asList(SUPPORTED_EXTENSIONS).contains(ext);
     }
 
-    public static @NotNull OSProcessHandler createProcessHandler(@NotNull String path, @NotNull List<String> params) throws ExecutionException {
+    public static @NotNull GeneralCommandLine createCommandLine(@NotNull String path, @NotNull List<String> params) {
+        return createCommandLine(path, params, false);
+    }
+
+    /**
+     * @param background whether the process runs on behalf of a background job. Such processes are started with a
+     *                   lowered OS priority through {@code nice}, so that they don't compete with the IDE and interactive
+     *                   formatting for the CPU. On systems without {@code nice}, e.g. Windows, the priority is unchanged.
+     */
+    public static @NotNull GeneralCommandLine createCommandLine(@NotNull String path, @NotNull List<String> params, boolean background) {
+        String nicePath = background ? getNicePath() : null;
         GeneralCommandLine commandLine = new GeneralCommandLine()
                 .withParentEnvironmentType(GeneralCommandLine.ParentEnvironmentType.CONSOLE)
-                .withExePath(path)
-                .withParameters(params);
+                .withCharset(StandardCharsets.UTF_8);
+        if (nicePath == null) {
+            return commandLine.withExePath(path).withParameters(params);
+        }
+        List<String> niceParams = new ArrayList<>(params.size() + 3);
+        niceParams.add("-n");
+        niceParams.add(String.valueOf(BACKGROUND_NICENESS));
+        niceParams.add(path);
+        niceParams.addAll(params);
+        return commandLine.withExePath(nicePath).withParameters(niceParams);
+    }
+
+    private static @Nullable String getNicePath() {
+        String path = ourNicePath.getValue();
+        return path.isEmpty() ? null : path;
+    }
+
+    /**
+     * @return hex-encoded SHA-256 digest of {@code data}, suitable as a file name or a cache key
+     */
+    public static @NotNull String fingerprint(byte @NotNull [] data) {
+        return fingerprint(data, 0, data.length);
+    }
 
-        return new OSProcessHandler(commandLine.withCharset(StandardCharsets.UTF_8));
+    /**
+     * @return same as {@link #fingerprint(byte[])} for {@code length} bytes of {@code data} starting at {@code offset}
+     */
+    public static @NotNull String fingerprint(byte @NotNull [] data, int offset, int length) {
+        MessageDigest digest = createDigest();
+        digest.update(data, offset, length);
+        return StringUtil.toHexString(digest.digest());
     }
 
-    public static void setProcessHandlerTimeout(@NotNull OSProcessHandler processHandler, long milis) {
-        processHandler.executeTask(() -> {
-            try {
-                Thread.sleep(milis);
-                processHandler.destroyProcess();
-            } catch (InterruptedException ignored) {
+    /**
+     * @return hex-encoded SHA-256 digest of the UTF-16 code units of {@code text}, computed without copying the text
+     */
+    public static @NotNull String fingerprint(@NotNull CharSequence text) {
+        MessageDigest digest = createDigest();
+        byte[] chunk = new byte[8192];
+        int filled = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            chunk[filled++] = (byte) (c >> 8);
+            chunk[filled++] = (byte) c;
+            if (filled == chunk.length) {
+                digest.update(chunk, 0, filled);
+                filled = 0;
             }
-        });
+        }
+        digest.update(chunk, 0, filled);
+        return StringUtil.toHexString(digest.digest());
+    }
+
+    private static @NotNull MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     @Contract(pure = true)
@@ -5,21 +5,48 @@ import com.intellij.testFramework.fixtures.BasePlatformTestCase;
 import org.jetbrains.uncrustify.util.UncrustifyExecutable;
 import org.junit.jupiter.api.*;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Map;
 
 public class BaseUncrustifyTest extends BasePlatformTestCase {
     protected static String myExecutablePath;
 
+    private static Path ourFakeExecutableDirectory;
+
+    /**
+     * Uses the executable given by the {@code uncrustify.executablePath} system property, or {@link FakeUncrustify}
+     * if there is none.
+     */
     @BeforeAll
     public static void setUpExecutable() {
         myExecutablePath = System.getProperty("uncrustify.executablePath", null);
         if (myExecutablePath == null || myExecutablePath.equals("null")) {
-            Assertions.fail("Uncrustify executable was not specified. Related tests cannot run.");
+            myExecutablePath = createFakeExecutable("uncrustify", Map.of()).toString();
         }
 
         verifyExecutable();
     }
 
+    /**
+     * @param behaviour system properties of {@link FakeUncrustify}, e.g. {@link FakeUncrustify#LATENCY_MS}
+     * @return path of a {@link FakeUncrustify} launcher, to be used as the executable path
+     */
+    protected static Path createFakeExecutable(String name, Map<String, String> behaviour) {
+        try {
+            if (ourFakeExecutableDirectory == null) {
+                ourFakeExecutableDirectory = Files.createTempDirectory("fake-uncrustify");
+                ourFakeExecutableDirectory.toFile().deleteOnExit();
+            }
+            Path launcher = FakeUncrustify.createLauncher(ourFakeExecutableDirectory, name, behaviour);
+            launcher.toFile().deleteOnExit();
+            return launcher;
+        } catch (IOException e) {
+            return Assertions.fail("Could not create fake Uncrustify executable: " + e.getMessage());
+        }
+    }
+
     @BeforeEach
     @Override
     protected void setUp() throws Exception {
@@ -0,0 +1,262 @@
+package org.jetbrains.uncrustify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Stand-in for the Uncrustify executable, so that tests and benchmarks don't depend on an installed binary and can
+ * provoke slow, failing or hanging processes on purpose.
+ * <p>
+ * It understands the command line the plugin uses ({@code --version}, {@code --show-config}, {@code -c},
+ * {@code --assume}, {@code -l}, {@code --frag}, {@code -q}, {@code -f}, {@code -o}, {@code -F}, {@code --replace},
+ * {@code --no-backup}) and rejects configs with unknown options like Uncrustify does. "Formatting" re-indents every
+ * line by its brace depth, using {@code indent_columns} of the config. The behaviour is set by system properties, which
+ * {@link #createLauncher} bakes into a launcher script that can be used as the executable path.
+ * <p>
+ * Only the JDK may be used here, the launcher runs this class with nothing but the test classes on the class path.
+ */
+public class FakeUncrustify {
+    public static final String DEFAULT_VERSION = "Uncrustify-0.0.1_f";
+
+    /** Version printed for {@code --version}. */
+    public static final String VERSION = "fake.version";
+    /** Milliseconds to wait before reading the config, like Uncrustify's startup. */
+    public static final String STARTUP_MS = "fake.startupMs";
+    /** Milliseconds to wait after reading the input and before writing the output. */
+    public static final String LATENCY_MS = "fake.latencyMs";
+    /** If set, the output is the formatted text repeated or cut to this many bytes. */
+    public static final String OUTPUT_BYTES = "fake.outputBytes";
+    /** Exit code after a successful run. */
+    public static final String EXIT_CODE = "fake.exitCode";
+    /** If {@code true}, the process never finishes after it has read its input. */
+    public static final String HANG = "fake.hang";
+    /** Number of bytes written to stderr before the output. */
+    public static final String STDERR_BYTES = "fake.stderrBytes";
+    /** If {@code true}, runs with a file list ({@code -F}) fail before formatting any file. */
+    public static final String FAIL_FILE_LIST = "fake.failFileList";
+    /** File to which the arguments of every run are appended, one line per run. */
+    public static final String LOG_FILE = "fake.logFile";
+
+    private static final Set<String> KEYWORDS = Set.of(
+            "type", "define", "macro-open", "macro-close", "macro-else", "set", "include", "file_ext", "using");
+    private static final List<String> OPTION_PREFIXES = List.of(
+            "sp_", "nl_", "indent_", "align_", "mod_", "cmt_", "pos_", "code_width", "ls_", "pp_", "use_", "utf8_",
+            "string_", "tok_", "eat_", "input_", "output_", "disable_", "enable_", "warn_", "debug_", "donot_");
+    private static final String SHOW_CONFIG = "# " + "%s" + "\n" +
+            "newlines                        = auto     # lf/crlf/cr/auto\n" +
+            "input_tab_size                  = 8        # unsigned number\n" +
+            "output_tab_size                 = 8        # unsigned number\n" +
+            "indent_columns                  = 8        # unsigned number\n" +
+            "indent_continue                 = 0        # number\n" +
+            "indent_with_tabs                = 1        # unsigned number\n" +
+            "sp_arith                        = ignore   # ignore/add/remove/force\n" +
+            "sp_assign                       = ignore   # ignore/add/remove/force\n";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && args[0].equals("--create-launcher")) {
+            System.out.println(createLauncher(Path.of(args[1]), "uncrustify", Map.of()));
+            return;
+        }
+        log(args);
+        List<String> arguments = Arrays.asList(args);
+        if (arguments.contains("--version") || arguments.contains("-v")) {
+            System.out.println(System.getProperty(VERSION, DEFAULT_VERSION));
+            return;
+        }
+        if (arguments.contains("--show-config")) {
+            System.out.print(String.format(SHOW_CONFIG, System.getProperty(VERSION, DEFAULT_VERSION)));
+            return;
+        }
+
+        sleep(Long.getLong(STARTUP_MS, 0));
+        String config = getArgument(arguments, "-c");
+        int indent = 8;
+        if (config != null) {
+            try {
+                indent = readConfig(Path.of(config), indent);
+            } catch (IllegalArgumentException | IOException e) {
+                System.err.println(config + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        String fileList = getArgument(arguments, "-F");
+        String input = getArgument(arguments, "-f");
+        String output = getArgument(arguments, "-o");
+        if (fileList != null) {
+            if (Boolean.getBoolean(FAIL_FILE_LIST)) {
+                System.err.println(fileList + ": failing on purpose");
+                System.exit(1);
+            }
+            boolean replace = arguments.contains("--replace");
+            for (String line : Files.readAllLines(Path.of(fileList), StandardCharsets.UTF_8)) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                Path file = Path.of(line.trim());
+                byte[] formatted = run(Files.readAllBytes(file), indent);
+                Files.write(replace ? file : Path.of(file + ".uncrustify"), formatted);
+            }
+        } else {
+            byte[] formatted = run(input != null ? Files.readAllBytes(Path.of(input)) : readAll(System.in), indent);
+            if (output != null) {
+                Files.write(Path.of(output), formatted);
+            } else {
+                System.out.write(formatted);
+                System.out.flush();
+            }
+        }
+        System.exit(Integer.getInteger(EXIT_CODE, 0));
+    }
+
+    private static byte[] run(byte[] input, int indent) throws InterruptedException {
+        if (Boolean.getBoolean(HANG)) {
+            Thread.sleep(Long.MAX_VALUE);
+        }
+        int stderrBytes = Integer.getInteger(STDERR_BYTES, 0);
+        if (stderrBytes > 0) {
+            PrintStream err = System.err;
+            byte[] line = "warning: this is a flood of diagnostics\n".getBytes(StandardCharsets.UTF_8);
+            for (int written = 0; written < stderrBytes; written += line.length) {
+                err.write(line, 0, Math.min(line.length, stderrBytes - written));
+            }
+            err.flush();
+        }
+        sleep(Long.getLong(LATENCY_MS, 0));
+
+        byte[] formatted = indent(new String(input, StandardCharsets.UTF_8), indent).getBytes(StandardCharsets.UTF_8);
+        Integer outputBytes = Integer.getInteger(OUTPUT_BYTES);
+        if (outputBytes == null || formatted.length == 0) {
+            return formatted;
+        }
+        byte[] sized = new byte[outputBytes];
+        for (int i = 0; i < sized.length; i++) {
+            sized[i] = formatted[i % formatted.length];
+        }
+        return sized;
+    }
+
+    private static String indent(String text, int indent) {
+        StringBuilder result = new StringBuilder(text.length() + text.length() / 4);
+        int depth = 0;
+        for (String line : text.split("\n", -1)) {
+            if (result.length() > 0) {
+                result.append('\n');
+            }
+            String content = line.strip();
+            if (content.isEmpty()) {
+                continue;
+            }
+            int lineDepth = content.startsWith("}") ? depth - 1 : depth;
+            result.append(" ".repeat(Math.max(0, lineDepth) * indent)).append(content);
+            for (int i = 0; i < content.length(); i++) {
+                if (content.charAt(i) == '{') {
+                    depth++;
+                } else if (content.charAt(i) == '}') {
+                    depth--;
+                }
+            }
+        }
+        return result.toString();
+    }
+
+    private static int readConfig(Path config, int indent) throws IOException {
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(config, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            String content = (comment >= 0 ? line.substring(0, comment) : line).trim();
+            if (content.isEmpty()) {
+                continue;
+            }
+            String[] parts = content.split("\\s*=\\s*|\\s+", 2);
+            String name = parts[0];
+            String value = parts.length > 1 ? parts[1].trim() : "";
+            if (name.equals("include")) {
+                Path included = config.resolveSibling(value.replace("\"", ""));
+                indent = readConfig(included, indent);
+            } else if (!KEYWORDS.contains(name) && !name.equals("newlines")
+                    && OPTION_PREFIXES.stream().noneMatch(name::startsWith)) {
+                throw new IllegalArgumentException(lineNumber + ": Unknown option '" + name + "'");
+            } else if (name.equals("indent_columns")) {
+                try {
+                    indent = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(lineNumber + ": Expected a number for 'indent_columns'");
+                }
+            }
+        }
+        return indent;
+    }
+
+    private static String getArgument(List<String> arguments, String name) {
+        int index = arguments.indexOf(name);
+        return index >= 0 && index + 1 < arguments.size() ? arguments.get(index + 1) : null;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        in.transferTo(out);
+        return out.toByteArray();
+    }
+
+    private static void sleep(long millis) throws InterruptedException {
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    private static void log(String[] args) throws IOException {
+        String logFile = System.getProperty(LOG_FILE);
+        if (logFile != null) {
+            Files.writeString(Path.of(logFile), String.join(" ", args) + "\n", StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+
+    /**
+     * Writes a launcher script named {@code name} (with {@code .cmd} on Windows) to {@code directory} that runs this
+     * class with the given {@code properties}, see the constants of this class.
+     *
+     * @return path of the launcher, to be used as the Uncrustify executable path
+     */
+    public static Path createLauncher(Path directory, String name, Map<String, String> properties) throws IOException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        String classPath;
+        try {
+            classPath = Path.of(FakeUncrustify.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+
+        List<String> command = new ArrayList<>(List.of(java, "-Xshare:auto", "-XX:TieredStopAtLevel=1", "-cp", classPath));
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            command.add("-D" + property.getKey() + "=" + property.getValue());
+        }
+        command.add(FakeUncrustify.class.getName());
+
+        Files.createDirectories(directory);
+        boolean windows = System.getProperty("os.name").startsWith("Windows");
+        Path launcher = directory.toAbsolutePath().resolve(windows ? name + ".cmd" : name);
+        String joined = command.stream().map(part -> '"' + part + '"').collect(Collectors.joining(" "));
+        String script = windows ? "@echo off\r\n" + joined + " %*\r\n" : "#!/bin/sh\nexec " + joined + " \"$@\"\n";
+        Files.writeString(launcher, script, StandardCharsets.UTF_8);
+        if (!launcher.toFile().setExecutable(true)) {
+            throw new IOException("Could not make " + launcher + " executable");
+        }
+        return launcher;
+    }
+}
@@ -0,0 +1,176 @@
+package org.jetbrains.uncrustify;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.PlatformTestUtil;
+import org.jetbrains.uncrustify.settings.UncrustifySettingsState;
+import org.jetbrains.uncrustify.util.UncrustifyProcessWatchdog;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs {@link UncrustifyBatchFormatter} with {@link FakeUncrustify}, on files of the test project.
+ */
+public class UncrustifyBatchFormatterTest extends BaseUncrustifyTest {
+    private static final String INPUT = "class A {\nvoid f() {\n}\n}\n";
+    private static final String FORMATTED = "class A {\n   void f() {\n   }\n}\n";
+    private static final long TIMEOUT_MS = 30_000;
+
+    private String myPreviousExecutablePath;
+    private String myPreviousConfigPath;
+
+    @BeforeEach
+    public void setUpSettings() {
+        UncrustifySettingsState settings = UncrustifySettingsState.getInstance();
+        myPreviousExecutablePath = settings.executablePath;
+        myPreviousConfigPath = settings.configPath;
+        settings.executablePath = myExecutablePath;
+        settings.configPath = Path.of(getTestDataPath(), "valid.cfg").toString();
+    }
+
+    @AfterEach
+    public void tearDownSettings() {
+        UncrustifySettingsState settings = UncrustifySettingsState.getInstance();
+        settings.executablePath = myPreviousExecutablePath;
+        settings.configPath = myPreviousConfigPath;
+    }
+
+    private List<VirtualFile> addFiles(int count) {
+        List<VirtualFile> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            files.add(myFixture.addFileToProject("src/A" + i + ".java", INPUT).getVirtualFile());
+        }
+        return files;
+    }
+
+    private Document makeUnsaved(VirtualFile file, String text) {
+        Document document = FileDocumentManager.getInstance().getDocument(file);
+        Assertions.assertNotNull(document);
+        WriteCommandAction.runWriteCommandAction(getProject(), () -> document.setText(text));
+        Assertions.assertTrue(FileDocumentManager.getInstance().isDocumentUnsaved(document));
+        return document;
+    }
+
+    /**
+     * Formats on a pooled thread, like the batch action does, so that results can be written on this thread.
+     */
+    private Future<UncrustifyBatchFormatter.Statistics> startFormatting(List<VirtualFile> files, ProgressIndicator indicator) {
+        UncrustifyBatchFormatter formatter = new UncrustifyBatchFormatter(getProject(), 2);
+        return ApplicationManager.getApplication().executeOnPooledThread(() -> formatter.format(files, indicator));
+    }
+
+    private static void dispatchUntil(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                Assertions.fail(message);
+            }
+            PlatformTestUtil.dispatchAllEventsInIdeEventQueue();
+            Thread.sleep(10);
+        }
+    }
+
+    private static UncrustifyBatchFormatter.Statistics await(Future<UncrustifyBatchFormatter.Statistics> future) throws Exception {
+        dispatchUntil(future::isDone, "Formatting did not finish");
+        return future.get();
+    }
+
+    @Test
+    public void testSavedAndUnsavedFiles() throws Exception {
+        List<VirtualFile> files = addFiles(3);
+        Document unsaved = makeUnsaved(files.get(1), "class B {\nint g() {\nreturn 1;\n}\n}\n");
+
+        UncrustifyBatchFormatter.Statistics statistics = await(startFormatting(files, new EmptyProgressIndicator()));
+        Assertions.assertEquals(3, statistics.formatted);
+        Assertions.assertEquals(0, statistics.failed);
+        Assertions.assertEquals(FORMATTED, VfsUtilCore.loadText(files.get(0)));
+        Assertions.assertEquals(FORMATTED, VfsUtilCore.loadText(files.get(2)));
+        // formatted in the document, which stays unsaved
+        Assertions.assertEquals("class B {\n   int g() {\n      return 1;\n   }\n}\n", unsaved.getText());
+        Assertions.assertTrue(FileDocumentManager.getInstance().isDocumentUnsaved(unsaved));
+
+        statistics = await(startFormatting(files, new EmptyProgressIndicator()));
+        Assertions.assertEquals(0, statistics.formatted);
+        Assertions.assertEquals(3, statistics.unchanged);
+    }
+
+    @Test
+    public void testFailingChunkIsFormattedFileByFile() throws Exception {
+        Path log = Files.createTempFile("fake-uncrustify", ".log");
+        log.toFile().deleteOnExit();
+        UncrustifySettingsState.getInstance().executablePath = createFakeExecutable("failingFileList", Map.of(
+                FakeUncrustify.FAIL_FILE_LIST, "true",
+                FakeUncrustify.LOG_FILE, log.toString())).toString();
+        List<VirtualFile> files = addFiles(3);
+
+        UncrustifyBatchFormatter.Statistics statistics = await(startFormatting(files, new EmptyProgressIndicator()));
+        Assertions.assertTrue(Files.readAllLines(log, StandardCharsets.UTF_8).stream().anyMatch(line -> line.contains("-F")),
+                "The files were not formatted as a chunk first");
+        Assertions.assertEquals(3, statistics.formatted);
+        Assertions.assertEquals(0, statistics.failed);
+        for (VirtualFile file : files) {
+            Assertions.assertEquals(FORMATTED, VfsUtilCore.loadText(file));
+        }
+    }
+
+    @Test
+    public void testDocumentChangedWhileFormattingIsKept() throws Exception {
+        UncrustifySettingsState.getInstance().executablePath =
+                createFakeExecutable("slow", Map.of(FakeUncrustify.LATENCY_MS, "2000")).toString();
+        VirtualFile file = addFiles(1).get(0);
+        Document document = makeUnsaved(file, INPUT + "\n");
+        UncrustifyProcessWatchdog watchdog = UncrustifyProcessWatchdog.getInstance();
+        int live = watchdog.getLiveProcessCount();
+
+        Future<UncrustifyBatchFormatter.Statistics> future = startFormatting(List.of(file), new EmptyProgressIndicator());
+        // the document has been read once its process runs
+        dispatchUntil(() -> watchdog.getLiveProcessCount() > live, "Uncrustify was not started");
+        String edited = "class C {\n}\n";
+        WriteCommandAction.runWriteCommandAction(getProject(), () -> document.setText(edited));
+
+        UncrustifyBatchFormatter.Statistics statistics = await(future);
+        Assertions.assertEquals(0, statistics.formatted);
+        Assertions.assertEquals(1, statistics.failed);
+        Assertions.assertEquals(edited, document.getText());
+    }
+
+    @Test
+    public void testCancellationKillsProcesses() throws Exception {
+        UncrustifySettingsState.getInstance().executablePath =
+                createFakeExecutable("slow", Map.of(FakeUncrustify.LATENCY_MS, "60000")).toString();
+        List<VirtualFile> files = addFiles(3);
+        makeUnsaved(files.get(2), INPUT + "\n");
+        UncrustifyProcessWatchdog watchdog = UncrustifyProcessWatchdog.getInstance();
+        int live = watchdog.getLiveProcessCount();
+
+        ProgressIndicator indicator = new EmptyProgressIndicator();
+        Future<UncrustifyBatchFormatter.Statistics> future = startFormatting(files, indicator);
+        dispatchUntil(() -> watchdog.getLiveProcessCount() > live, "Uncrustify was not started");
+        indicator.cancel();
+
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> await(future));
+        Assertions.assertTrue(e.getCause() instanceof ProcessCanceledException, String.valueOf(e.getCause()));
+        dispatchUntil(() -> watchdog.getLiveProcessCount() == live, "Uncrustify processes are still running");
+        Assertions.assertEquals(INPUT, VfsUtilCore.loadText(files.get(0)));
+        Assertions.assertEquals(INPUT, VfsUtilCore.loadText(files.get(1)));
+    }
+}
@@ -0,0 +1,85 @@
+package org.jetbrains.uncrustify;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class UncrustifyCommandLineStarterTest extends BaseUncrustifyTest {
+    @Test
+    public void testParse() {
+        UncrustifyCommandLineStarter.Options options = UncrustifyCommandLineStarter.parse(List.of(
+                "--check", "--shard", "1/3", "--jobs", "4", "--executable", "/usr/bin/uncrustify",
+                "--output", "report.json", "project", "src", "include/a.h"));
+        Path project = Path.of("project").toAbsolutePath().normalize();
+        Assertions.assertTrue(options.check);
+        Assertions.assertEquals(1, options.shard);
+        Assertions.assertEquals(3, options.shards);
+        Assertions.assertEquals(4, options.jobs);
+        Assertions.assertEquals("/usr/bin/uncrustify", options.executablePath);
+        Assertions.assertEquals(Path.of("report.json").toAbsolutePath(), options.output);
+        Assertions.assertEquals(project, options.project);
+        Assertions.assertEquals(List.of(project.resolve("src"), project.resolve("include/a.h")), options.paths);
+    }
+
+    @Test
+    public void testParseDefaults() {
+        UncrustifyCommandLineStarter.Options options = UncrustifyCommandLineStarter.parse(List.of("project"));
+        Path project = Path.of("project").toAbsolutePath().normalize();
+        Assertions.assertFalse(options.check);
+        Assertions.assertEquals(0, options.shard);
+        Assertions.assertEquals(1, options.shards);
+        Assertions.assertNull(options.executablePath);
+        Assertions.assertNull(options.output);
+        // the whole project
+        Assertions.assertEquals(List.of(project), options.paths);
+    }
+
+    @Test
+    public void testParseInvalid() {
+        List<List<String>> invalid = List.of(
+                List.of(),
+                List.of("--check"),
+                List.of("--shard", "3/3", "project"),
+                List.of("--shard", "-1/3", "project"),
+                List.of("--shard", "1", "project"),
+                List.of("--shard", "a/b", "project"),
+                List.of("--jobs", "0", "project"),
+                List.of("--jobs", "many", "project"),
+                List.of("project", "--output"),
+                List.of("--unknown", "project"));
+        for (List<String> args : invalid) {
+            Assertions.assertThrows(IllegalArgumentException.class, () -> UncrustifyCommandLineStarter.parse(args), args.toString());
+        }
+    }
+
+    @Test
+    public void testShardsCoverEveryFileOnce() {
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < 11; i++) {
+            files.add("file" + i);
+        }
+        Set<String> seen = new HashSet<>();
+        int total = 0;
+        for (int shard = 0; shard < 3; shard++) {
+            List<String> selected = UncrustifyCommandLineStarter.selectShard(files, shard, 3);
+            // dealt round-robin, so the shards differ in size by one at most
+            Assertions.assertTrue(selected.size() == 3 || selected.size() == 4, selected.toString());
+            seen.addAll(selected);
+            total += selected.size();
+        }
+        Assertions.assertEquals(files.size(), total);
+        Assertions.assertEquals(new HashSet<>(files), seen);
+    }
+
+    @Test
+    public void testSingleShardKeepsOrder() {
+        List<String> files = List.of("a", "b", "c");
+        Assertions.assertEquals(files, UncrustifyCommandLineStarter.selectShard(files, 0, 1));
+        Assertions.assertEquals(List.of(), UncrustifyCommandLineStarter.selectShard(List.of(), 0, 2));
+    }
+}
@@ -1,6 +1,7 @@
 package org.jetbrains.uncrustify;
 
 import com.intellij.execution.ExecutionException;
+import com.intellij.openapi.application.WriteAction;
 import com.intellij.openapi.project.ProjectUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import org.jetbrains.uncrustify.settings.UncrustifySettingsState;
@@ -74,4 +75,28 @@ public class UncrustifyConfigFileTest extends BaseUncrustifyTest {
         UncrustifySettingsState.getInstance().configPath = null;
         Assertions.assertNull(UncrustifyConfigFile.getConfigPath(myFixture.getProject()));
     }
+
+    @Test
+    public void testNearestConfigIsSelected() {
+        VirtualFile rootConfig = myFixture.copyFileToProject("valid.cfg", UncrustifyConfigFile.PROJECT_CONFIG_PATH);
+        VirtualFile componentConfig = myFixture.copyFileToProject("valid.cfg", "component/" + UncrustifyConfigFile.PROJECT_CONFIG_PATH);
+        VirtualFile componentFile = myFixture.addFileToProject("component/src/a.c", "").getVirtualFile();
+        VirtualFile otherFile = myFixture.addFileToProject("other/b.c", "").getVirtualFile();
+        UncrustifySettingsState.getInstance().configPath = "";
+
+        Assertions.assertEquals(componentConfig.getPath(), UncrustifyConfigFile.getConfigPath(myFixture.getProject(), componentFile));
+        Assertions.assertEquals(rootConfig.getPath(), UncrustifyConfigFile.getConfigPath(myFixture.getProject(), otherFile));
+    }
+
+    @Test
+    public void testDeletedConfigIsNotSelected() throws Exception {
+        VirtualFile rootConfig = myFixture.copyFileToProject("valid.cfg", UncrustifyConfigFile.PROJECT_CONFIG_PATH);
+        VirtualFile componentConfig = myFixture.copyFileToProject("valid.cfg", "component/" + UncrustifyConfigFile.PROJECT_CONFIG_PATH);
+        VirtualFile componentFile = myFixture.addFileToProject("component/a.c", "").getVirtualFile();
+        UncrustifySettingsState.getInstance().configPath = "";
+        Assertions.assertEquals(componentConfig.getPath(), UncrustifyConfigFile.getConfigPath(myFixture.getProject(), componentFile));
+
+        WriteAction.runAndWait(() -> componentConfig.delete(this));
+        Assertions.assertEquals(rootConfig.getPath(), UncrustifyConfigFile.getConfigPath(myFixture.getProject(), componentFile));
+    }
 }
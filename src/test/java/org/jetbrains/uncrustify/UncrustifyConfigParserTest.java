@@ -0,0 +1,87 @@
+package org.jetbrains.uncrustify;
+
+import org.jetbrains.uncrustify.util.UncrustifyConfigParser;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+public class UncrustifyConfigParserTest extends BaseUncrustifyTest {
+    private Path getConfig(String name) {
+        return Path.of(getTestDataPath(), "includes", name);
+    }
+
+    @Test
+    public void testIncludesAreFlattened() throws IOException {
+        UncrustifyConfigParser.EffectiveConfig config = UncrustifyConfigParser.parse(getConfig("main.cfg"));
+        Assertions.assertEquals(Map.of("indent_columns", "4", "sp_arith", "force", "sp_assign", "force"), config.getOptions());
+        Assertions.assertEquals(List.of("type my_type_t other_t"), config.getDirectives());
+        Assertions.assertEquals(3, config.getFiles().size());
+        Assertions.assertTrue(config.getFiles().contains(getConfig("nested/extra.cfg").toAbsolutePath().normalize()));
+        Assertions.assertTrue(config.getProblems().isEmpty(), config.getProblems().toString());
+    }
+
+    @Test
+    public void testMissingIncludeIsReported() throws IOException {
+        UncrustifyConfigParser.EffectiveConfig config = UncrustifyConfigParser.parse(getConfig("broken.cfg"));
+        Assertions.assertEquals("4", config.getOption("indent_columns"));
+        Assertions.assertEquals(1, config.getProblems().size());
+        Assertions.assertTrue(config.getFiles().contains(getConfig("missing.cfg").toAbsolutePath().normalize()));
+        Assertions.assertNotEquals(UncrustifyConfigParser.parse(getConfig("main.cfg")).getFingerprint(), config.getFingerprint());
+    }
+
+    @Test
+    public void testFingerprintIgnoresLayout() throws IOException {
+        Path dir = Files.createTempDirectory("uncrustify-parser");
+        try {
+            Path flat = Files.writeString(dir.resolve("flat.cfg"),
+                    "sp_arith = force\nindent_columns=2\ntype my_type_t other_t\nsp_assign = remove\nindent_columns = 4\nsp_assign = force\n");
+            Path commented = Files.writeString(dir.resolve("commented.cfg"),
+                    "# comment\nsp_arith   force\n\nindent_columns = 8 # overridden\ntype  my_type_t\tother_t\nindent_columns = 4\nsp_assign = force\n");
+            String fingerprint = UncrustifyConfigParser.parse(getConfig("main.cfg")).getFingerprint();
+            Assertions.assertEquals(fingerprint, UncrustifyConfigParser.parse(flat).getFingerprint());
+            Assertions.assertEquals(fingerprint, UncrustifyConfigParser.parse(commented).getFingerprint());
+
+            Files.writeString(flat, "sp_arith = force\nindent_columns = 4\nsp_assign = remove\ntype my_type_t other_t\n");
+            Assertions.assertNotEquals(fingerprint, UncrustifyConfigParser.parse(flat).getFingerprint());
+        } finally {
+            Files.walk(dir).sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testNonUtf8ConfigIsParsed() throws IOException {
+        Path dir = Files.createTempDirectory("uncrustify-parser");
+        try {
+            // a comment with an umlaut in Latin-1, which is not valid UTF-8
+            byte[] comment = {'#', ' ', 'E', 'i', 'n', 'r', (byte) 0xFC, 'c', 'k', 'u', 'n', 'g', '\n'};
+            Path config = dir.resolve("latin1.cfg");
+            Files.write(config, comment);
+            Files.write(config, "indent_columns = 4\n".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+            UncrustifyConfigParser.EffectiveConfig parsed = UncrustifyConfigParser.parse(config);
+            Assertions.assertEquals("4", parsed.getOption("indent_columns"));
+            Assertions.assertTrue(parsed.getProblems().isEmpty(), parsed.getProblems().toString());
+        } finally {
+            Files.walk(dir).sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testCyclicIncludeIsReported() throws IOException {
+        Path dir = Files.createTempDirectory("uncrustify-parser");
+        try {
+            Path config = Files.writeString(dir.resolve("cyclic.cfg"), "indent_columns = 4\ninclude cyclic.cfg\n");
+            UncrustifyConfigParser.EffectiveConfig parsed = UncrustifyConfigParser.parse(config);
+            Assertions.assertEquals("4", parsed.getOption("indent_columns"));
+            Assertions.assertEquals(1, parsed.getProblems().size());
+        } finally {
+            Files.walk(dir).sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.jetbrains.uncrustify;
+
+import com.intellij.lang.Language;
+import com.intellij.psi.codeStyle.CommonCodeStyleSettings;
+import org.jetbrains.uncrustify.util.UncrustifyConfig;
+import org.jetbrains.uncrustify.util.UncrustifyConfigFile;
+import org.jetbrains.uncrustify.util.UncrustifyUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+public class UncrustifyConfigTest extends BaseUncrustifyTest {
+    private static CommonCodeStyleSettings createSettings() {
+        CommonCodeStyleSettings settings = new CommonCodeStyleSettings(Language.ANY);
+        settings.initIndentOptions();
+        return settings;
+    }
+
+    @Test
+    public void testSerializationMatchesWriter() throws IOException {
+        UncrustifyConfig config = UncrustifyConfigFile.createConfig(createSettings());
+        StringWriter text = new StringWriter();
+        try (UncrustifyConfigWriter writer = new UncrustifyConfigWriter(text)) {
+            config.write(writer);
+        }
+        Assertions.assertEquals(text.toString(), config.toString());
+        Assertions.assertEquals(UncrustifyUtil.fingerprint(config.toByteArray()), config.fingerprint());
+    }
+
+    @Test
+    public void testValues() {
+        UncrustifyConfig config = new UncrustifyConfig()
+                .set(UncrustifyConfig.Option.INDENT_CLASS, true)
+                .set(UncrustifyConfig.Option.INDENT_LABEL, -12)
+                .set(UncrustifyConfig.Option.SP_ARITH, UncrustifyConfig.Keyword.FORCE);
+        Assertions.assertEquals("true", config.getValue(UncrustifyConfig.Option.INDENT_CLASS));
+        Assertions.assertEquals("-12", config.getValue(UncrustifyConfig.Option.INDENT_LABEL));
+        Assertions.assertEquals("force", config.getValue(UncrustifyConfig.Option.SP_ARITH));
+        Assertions.assertNull(config.getValue(UncrustifyConfig.Option.NL_MAX));
+        Assertions.assertTrue(config.toString().contains("indent_label                    = -12"));
+        Assertions.assertFalse(config.toString().contains("nl_max"));
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> config.set(UncrustifyConfig.Option.SP_ARITH, 1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> config.set(UncrustifyConfig.Option.INDENT_CLASS, UncrustifyConfig.Keyword.ADD));
+    }
+
+    @Test
+    public void testEquality() {
+        CommonCodeStyleSettings settings = createSettings();
+        UncrustifyConfig config = UncrustifyConfigFile.createConfig(settings);
+        Assertions.assertEquals(config, UncrustifyConfigFile.createConfig(settings));
+        Assertions.assertEquals(config.hashCode(), UncrustifyConfigFile.createConfig(settings).hashCode());
+
+        settings.SPACE_AROUND_ASSIGNMENT_OPERATORS = !settings.SPACE_AROUND_ASSIGNMENT_OPERATORS;
+        UncrustifyConfig changed = UncrustifyConfigFile.createConfig(settings);
+        Assertions.assertNotEquals(config, changed);
+        Assertions.assertNotEquals(config.fingerprint(), changed.fingerprint());
+    }
+}
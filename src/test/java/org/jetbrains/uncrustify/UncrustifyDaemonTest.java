@@ -0,0 +1,135 @@
+package org.jetbrains.uncrustify;
+
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.registry.Registry;
+import org.jetbrains.uncrustify.settings.UncrustifySettingsState;
+import org.jetbrains.uncrustify.util.UncrustifyProcessWatchdog;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a host and a client daemon in the same process, distinguished by the port file they share.
+ */
+public class UncrustifyDaemonTest extends BaseUncrustifyTest {
+    private Path myPortDirectory;
+    private String myPreviousExecutablePath;
+
+    @BeforeEach
+    public void setUpDaemon() throws IOException {
+        myPortDirectory = Files.createTempDirectory("uncrustify-daemon");
+        Registry.get(UncrustifyDaemon.REGISTRY_KEY).setValue(true);
+        myPreviousExecutablePath = UncrustifySettingsState.getInstance().executablePath;
+        UncrustifySettingsState.getInstance().executablePath = myExecutablePath;
+    }
+
+    @AfterEach
+    public void tearDownDaemon() {
+        UncrustifySettingsState.getInstance().executablePath = myPreviousExecutablePath;
+        Registry.get(UncrustifyDaemon.REGISTRY_KEY).resetToDefault();
+        FileUtil.delete(myPortDirectory.toFile());
+    }
+
+    private UncrustifyDaemon createDaemon() {
+        UncrustifyDaemon daemon = new UncrustifyDaemon(myPortDirectory.resolve("daemon.port"));
+        Disposer.register(getTestRootDisposable(), daemon);
+        return daemon;
+    }
+
+    private String getConfigPath() {
+        return Path.of(getTestDataPath(), "valid.cfg").toString();
+    }
+
+    private static String createInput() {
+        // unique, so that no cached result is involved
+        return "class A {\nvoid f" + UUID.randomUUID().toString().replace("-", "") + "() {\n}\n}\n";
+    }
+
+    private CompletableFuture<String> format(UncrustifyDaemon daemon, String executablePath, String input) throws IOException {
+        return daemon.format(executablePath, getConfigPath(), "A.java", input, StandardCharsets.UTF_8, false);
+    }
+
+    @Test
+    public void testHostServesOtherInstances() throws Exception {
+        UncrustifyDaemon host = createDaemon();
+        String input = createInput();
+        String expected = format(host, myExecutablePath, input).get(30, TimeUnit.SECONDS);
+        Assertions.assertTrue(host.isHost());
+
+        UncrustifyDaemon client = createDaemon();
+        Assertions.assertEquals(expected, format(client, myExecutablePath, input).get(30, TimeUnit.SECONDS));
+        Assertions.assertEquals(1, host.getServedCount());
+        Assertions.assertFalse(client.isHost());
+    }
+
+    @Test
+    public void testHostOnlyRunsItsConfiguredExecutable() throws Exception {
+        UncrustifyDaemon host = createDaemon();
+        format(host, myExecutablePath, createInput()).get(30, TimeUnit.SECONDS);
+
+        UncrustifyDaemon client = createDaemon();
+        String other = createFakeExecutable("other", Map.of()).toString();
+        String input = createInput();
+        // formatted in-process instead
+        Assertions.assertNotEquals(input, format(client, other, input).get(30, TimeUnit.SECONDS));
+        Assertions.assertEquals(0, host.getServedCount());
+    }
+
+    @Test
+    public void testUnrelatedServiceOnPort() throws Exception {
+        try (ServerSocket unrelated = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread acceptor = new Thread(() -> {
+                try (Socket socket = unrelated.accept()) {
+                    socket.getOutputStream().write("HTTP/1.1 400 Bad Request\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                } catch (IOException ignored) {
+                }
+            });
+            acceptor.start();
+            Files.writeString(myPortDirectory.resolve("daemon.port"), unrelated.getLocalPort() + "\nsecret\n");
+
+            UncrustifyDaemon client = createDaemon();
+            String input = createInput();
+            Assertions.assertNotEquals(input, format(client, myExecutablePath, input).get(30, TimeUnit.SECONDS));
+            // something is listening, so there is no reason to take over the port file
+            Assertions.assertFalse(client.isHost());
+            acceptor.join(10_000);
+        }
+    }
+
+    @Test
+    public void testCancellationReachesHost() throws Exception {
+        UncrustifyDaemon host = createDaemon();
+        format(host, myExecutablePath, createInput()).get(30, TimeUnit.SECONDS);
+
+        String slow = createFakeExecutable("slow", Map.of(FakeUncrustify.LATENCY_MS, "60000")).toString();
+        UncrustifySettingsState.getInstance().executablePath = slow;
+        UncrustifyDaemon client = createDaemon();
+        CompletableFuture<String> result = format(client, slow, createInput());
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (UncrustifyProcessWatchdog.getInstance().getLiveProcessCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(1, host.getServedCount());
+
+        result.cancel(true);
+        deadline = System.currentTimeMillis() + 10_000;
+        while (UncrustifyProcessWatchdog.getInstance().getLiveProcessCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(0, UncrustifyProcessWatchdog.getInstance().getLiveProcessCount());
+    }
+}
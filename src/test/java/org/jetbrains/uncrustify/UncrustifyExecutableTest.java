@@ -1,9 +1,14 @@
 package org.jetbrains.uncrustify;
 
+import com.intellij.testFramework.PlatformTestUtil;
+import org.jetbrains.uncrustify.settings.UncrustifySettingsState;
 import org.jetbrains.uncrustify.util.UncrustifyExecutable;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 class UncrustifyExecutableTest extends BaseUncrustifyTest {
     @Test
     public void testVerifyVersion() {
@@ -12,4 +17,23 @@ class UncrustifyExecutableTest extends BaseUncrustifyTest {
                 "Valid 'uncrustify --version' output didn't verify");
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testProbeIsRemembered() throws Exception {
+        UncrustifySettingsState.ExecutableProbe probe = UncrustifyExecutable.probe(myExecutablePath).join();
+        Assertions.assertNotNull(probe, "Uncrustify executable wasn't recognized");
+        Assertions.assertNotNull(UncrustifyExecutable.verifyVersion(probe.version));
+        // remembered on the EDT
+        PlatformTestUtil.dispatchAllEventsInIdeEventQueue();
+        Assertions.assertSame(probe, UncrustifyExecutable.getCachedProbe(myExecutablePath));
+        Assertions.assertSame(probe, UncrustifyExecutable.probe(myExecutablePath).join(), "Probed executable was run again");
+    }
+
+    @Test
+    public void testConcurrentProbesShareProcess() throws Exception {
+        String path = createFakeExecutable("unprobed", Map.of()).toString();
+        // the second call comes long before the process could have started
+        CompletableFuture<UncrustifySettingsState.ExecutableProbe> first = UncrustifyExecutable.probe(path);
+        Assertions.assertSame(first, UncrustifyExecutable.probe(path), "Executable was probed twice at the same time");
+        Assertions.assertNotNull(first.join());
+    }
+}
@@ -0,0 +1,62 @@
+package org.jetbrains.uncrustify;
+
+import com.intellij.openapi.util.TextRange;
+import org.jetbrains.uncrustify.util.UncrustifyFragment;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+public class UncrustifyFragmentTest extends BaseUncrustifyTest {
+    private static final String TEXT = "a\nbb\ncc\ndd\n";
+    private static final String TEXT_WITHOUT_LINE_BREAK = "a\nbb\ncc";
+
+    @Test
+    public void testMidLineRangeIsExtendedToWholeLines() {
+        UncrustifyFragment fragment = UncrustifyFragment.create(TEXT, List.of(new TextRange(3, 6)));
+        Assertions.assertNotNull(fragment);
+        Assertions.assertEquals(new TextRange(2, 8), fragment.getRange());
+        Assertions.assertEquals("bb\ncc\n", fragment.getText().toString());
+    }
+
+    @Test
+    public void testRangeEndingAtLineStartDoesNotIncludeNextLine() {
+        UncrustifyFragment fragment = UncrustifyFragment.create(TEXT, List.of(new TextRange(2, 5)));
+        Assertions.assertNotNull(fragment);
+        Assertions.assertEquals("bb\n", fragment.getText().toString());
+    }
+
+    @Test
+    public void testFragmentSpansAllRanges() {
+        UncrustifyFragment fragment = UncrustifyFragment.create(TEXT, List.of(new TextRange(9, 9), new TextRange(3, 3)));
+        Assertions.assertNotNull(fragment);
+        Assertions.assertEquals(new TextRange(2, TEXT.length()), fragment.getRange());
+    }
+
+    @Test
+    public void testWholeTextIsNoFragment() {
+        Assertions.assertNull(UncrustifyFragment.create(TEXT, List.of()));
+        Assertions.assertNull(UncrustifyFragment.create(TEXT, List.of(new TextRange(0, TEXT.length()))));
+        // covers the first and the last line
+        Assertions.assertNull(UncrustifyFragment.create(TEXT, List.of(new TextRange(1, 2), new TextRange(9, 10))));
+    }
+
+    @Test
+    public void testSpliceKeepsLineBreak() {
+        UncrustifyFragment fragment = UncrustifyFragment.create(TEXT, List.of(new TextRange(2, 5)));
+        Assertions.assertNotNull(fragment);
+        Assertions.assertEquals("a\n  bb\ncc\ndd\n", fragment.splice("  bb\n"));
+    }
+
+    @Test
+    public void testTextWithoutFinalLineBreak() {
+        // beyond the end of the text
+        UncrustifyFragment fragment = UncrustifyFragment.create(TEXT_WITHOUT_LINE_BREAK, List.of(new TextRange(6, 100)));
+        Assertions.assertNotNull(fragment);
+        Assertions.assertEquals(new TextRange(5, TEXT_WITHOUT_LINE_BREAK.length()), fragment.getRange());
+        Assertions.assertEquals("cc", fragment.getText().toString());
+        // Uncrustify terminates its output with a line break the text didn't have
+        Assertions.assertEquals("a\nbb\ncc;", fragment.splice("cc;\n"));
+        Assertions.assertEquals("a\nbb\ncc;", fragment.splice("cc;"));
+    }
+}
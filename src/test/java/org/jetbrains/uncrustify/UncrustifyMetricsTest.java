@@ -0,0 +1,59 @@
+package org.jetbrains.uncrustify;
+
+import org.jetbrains.uncrustify.util.UncrustifyMetrics;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class UncrustifyMetricsTest {
+    private static final double DELTA = 1e-9;
+
+    private static double singleValuePercentileMs(long nanos) {
+        UncrustifyMetrics.Histogram histogram = new UncrustifyMetrics.Histogram();
+        histogram.record(nanos);
+        return histogram.getPercentileMs(0.5);
+    }
+
+    @Test
+    public void testValuesAreRoundedUpToBucketBound() {
+        // buckets double from 50 µs on, and include their upper bound
+        Assertions.assertEquals(0.05, singleValuePercentileMs(0), DELTA);
+        Assertions.assertEquals(0.05, singleValuePercentileMs(TimeUnit.MICROSECONDS.toNanos(50)), DELTA);
+        Assertions.assertEquals(0.1, singleValuePercentileMs(TimeUnit.MICROSECONDS.toNanos(50) + 1), DELTA);
+        Assertions.assertEquals(0.1, singleValuePercentileMs(TimeUnit.MICROSECONDS.toNanos(70)), DELTA);
+        Assertions.assertEquals(1.6, singleValuePercentileMs(TimeUnit.MILLISECONDS.toNanos(1)), DELTA);
+        Assertions.assertEquals(12.8, singleValuePercentileMs(TimeUnit.MILLISECONDS.toNanos(10)), DELTA);
+    }
+
+    @Test
+    public void testValuesBeyondLastBucketAreCapped() {
+        double last = 0.05 * (1 << 23);
+        Assertions.assertEquals(last, singleValuePercentileMs(TimeUnit.MINUTES.toNanos(10)), DELTA);
+        Assertions.assertEquals(last, singleValuePercentileMs(Long.MAX_VALUE), DELTA);
+    }
+
+    @Test
+    public void testPercentiles() {
+        UncrustifyMetrics.Histogram histogram = new UncrustifyMetrics.Histogram();
+        Assertions.assertEquals(0, histogram.getPercentileMs(0.5), DELTA);
+
+        for (int i = 0; i < 90; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        Assertions.assertEquals(100, histogram.getCount());
+        Assertions.assertEquals(0.1, histogram.getPercentileMs(0.5), DELTA);
+        // the 90th value is the last one of the fast bucket
+        Assertions.assertEquals(0.1, histogram.getPercentileMs(0.9), DELTA);
+        Assertions.assertEquals(12.8, histogram.getPercentileMs(0.91), DELTA);
+        Assertions.assertEquals(12.8, histogram.getPercentileMs(0.99), DELTA);
+        Assertions.assertEquals(12.8, histogram.getPercentileMs(1), DELTA);
+
+        histogram.reset();
+        Assertions.assertEquals(0, histogram.getCount());
+        Assertions.assertEquals(0, histogram.getPercentileMs(0.99), DELTA);
+    }
+}
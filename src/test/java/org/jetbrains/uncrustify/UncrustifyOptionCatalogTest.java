@@ -0,0 +1,81 @@
+package org.jetbrains.uncrustify;
+
+import org.jetbrains.uncrustify.util.UncrustifyOptionCatalog;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+public class UncrustifyOptionCatalogTest extends BaseUncrustifyTest {
+    private static final String SHOW_CONFIG = "# Uncrustify-0.73.0_f\n" +
+            "\n" +
+            "# The type of line endings.\n" +
+            "#\n" +
+            "# Default: auto\n" +
+            "newlines                        = auto     # lf/crlf/cr/auto\n" +
+            "\n" +
+            "# The original size of tabs in the input.\n" +
+            "input_tab_size                  = 8        # unsigned number\n" +
+            "indent_columns                  = 8        # unsigned number\n" +
+            "indent_continue                 = 0        # number\n" +
+            "sp_arith                        = ignore   # ignore/add/remove/force\n" +
+            "indent_with_tabs                = 1        # unsigned number\n" +
+            "nl_func_var_def_blk             = 0        # unsigned number\n" +
+            "cmt_insert_file_header          = \"\"       # string\n" +
+            "mod_full_brace_if               = ignore   # ignore/add/remove/force\n" +
+            "cmt_indent_multi                = true     # true/false\n";
+
+    @Test
+    public void testParse() {
+        UncrustifyOptionCatalog catalog = UncrustifyOptionCatalog.parse(SHOW_CONFIG);
+        Assertions.assertNotNull(catalog);
+        Assertions.assertEquals(11, catalog.getOptions().size());
+
+        UncrustifyOptionCatalog.Option newlines = catalog.getOption("newlines");
+        Assertions.assertNotNull(newlines);
+        Assertions.assertEquals(UncrustifyOptionCatalog.Type.ENUM, newlines.getType());
+        Assertions.assertEquals("auto", newlines.getDefaultValue());
+        Assertions.assertTrue(newlines.getAllowedValues().contains("crlf"));
+
+        Assertions.assertEquals(UncrustifyOptionCatalog.Type.UNSIGNED, catalog.getOption("input_tab_size").getType());
+        Assertions.assertEquals(UncrustifyOptionCatalog.Type.NUMBER, catalog.getOption("indent_continue").getType());
+        Assertions.assertEquals(UncrustifyOptionCatalog.Type.BOOLEAN, catalog.getOption("cmt_indent_multi").getType());
+        Assertions.assertEquals(UncrustifyOptionCatalog.Type.STRING, catalog.getOption("cmt_insert_file_header").getType());
+    }
+
+    @Test
+    public void testValidConfig() {
+        UncrustifyOptionCatalog catalog = UncrustifyOptionCatalog.parse(SHOW_CONFIG);
+        Assertions.assertNotNull(catalog);
+        List<UncrustifyOptionCatalog.Problem> problems = catalog.validate(
+                "# comment\n" +
+                "newlines = LF\n" +
+                "indent_columns=4 # trailing comment\n" +
+                "indent_continue = -4\n" +
+                "input_tab_size = indent_columns\n" +
+                "cmt_insert_file_header = \"#header.txt\"\n" +
+                "cmt_indent_multi false\n" +
+                "type my_type_t\n" +
+                "include \"common.cfg\"\n");
+        Assertions.assertTrue(problems.isEmpty(), problems.toString());
+    }
+
+    @Test
+    public void testInvalidConfig() {
+        UncrustifyOptionCatalog catalog = UncrustifyOptionCatalog.parse(SHOW_CONFIG);
+        Assertions.assertNotNull(catalog);
+        List<UncrustifyOptionCatalog.Problem> problems = catalog.validate(
+                "nwlines = lf\n" +
+                "\n" +
+                "indent_columns = -1\n" +
+                "sp_arith = sometimes\n" +
+                "cmt_indent_multi = maybe\n" +
+                "indent_continue =\n");
+        Assertions.assertEquals(5, problems.size(), problems.toString());
+        Assertions.assertEquals(1, problems.get(0).getLine());
+        Assertions.assertEquals(3, problems.get(1).getLine());
+        Assertions.assertEquals(4, problems.get(2).getLine());
+        Assertions.assertEquals(5, problems.get(3).getLine());
+        Assertions.assertEquals(6, problems.get(4).getLine());
+    }
+}
@@ -0,0 +1,211 @@
+package org.jetbrains.uncrustify;
+
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.uncrustify.util.UncrustifyProcessPool;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Runs {@link UncrustifyProcessPool} with {@link FakeUncrustify}, which logs every process it is started as, so that
+ * spawns can be counted.
+ */
+public class UncrustifyProcessPoolTest extends BaseUncrustifyTest {
+    private static final long TIMEOUT_MS = 30_000;
+
+    private Path myLog;
+    private String myExecutable;
+
+    private void createExecutable() throws IOException {
+        myLog = Files.createTempFile("fake-uncrustify", ".log");
+        myLog.toFile().deleteOnExit();
+        myExecutable = createFakeExecutable("pooled", Map.of(FakeUncrustify.LOG_FILE, myLog.toString())).toString();
+    }
+
+    private String getConfigPath() {
+        return Path.of(getTestDataPath(), "valid.cfg").toString();
+    }
+
+    private static List<String> params(String configPath, String assumed) {
+        return List.of("-c", configPath, "--assume", assumed);
+    }
+
+    private int getSpawnCount() throws IOException {
+        return Files.readAllLines(myLog, StandardCharsets.UTF_8).size();
+    }
+
+    private static void waitFor(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                Assertions.fail(message);
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private void waitForSpawns(int count, String message) throws InterruptedException {
+        waitFor(() -> {
+            try {
+                return getSpawnCount() == count;
+            } catch (IOException e) {
+                return false;
+            }
+        }, message);
+    }
+
+    private static Set<ProcessHandle> getChildren() {
+        return ProcessHandle.current().children().collect(Collectors.toSet());
+    }
+
+    @Test
+    public void testAcquireRefillsPool() throws Exception {
+        createExecutable();
+        UncrustifyProcessPool pool = new UncrustifyProcessPool();
+        List<Process> acquired = new ArrayList<>();
+        try {
+            int size = UncrustifyProcessPool.getPoolSize();
+            acquired.add(pool.acquire(myExecutable, getConfigPath(), params(getConfigPath(), "A.java")));
+            waitFor(() -> pool.getIdleProcessCount() == size, "The pool was not filled");
+
+            // taken from the pool, and replaced by a new process
+            Process warm = pool.acquire(myExecutable, getConfigPath(), params(getConfigPath(), "A.java"));
+            acquired.add(warm);
+            Assertions.assertTrue(warm.isAlive());
+            waitFor(() -> pool.getIdleProcessCount() == size, "The pool was not refilled");
+            waitForSpawns(size + 2, "Not every process has started");
+        } finally {
+            acquired.forEach(Process::destroy);
+            pool.dispose();
+        }
+    }
+
+    @Test
+    public void testChangedConfigDestroysOutdatedProcesses() throws Exception {
+        createExecutable();
+        Path dir = Files.createTempDirectory("uncrustify-pool");
+        Path config = Files.writeString(dir.resolve("pooled.cfg"), "indent_columns = 3\n");
+        VirtualFile file = LocalFileSystem.getInstance().refreshAndFindFileByNioFile(config);
+        Assertions.assertNotNull(file);
+        UncrustifyProcessPool pool = new UncrustifyProcessPool();
+        List<Process> acquired = new ArrayList<>();
+        try {
+            Set<ProcessHandle> before = getChildren();
+            acquired.add(pool.acquire(myExecutable, config.toString(), params(config.toString(), "A.java")));
+            waitFor(() -> pool.getIdleProcessCount() == UncrustifyProcessPool.getPoolSize(), "The pool was not filled");
+            Set<ProcessHandle> outdated = getChildren();
+            outdated.removeAll(before);
+            outdated.remove(acquired.get(0).toHandle());
+            Assertions.assertFalse(outdated.isEmpty());
+
+            Files.writeString(config, "indent_columns = 4\n");
+            VfsUtil.markDirtyAndRefresh(false, false, false, file);
+            acquired.add(pool.acquire(myExecutable, config.toString(), params(config.toString(), "A.java")));
+            waitFor(() -> outdated.stream().noneMatch(ProcessHandle::isAlive), "Processes with the outdated config are still running");
+            waitFor(() -> pool.getIdleProcessCount() == UncrustifyProcessPool.getPoolSize(), "The pool was not refilled");
+        } finally {
+            acquired.forEach(Process::destroy);
+            pool.dispose();
+            Files.walk(dir).sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedParametersAreEvicted() throws Exception {
+        createExecutable();
+        Registry.get("uncrustify.process.pool.size").setValue(1);
+        UncrustifyProcessPool pool = new UncrustifyProcessPool();
+        try {
+            // one more than the pool keeps
+            for (int i = 0; i < 9; i++) {
+                pool.acquire(myExecutable, getConfigPath(), params(getConfigPath(), "A" + i + ".java")).destroy();
+            }
+            waitForSpawns(18, "Not every process has started");
+            waitFor(() -> pool.getIdleProcessCount() == 8, "The pool was not filled");
+            Thread.sleep(500);
+            Assertions.assertEquals(8, pool.getIdleProcessCount());
+        } finally {
+            pool.dispose();
+            Registry.get("uncrustify.process.pool.size").resetToDefault();
+        }
+    }
+
+    @Test
+    public void testIdleProcessesAreDestroyed() throws Exception {
+        createExecutable();
+        UncrustifyProcessPool pool = new UncrustifyProcessPool(1_000);
+        Process process = null;
+        try {
+            Set<ProcessHandle> before = getChildren();
+            process = pool.acquire(myExecutable, getConfigPath(), params(getConfigPath(), "A.java"));
+            waitFor(() -> pool.getIdleProcessCount() == UncrustifyProcessPool.getPoolSize(), "The pool was not filled");
+            Set<ProcessHandle> idle = getChildren();
+            idle.removeAll(before);
+            idle.remove(process.toHandle());
+
+            waitFor(() -> pool.getIdleProcessCount() == 0, "Idle processes were not removed");
+            waitFor(() -> idle.stream().noneMatch(ProcessHandle::isAlive), "Idle processes are still running");
+        } finally {
+            if (process != null) {
+                process.destroy();
+            }
+            pool.dispose();
+        }
+    }
+
+    @Test
+    public void testBrokenParametersAreNotRefilled() throws Exception {
+        createExecutable();
+        String invalid = Path.of(getTestDataPath(), "invalid.cfg").toString();
+        UncrustifyProcessPool pool = new UncrustifyProcessPool();
+        try {
+            int size = UncrustifyProcessPool.getPoolSize();
+            pool.acquire(myExecutable, invalid, params(invalid, "A.java"));
+            waitForSpawns(size + 1, "The pool was not filled");
+            Thread.sleep(1_000);
+
+            // finds the pooled processes dead, and spawns a process without refilling
+            pool.acquire(myExecutable, invalid, params(invalid, "A.java"));
+            pool.acquire(myExecutable, invalid, params(invalid, "A.java"));
+            Thread.sleep(2_000);
+            Assertions.assertEquals(size + 3, getSpawnCount());
+        } finally {
+            pool.dispose();
+        }
+    }
+
+    @Test
+    public void testBrokenParametersExpire() throws Exception {
+        createExecutable();
+        String invalid = Path.of(getTestDataPath(), "invalid.cfg").toString();
+        UncrustifyProcessPool pool = new UncrustifyProcessPool(1_000);
+        try {
+            int size = UncrustifyProcessPool.getPoolSize();
+            pool.acquire(myExecutable, invalid, params(invalid, "A.java"));
+            waitForSpawns(size + 1, "The pool was not filled");
+            Thread.sleep(1_000);
+            pool.acquire(myExecutable, invalid, params(invalid, "A.java"));
+            waitForSpawns(size + 2, "Not every process has started");
+
+            // pooled again once the broken entry has expired
+            Thread.sleep(3_000);
+            pool.acquire(myExecutable, invalid, params(invalid, "A.java"));
+            waitForSpawns(2 * size + 3, "The pool was not refilled after the broken entry expired");
+        } finally {
+            pool.dispose();
+        }
+    }
+}
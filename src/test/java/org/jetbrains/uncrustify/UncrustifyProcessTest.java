@@ -0,0 +1,139 @@
+package org.jetbrains.uncrustify;
+
+import org.jetbrains.uncrustify.util.UncrustifyExecutable;
+import org.jetbrains.uncrustify.util.UncrustifyProcessException;
+import org.jetbrains.uncrustify.util.UncrustifyProcessResult;
+import org.jetbrains.uncrustify.util.UncrustifyProcessRunner;
+import org.jetbrains.uncrustify.util.UncrustifyProcessWatchdog;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs {@link FakeUncrustify} with provoked failures, independently of the executable the other tests use.
+ */
+public class UncrustifyProcessTest extends BaseUncrustifyTest {
+    private static final String INPUT = "class A {\nvoid f() {\n}\n}\n";
+
+    private String getConfigPath() {
+        return Path.of(getTestDataPath(), "valid.cfg").toString();
+    }
+
+    @Test
+    public void testFormat() throws Exception {
+        String executable = createFakeExecutable("plain", Map.of()).toString();
+        UncrustifyProcessResult result = UncrustifyExecutable.format(executable, getConfigPath(), "A.java", INPUT, StandardCharsets.UTF_8, false)
+                .get(30, TimeUnit.SECONDS);
+        Assertions.assertTrue(result.isSuccess(), result.getStderr());
+        Assertions.assertEquals("class A {\n   void f() {\n   }\n}\n", result.getStdout(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testExitCodeIsReported() throws Exception {
+        String executable = createFakeExecutable("failing", Map.of(FakeUncrustify.EXIT_CODE, "3")).toString();
+        UncrustifyProcessResult result = UncrustifyExecutable.format(executable, getConfigPath(), "A.java", INPUT, StandardCharsets.UTF_8, false)
+                .get(30, TimeUnit.SECONDS);
+        Assertions.assertFalse(result.isSuccess());
+        Assertions.assertEquals(3, result.getExitCode());
+    }
+
+    @Test
+    public void testStderrFloodDoesNotBlockOutput() throws Exception {
+        String executable = createFakeExecutable("noisy", Map.of(
+                FakeUncrustify.STDERR_BYTES, String.valueOf(8 * 1024 * 1024),
+                FakeUncrustify.OUTPUT_BYTES, String.valueOf(4 * 1024 * 1024))).toString();
+        UncrustifyProcessResult result = UncrustifyExecutable.format(executable, getConfigPath(), "A.java", INPUT, StandardCharsets.UTF_8, false)
+                .get(60, TimeUnit.SECONDS);
+        Assertions.assertTrue(result.isSuccess());
+        Assertions.assertEquals(4 * 1024 * 1024, result.getStdoutBytes().size());
+        Assertions.assertTrue(result.getStderr().length() <= UncrustifyProcessRunner.STDERR_LIMIT);
+    }
+
+    @Test
+    public void testCancellationKillsHangingProcess() throws Exception {
+        String executable = createFakeExecutable("hanging", Map.of(FakeUncrustify.HANG, "true")).toString();
+        CompletableFuture<UncrustifyProcessResult> future =
+                UncrustifyExecutable.format(executable, getConfigPath(), "A.java", INPUT, StandardCharsets.UTF_8, false);
+        Assertions.assertThrows(TimeoutException.class, () -> future.get(500, TimeUnit.MILLISECONDS));
+        future.cancel(true);
+        Assertions.assertThrows(CancellationException.class, future::join);
+    }
+
+    @Test
+    public void testWatchdogKillsHangingProcess() throws Exception {
+        String executable = createFakeExecutable("hanging", Map.of(FakeUncrustify.HANG, "true")).toString();
+        long timeouts = UncrustifyProcessWatchdog.getInstance().getTimeoutCount();
+        // killed after the minimal timeout, which applies to an input this small
+        UncrustifyProcessResult result = UncrustifyExecutable.format(executable, getConfigPath(), "A.java", INPUT, StandardCharsets.UTF_8, false)
+                .get(30, TimeUnit.SECONDS);
+        Assertions.assertTrue(result.isTimedOut());
+        Assertions.assertFalse(result.isSuccess());
+        Assertions.assertEquals(timeouts + 1, UncrustifyProcessWatchdog.getInstance().getTimeoutCount());
+    }
+
+    @Test
+    public void testFormatThroughFiles() throws Exception {
+        String executable = createFakeExecutable("plain", Map.of()).toString();
+        String text = UncrustifyExecutable.formatThroughFiles(executable, getConfigPath(), "A.java", INPUT, StandardCharsets.UTF_8, false)
+                .get(30, TimeUnit.SECONDS);
+        Assertions.assertEquals("class A {\n   void f() {\n   }\n}\n", text);
+
+        String failing = createFakeExecutable("failing", Map.of(FakeUncrustify.EXIT_CODE, "3")).toString();
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class, () ->
+                UncrustifyExecutable.formatThroughFiles(failing, getConfigPath(), "A.java", INPUT, StandardCharsets.UTF_8, false)
+                        .get(30, TimeUnit.SECONDS));
+        Assertions.assertEquals(3, ((UncrustifyProcessException) e.getCause()).getExitCode());
+    }
+
+    @Test
+    public void testFormatFiles() throws Exception {
+        String executable = createFakeExecutable("plain", Map.of()).toString();
+        String other = "class B {\nint g() {\nreturn 1;\n}\n}\n";
+        String formatted = "class A {\n   void f() {\n   }\n}\n";
+        // the same name twice, which must not collide
+        List<byte[]> outputs = UncrustifyExecutable.formatFiles(executable, getConfigPath(),
+                List.of("A.java", "B.java", "A.java"),
+                List.of(INPUT.getBytes(StandardCharsets.UTF_8), other.getBytes(StandardCharsets.UTF_8), formatted.getBytes(StandardCharsets.UTF_8)),
+                true).get(30, TimeUnit.SECONDS);
+        Assertions.assertEquals(3, outputs.size());
+        Assertions.assertEquals(formatted, new String(outputs.get(0), StandardCharsets.UTF_8));
+        Assertions.assertEquals("class B {\n   int g() {\n      return 1;\n   }\n}\n", new String(outputs.get(1), StandardCharsets.UTF_8));
+        Assertions.assertEquals(formatted, new String(outputs.get(2), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testCancellingFormatFilesKillsProcess() throws Exception {
+        String executable = createFakeExecutable("slow", Map.of(FakeUncrustify.LATENCY_MS, "60000")).toString();
+        UncrustifyProcessWatchdog watchdog = UncrustifyProcessWatchdog.getInstance();
+        int live = watchdog.getLiveProcessCount();
+        CompletableFuture<List<byte[]>> future = UncrustifyExecutable.formatFiles(executable, getConfigPath(),
+                List.of("A.java", "B.java"), List.of(INPUT.getBytes(StandardCharsets.UTF_8), INPUT.getBytes(StandardCharsets.UTF_8)), true);
+        Assertions.assertEquals(live + 1, watchdog.getLiveProcessCount());
+
+        future.cancel(true);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (watchdog.getLiveProcessCount() > live && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(live, watchdog.getLiveProcessCount(), "The process is still running");
+    }
+
+    @Test
+    public void testInvalidConfigIsRejected() throws Exception {
+        String executable = createFakeExecutable("plain", Map.of()).toString();
+        UncrustifyProcessResult result = UncrustifyExecutable.format(
+                executable, Path.of(getTestDataPath(), "invalid.cfg").toString(), "A.java", INPUT, StandardCharsets.UTF_8, false)
+                .get(30, TimeUnit.SECONDS);
+        Assertions.assertFalse(result.isSuccess());
+        Assertions.assertTrue(result.getStderr().contains("nwlines"), result.getStderr());
+    }
+}
@@ -0,0 +1,97 @@
+package org.jetbrains.uncrustify;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.util.TextRange;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class UncrustifyRequestCoordinatorTest extends BaseUncrustifyTest {
+    private static final List<TextRange> WHOLE = List.of(new TextRange(0, 10));
+
+    private static class Request implements UncrustifyRequestCoordinator.Request {
+        private final List<Boolean> supersededWith = new ArrayList<>();
+
+        @Override
+        public void supersede(boolean cancelComputation) {
+            supersededWith.add(cancelComputation);
+        }
+    }
+
+    @Test
+    public void testNewerStateCancelsOlderRequest() {
+        UncrustifyRequestCoordinator coordinator = new UncrustifyRequestCoordinator();
+        Document document = EditorFactory.getInstance().createDocument("class A {}");
+        Request first = new Request();
+        Request second = new Request();
+
+        Assertions.assertTrue(coordinator.begin(document, 1, WHOLE, first));
+        Assertions.assertTrue(coordinator.begin(document, 2, WHOLE, second));
+        Assertions.assertEquals(List.of(true), first.supersededWith);
+        Assertions.assertFalse(coordinator.isCurrent(document, first));
+        Assertions.assertTrue(coordinator.isCurrent(document, second));
+
+        // the superseded request must not forget the current one
+        coordinator.end(document, first);
+        Assertions.assertTrue(coordinator.isCurrent(document, second));
+        coordinator.end(document, second);
+        Assertions.assertFalse(coordinator.isCurrent(document, second));
+    }
+
+    @Test
+    public void testSameStateKeepsComputation() {
+        UncrustifyRequestCoordinator coordinator = new UncrustifyRequestCoordinator();
+        Document document = EditorFactory.getInstance().createDocument("class A {}");
+        Request first = new Request();
+        Request second = new Request();
+
+        Assertions.assertTrue(coordinator.begin(document, 5, WHOLE, first));
+        Assertions.assertTrue(coordinator.begin(document, 5, WHOLE, second));
+        Assertions.assertEquals(List.of(false), first.supersededWith);
+        Assertions.assertTrue(second.supersededWith.isEmpty());
+    }
+
+    @Test
+    public void testOutdatedRequestIsDropped() {
+        UncrustifyRequestCoordinator coordinator = new UncrustifyRequestCoordinator();
+        Document document = EditorFactory.getInstance().createDocument("class A {}");
+        Document other = EditorFactory.getInstance().createDocument("class B {}");
+        Request newer = new Request();
+        Request older = new Request();
+
+        Assertions.assertTrue(coordinator.begin(document, 7, WHOLE, newer));
+        Assertions.assertFalse(coordinator.begin(document, 6, WHOLE, older));
+        Assertions.assertTrue(coordinator.isCurrent(document, newer));
+        Assertions.assertTrue(newer.supersededWith.isEmpty());
+
+        // documents don't affect each other
+        Assertions.assertTrue(coordinator.begin(other, 1, WHOLE, older));
+        Assertions.assertTrue(coordinator.isCurrent(document, newer));
+    }
+
+    @Test
+    public void testOtherRangesAreNotSuperseded() {
+        UncrustifyRequestCoordinator coordinator = new UncrustifyRequestCoordinator();
+        Document document = EditorFactory.getInstance().createDocument("class A {}\nclass B {}\n");
+        List<TextRange> firstLine = List.of(new TextRange(0, 10));
+        List<TextRange> secondLine = List.of(new TextRange(11, 21));
+        Request first = new Request();
+        Request second = new Request();
+        Request third = new Request();
+
+        Assertions.assertTrue(coordinator.begin(document, 3, firstLine, first));
+        Assertions.assertTrue(coordinator.begin(document, 3, secondLine, second));
+        Assertions.assertTrue(first.supersededWith.isEmpty());
+        Assertions.assertTrue(coordinator.isCurrent(document, first));
+        Assertions.assertTrue(coordinator.isCurrent(document, second));
+
+        // a newer state of the document supersedes the requests for all ranges
+        Assertions.assertTrue(coordinator.begin(document, 4, firstLine, third));
+        Assertions.assertEquals(List.of(true), first.supersededWith);
+        Assertions.assertEquals(List.of(true), second.supersededWith);
+        Assertions.assertTrue(coordinator.isCurrent(document, third));
+    }
+}
@@ -0,0 +1,88 @@
+package org.jetbrains.uncrustify;
+
+import com.intellij.openapi.util.Disposer;
+import org.jetbrains.uncrustify.util.UncrustifyResultCache;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class UncrustifyResultCacheTest extends BaseUncrustifyTest {
+    private static final UncrustifyResultCache.Key KEY = new UncrustifyResultCache.Key("input", "config", "0.72", "cpp");
+
+    private final List<CompletableFuture<String>> started = new ArrayList<>();
+
+    private UncrustifyResultCache createCache() {
+        UncrustifyResultCache cache = new UncrustifyResultCache();
+        Disposer.register(getTestRootDisposable(), cache);
+        return cache;
+    }
+
+    private CompletableFuture<String> get(UncrustifyResultCache cache) {
+        return cache.get(KEY, () -> {
+            CompletableFuture<String> work = new CompletableFuture<>();
+            started.add(work);
+            return work;
+        });
+    }
+
+    @Test
+    public void testSingleFlight() {
+        UncrustifyResultCache cache = createCache();
+        CompletableFuture<String> first = get(cache);
+        CompletableFuture<String> second = get(cache);
+        Assertions.assertEquals(1, started.size());
+
+        started.get(0).complete("formatted");
+        Assertions.assertEquals("formatted", first.join());
+        Assertions.assertEquals("formatted", second.join());
+        Assertions.assertEquals(0, cache.getInFlightCount());
+
+        // served from the cache
+        Assertions.assertEquals("formatted", get(cache).join());
+        Assertions.assertEquals(1, started.size());
+    }
+
+    @Test
+    public void testCancelOneOfWaiters() {
+        UncrustifyResultCache cache = createCache();
+        CompletableFuture<String> first = get(cache);
+        CompletableFuture<String> second = get(cache);
+
+        first.cancel(true);
+        Assertions.assertFalse(started.get(0).isCancelled());
+
+        started.get(0).complete("formatted");
+        Assertions.assertEquals("formatted", second.join());
+    }
+
+    @Test
+    public void testCancelLastWaiter() {
+        UncrustifyResultCache cache = createCache();
+        CompletableFuture<String> first = get(cache);
+        first.cancel(true);
+        Assertions.assertTrue(started.get(0).isCancelled());
+        Assertions.assertEquals(0, cache.getInFlightCount());
+
+        // doesn't join the cancelled computation
+        CompletableFuture<String> next = get(cache);
+        Assertions.assertEquals(2, started.size());
+        Assertions.assertFalse(next.isDone());
+
+        started.get(1).complete("formatted");
+        Assertions.assertEquals("formatted", next.join());
+    }
+
+    @Test
+    public void testFailureIsNotCached() {
+        UncrustifyResultCache cache = createCache();
+        CompletableFuture<String> first = get(cache);
+        started.get(0).completeExceptionally(new IllegalStateException("failed"));
+        Assertions.assertTrue(first.isCompletedExceptionally());
+
+        get(cache);
+        Assertions.assertEquals(2, started.size());
+    }
+}
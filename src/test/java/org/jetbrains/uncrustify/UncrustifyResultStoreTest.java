@@ -0,0 +1,78 @@
+package org.jetbrains.uncrustify;
+
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.uncrustify.util.UncrustifyResultCache;
+import org.jetbrains.uncrustify.util.UncrustifyResultStore;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+
+public class UncrustifyResultStoreTest extends BaseUncrustifyTest {
+    private static UncrustifyResultCache.Key key(String input) {
+        return new UncrustifyResultCache.Key(input, "config", "Uncrustify-0.0.1_f", "java:UTF-8");
+    }
+
+    @Test
+    public void testRestoreAcrossSessions() throws IOException {
+        Path directory = FileUtil.createTempDirectory("uncrustify", "results", true).toPath();
+        new UncrustifyResultStore(directory, 1024 * 1024).put(key("a"), "class A{}", "class A {}");
+        new UncrustifyResultStore(directory, 1024 * 1024).put(key("b"), "class B {}", "class B {}");
+
+        UncrustifyResultStore store = new UncrustifyResultStore(directory, 1024 * 1024);
+        Assertions.assertEquals("class A {}", store.get(key("a"), "class A{}"));
+        // already formatted input is stored as a marker only
+        Assertions.assertEquals("class B {}", store.get(key("b"), "class B {}"));
+        Assertions.assertNull(store.get(key("c"), "class C {}"));
+    }
+
+    @Test
+    public void testUnreadableResultIsDropped() throws IOException {
+        Path directory = FileUtil.createTempDirectory("uncrustify", "results", true).toPath();
+        new UncrustifyResultStore(directory, 1024 * 1024).put(key("a"), "class A{}", "class A {}");
+        try (Stream<Path> files = Files.list(directory)) {
+            Files.writeString(files.findFirst().orElseThrow(), "truncated");
+        }
+        Path interrupted = Files.writeString(directory.resolve("interrupted.gz.tmp"), "partial");
+        // left behind by a previous session
+        Files.setLastModifiedTime(interrupted, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+
+        UncrustifyResultStore store = new UncrustifyResultStore(directory, 1024 * 1024);
+        Assertions.assertNull(store.get(key("a"), "class A{}"));
+        Assertions.assertEquals(0, store.getSize());
+        Assertions.assertFalse(Files.exists(directory.resolve("interrupted.gz.tmp")));
+    }
+
+    @Test
+    public void testTemporaryFileOfThisSessionIsKept() throws IOException {
+        Path directory = FileUtil.createTempDirectory("uncrustify", "results", true).toPath();
+        UncrustifyResultStore store = new UncrustifyResultStore(directory, 1024 * 1024);
+        // written by a put that runs concurrently with loading the index
+        Path writing = Files.writeString(directory.resolve("writing.gz.tmp"), "partial");
+
+        Assertions.assertEquals(0, store.getSize());
+        Assertions.assertTrue(Files.exists(writing));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws IOException {
+        Path directory = FileUtil.createTempDirectory("uncrustify", "results", true).toPath();
+        String text = "int main() {\n    return 0;\n}\n".repeat(100);
+        UncrustifyResultStore store = new UncrustifyResultStore(directory, 1024 * 1024);
+        store.put(key("a"), "", text);
+        long size = store.getSize();
+
+        store = new UncrustifyResultStore(directory, 2 * size);
+        store.put(key("b"), "", text);
+        Assertions.assertNotNull(store.get(key("a"), ""));
+        store.put(key("c"), "", text);
+
+        Assertions.assertNotNull(store.get(key("a"), ""));
+        Assertions.assertNull(store.get(key("b"), ""));
+        Assertions.assertNotNull(store.get(key("c"), ""));
+    }
+}
@@ -0,0 +1,81 @@
+package org.jetbrains.uncrustify;
+
+import com.intellij.openapi.util.registry.Registry;
+import org.jetbrains.uncrustify.util.UncrustifyScheduler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class UncrustifySchedulerTest extends BaseUncrustifyTest {
+    private final List<CompletableFuture<String>> started = new ArrayList<>();
+
+    @BeforeEach
+    public void setUpLimits() {
+        Registry.get("uncrustify.scheduler.interactive.limit").setValue(1);
+        Registry.get("uncrustify.scheduler.background.limit").setValue(1);
+    }
+
+    @AfterEach
+    public void resetLimits() {
+        Registry.get("uncrustify.scheduler.interactive.limit").resetToDefault();
+        Registry.get("uncrustify.scheduler.background.limit").resetToDefault();
+    }
+
+    private CompletableFuture<String> submit(UncrustifyScheduler scheduler, UncrustifyScheduler.Lane lane) {
+        return scheduler.submit(lane, 100, () -> {
+            CompletableFuture<String> work = new CompletableFuture<>();
+            started.add(work);
+            return work;
+        });
+    }
+
+    @Test
+    public void testLaneLimit() {
+        UncrustifyScheduler scheduler = new UncrustifyScheduler();
+        CompletableFuture<String> first = submit(scheduler, UncrustifyScheduler.Lane.BACKGROUND);
+        CompletableFuture<String> second = submit(scheduler, UncrustifyScheduler.Lane.BACKGROUND);
+        Assertions.assertEquals(1, started.size());
+        Assertions.assertEquals(1, scheduler.getQueuedCount(UncrustifyScheduler.Lane.BACKGROUND));
+
+        started.get(0).complete("first");
+        Assertions.assertEquals("first", first.join());
+        Assertions.assertEquals(2, started.size());
+
+        started.get(1).complete("second");
+        Assertions.assertEquals("second", second.join());
+        Assertions.assertEquals(0, scheduler.getRunningCount(UncrustifyScheduler.Lane.BACKGROUND));
+    }
+
+    @Test
+    public void testBackgroundDoesNotBlockInteractive() {
+        UncrustifyScheduler scheduler = new UncrustifyScheduler();
+        submit(scheduler, UncrustifyScheduler.Lane.BACKGROUND);
+        submit(scheduler, UncrustifyScheduler.Lane.BACKGROUND);
+        CompletableFuture<String> interactive = submit(scheduler, UncrustifyScheduler.Lane.INTERACTIVE);
+        Assertions.assertEquals(2, started.size());
+
+        started.get(1).complete("interactive");
+        Assertions.assertEquals("interactive", interactive.join());
+        Assertions.assertEquals(1, scheduler.getQueuedCount(UncrustifyScheduler.Lane.BACKGROUND));
+    }
+
+    @Test
+    public void testCancellation() {
+        UncrustifyScheduler scheduler = new UncrustifyScheduler();
+        CompletableFuture<String> running = submit(scheduler, UncrustifyScheduler.Lane.INTERACTIVE);
+        CompletableFuture<String> queued = submit(scheduler, UncrustifyScheduler.Lane.INTERACTIVE);
+        CompletableFuture<String> next = submit(scheduler, UncrustifyScheduler.Lane.INTERACTIVE);
+
+        queued.cancel(true);
+        running.cancel(true);
+        Assertions.assertTrue(started.get(0).isCancelled());
+        // the cancelled request is skipped
+        Assertions.assertEquals(2, started.size());
+        Assertions.assertFalse(next.isDone());
+    }
+}
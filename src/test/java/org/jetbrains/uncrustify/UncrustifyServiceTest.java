@@ -3,7 +3,9 @@ package org.jetbrains.uncrustify;
 import com.intellij.application.options.CodeStyle;
 import com.intellij.formatting.FormatTextRanges;
 import com.intellij.formatting.service.FormattingService;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.testFramework.PlatformTestUtil;
 import org.jetbrains.uncrustify.settings.UncrustifyFormatSettings;
 import org.jetbrains.uncrustify.settings.UncrustifySettingsState;
 import org.junit.jupiter.api.Assertions;
@@ -69,9 +71,14 @@ public class UncrustifyServiceTest extends BaseUncrustifyTest {
                 myUncrustifyService.formatRanges(
                         myFixture.getFile(),
                         new FormatTextRanges(myFixture.getFile().getTextRange(), true), false, false));
-        //TODO This line is a workaround to make sure formatted text is ready when the assertion is executed. Platform
-        // fix is needed before this line can be removed.
-        Thread.sleep(1000);
+        // the formatted text is applied asynchronously
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (originalText.equals(myFixture.getFile().getText()) && System.currentTimeMillis() < deadline) {
+            if (ApplicationManager.getApplication().isDispatchThread()) {
+                PlatformTestUtil.dispatchAllEventsInIdeEventQueue();
+            }
+            Thread.sleep(10);
+        }
         String formattedText = myFixture.getFile().getText();
         Assertions.assertNotEquals(originalText, formattedText);
     }
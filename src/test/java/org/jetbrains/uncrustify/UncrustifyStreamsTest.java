@@ -0,0 +1,100 @@
+package org.jetbrains.uncrustify;
+
+import org.jetbrains.uncrustify.util.UncrustifyStreams;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class UncrustifyStreamsTest {
+    private static byte[] createContent() {
+        // more than a single write chunk
+        byte[] content = new byte[200 * 1024 + 17];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        return content;
+    }
+
+    private static byte[] write(ByteBuffer buffer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UncrustifyStreams.write(buffer, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testWriteHeapBuffer() throws IOException {
+        byte[] content = createContent();
+        ByteBuffer buffer = ByteBuffer.wrap(content, 5, 100);
+        Assertions.assertArrayEquals(Arrays.copyOfRange(content, 5, 105), write(buffer));
+        Assertions.assertEquals(5, buffer.position());
+    }
+
+    @Test
+    public void testWriteDirectBuffer() throws IOException {
+        byte[] content = createContent();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+        buffer.put(content).flip();
+        Assertions.assertArrayEquals(content, write(buffer));
+        Assertions.assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void testWriteReadOnlyBuffer() throws IOException {
+        byte[] content = createContent();
+        ByteBuffer buffer = ByteBuffer.wrap(content).asReadOnlyBuffer();
+        buffer.position(3);
+        Assertions.assertArrayEquals(Arrays.copyOfRange(content, 3, content.length), write(buffer));
+        Assertions.assertEquals(3, buffer.position());
+    }
+
+    @Test
+    public void testEncode() throws IOException {
+        String text = "class \u00c4 {\n}\n";
+        ByteBuffer buffer = UncrustifyStreams.encode(text, StandardCharsets.UTF_8);
+        Assertions.assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), write(buffer));
+        UncrustifyStreams.release(buffer);
+    }
+
+    @Test
+    public void testEncodeEmptyText() {
+        ByteBuffer buffer = UncrustifyStreams.encode("", StandardCharsets.UTF_8);
+        Assertions.assertEquals(0, buffer.remaining());
+        UncrustifyStreams.release(buffer);
+    }
+
+    @Test
+    public void testPooledBuffersAreNotShared() {
+        String text = "class A {\n}\n";
+        ByteBuffer first = UncrustifyStreams.encode(text, StandardCharsets.UTF_8);
+        ByteBuffer second = UncrustifyStreams.encode(text, StandardCharsets.UTF_8);
+        UncrustifyStreams.release(first);
+        UncrustifyStreams.release(second);
+
+        // both cleared buffers are equal now, but each must be handed out only once
+        ByteBuffer third = UncrustifyStreams.encode(text, StandardCharsets.UTF_8);
+        ByteBuffer fourth = UncrustifyStreams.encode(text, StandardCharsets.UTF_8);
+        Assertions.assertNotSame(third, fourth);
+        UncrustifyStreams.release(third);
+        UncrustifyStreams.release(fourth);
+    }
+
+    @Test
+    public void testTextRoundTrip() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            // multi-byte chars end up on the chunk boundaries
+            text.append("int \u00e4").append(i).append(" = \u20ac;\n");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UncrustifyStreams.writeText(text, StandardCharsets.UTF_8, out);
+        Assertions.assertArrayEquals(text.toString().getBytes(StandardCharsets.UTF_8), out.toByteArray());
+        Assertions.assertEquals(text.toString(),
+                UncrustifyStreams.readText(new ByteArrayInputStream(out.toByteArray()), StandardCharsets.UTF_8, 16));
+    }
+}
@@ -0,0 +1,45 @@
+package org.jetbrains.uncrustify;
+
+import org.jetbrains.uncrustify.util.UncrustifyTextDiff;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+public class UncrustifyTextDiffTest extends BaseUncrustifyTest {
+    private static String apply(String text, List<UncrustifyTextDiff.Hunk> hunks) {
+        StringBuilder builder = new StringBuilder(text);
+        for (int i = hunks.size() - 1; i >= 0; i--) {
+            UncrustifyTextDiff.Hunk hunk = hunks.get(i);
+            builder.replace(hunk.getStartOffset(), hunk.getEndOffset(), hunk.getReplacement());
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testEqualTextsHaveNoHunks() {
+        List<UncrustifyTextDiff.Hunk> hunks = UncrustifyTextDiff.compute("a\nb\n", "a\nb\n");
+        Assertions.assertNotNull(hunks);
+        Assertions.assertTrue(hunks.isEmpty(), "Equal texts should not produce any hunks");
+    }
+
+    @Test
+    public void testOnlyChangedLinesAreReplaced() {
+        String before = "class A {\nint a=1;\nint b;\nint c=2;\n}\n";
+        String after = "class A {\nint a = 1;\nint b;\nint c = 2;\n}\n";
+        List<UncrustifyTextDiff.Hunk> hunks = UncrustifyTextDiff.compute(before, after);
+        Assertions.assertNotNull(hunks);
+        Assertions.assertEquals(2, hunks.size(), "Two separate lines changed");
+        Assertions.assertEquals("int a = 1;\n", hunks.get(0).getReplacement());
+        Assertions.assertEquals(after, apply(before, hunks));
+    }
+
+    @Test
+    public void testInsertedAndRemovedLines() {
+        String before = "a\n\n\nb\nc";
+        String after = "a\n\nb\nc\nd\n";
+        List<UncrustifyTextDiff.Hunk> hunks = UncrustifyTextDiff.compute(before, after);
+        Assertions.assertNotNull(hunks);
+        Assertions.assertEquals(after, apply(before, hunks));
+    }
+}